@@ -0,0 +1,124 @@
+package com.vonhof.smartq;
+
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded pool of JDBC connections. Connections are opened when needed - at most maxSize at a time - and kept open
+ * when released so the next acquire can reuse them. Acquiring blocks while all connections are in use.
+ */
+public abstract class ConnectionPool {
+    private static final Logger log = Logger.getLogger(ConnectionPool.class);
+
+    private final String name;
+    private final int maxSize;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<Connection>();
+    private volatile boolean closed = false;
+
+    public ConnectionPool(String name, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Connection pool must allow at least 1 connection");
+        }
+        this.name = name;
+        this.maxSize = maxSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Opens a new connection for the pool
+     * @return
+     * @throws SQLException
+     */
+    protected abstract Connection newConnection() throws SQLException;
+
+    /**
+     * Called before the pool closes a connection - e.g. to clean up what was kept for it
+     * @param connection
+     */
+    protected void onClose(Connection connection) {
+
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets a connection - waiting for one to be released if all connections are in use. Must be given back with
+     * release.
+     * @return
+     * @throws SQLException
+     */
+    public Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException(String.format("Connection pool %s is closed", name));
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(String.format("Interrupted while waiting for connection from pool %s", name), e);
+        }
+
+        try {
+            Connection connection;
+            //Most recently used first - it is the least likely to have timed out
+            while ((connection = idle.pollFirst()) != null) {
+                if (!connection.isClosed()) {
+                    return connection;
+                }
+                onClose(connection);
+            }
+
+            return newConnection();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool. Closed connections are thrown away.
+     * @param connection
+     */
+    public void release(Connection connection) {
+        try {
+            if (closed || connection.isClosed()) {
+                closeQuietly(connection);
+            } else {
+                idle.offerFirst(connection);
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Closes all idle connections. Connections in use are closed when released.
+     */
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        onClose(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn(String.format("Failed to close connection from pool %s", name), e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.vonhof.smartq;
+
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers ETA queries from the last simulation of the queue instead of simulating the whole queue for every query.
+ *
+ * A simulation is redone on the next query once it is older than the max staleness - until then it is used as is,
+ * whatever changed. Changes are not tracked: a shared store is also changed by other processes, which queue listeners
+ * never hear about. Results are adjusted for the time that has passed since the simulation was made.
+ *
+ * Queues big enough to be simulated in parallel or guesstimated (see QueueEstimator.Speed) are not simulated to the
+ * end in one piece, so only the time left is cached for them. Start time queries then simulate the queue up to the
+ * task on every call, and reference group estimates only hold the references that were simulated.
+ */
+public class EstimateCache {
+    private static final Logger log = Logger.getLogger(EstimateCache.class);
+
+    private final SmartQ queue;
+    private final Map<String, Estimate> tagEstimates = new ConcurrentHashMap<>();
+    private volatile Estimate estimate;
+    private volatile long maxStaleness;
+
+    public EstimateCache(SmartQ queue, long maxStaleness) {
+        this.queue = queue;
+        this.maxStaleness = maxStaleness;
+    }
+
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    /**
+     * Max age in ms of a simulation that is used to answer queries.
+     * @param maxStaleness
+     */
+    public void setMaxStaleness(long maxStaleness) {
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Throws away all simulations. Use when a change should show up before the max staleness has passed
+     * - e.g. rate limits, subscribers or task type estimates.
+     */
+    public synchronized void invalidate() {
+        estimate = null;
+        tagEstimates.clear();
+    }
+
+    /**
+     * Get estimated time until queue is completely done
+     * @return
+     */
+    public long getEstimatedTimeLeft() throws InterruptedException {
+        Estimate current = getEstimate();
+        return current.adjust(current.timeLeft);
+    }
+
+    /**
+     * Get estimated time until all tasks with the given tag are done
+     * @param tag
+     * @return
+     */
+    public long getEstimatedTimeLeft(String tag) throws InterruptedException {
+        Estimate tagEstimate = tagEstimates.get(tag);
+        if (isOutdated(tagEstimate)) {
+            synchronized (this) {
+                tagEstimate = tagEstimates.get(tag);
+                if (isOutdated(tagEstimate)) {
+                    tagEstimate = simulate(queue.getStore().getPending(tag), false);
+                    tagEstimates.put(tag, tagEstimate);
+                }
+            }
+        }
+        return tagEstimate.adjust(tagEstimate.timeLeft);
+    }
+
+    /**
+     * Get estimated time until task can be executed. Tasks without a reference - or tasks that are newer than the
+     * last simulation, or any task if the queue was not simulated to the end - are simulated on their own.
+     * @param task
+     * @return
+     */
+    public long getEstimatedStartTime(Task task) throws InterruptedException {
+        Estimate current = getEstimate();
+        Long startTime = current.startTimes.get(task.getId());
+        if (startTime != null) {
+            return current.adjust(startTime);
+        }
+
+        return new QueueEstimator(queue).taskStarts(task);
+    }
+
+    public Map<String, Long> getEstimatesForReferenceGroups() throws InterruptedException {
+        Estimate current = getEstimate();
+        Map<String, Long> out = new HashMap<>();
+        for(Map.Entry<String, Long> entry : current.referenceETA.entrySet()) {
+            out.put(entry.getKey(), current.adjust(entry.getValue()));
+        }
+        return out;
+    }
+
+    private Estimate getEstimate() throws InterruptedException {
+        Estimate current = estimate;
+        if (isOutdated(current)) {
+            synchronized (this) {
+                current = estimate;
+                if (isOutdated(current)) {
+                    current = simulate(queue.getStore().getPending(), true);
+                    estimate = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private boolean isOutdated(Estimate estimate) {
+        return estimate == null || estimate.age() > maxStaleness;
+    }
+
+    private Estimate simulate(ParallelIterator<Task> pending, boolean recordStartTimes) throws InterruptedException {
+        long computed = WatchProvider.currentTime();
+        long timeStart = System.currentTimeMillis();
+
+        QueueEstimator estimator = new QueueEstimator(queue);
+        estimator.setRecordStartTimes(recordStartTimes);
+        long timeLeft = estimator.queueEnds(pending);
+
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Simulated queue in %s ms", System.currentTimeMillis() - timeStart));
+        }
+
+        return new Estimate(computed, timeLeft,
+                new HashMap<>(estimator.getReferenceETA()),
+                new HashMap<>(estimator.getStartTimes()));
+    }
+
+    private static class Estimate {
+        private final long computed;
+        private final long timeLeft;
+        private final Map<String, Long> referenceETA;
+        private final Map<UUID, Long> startTimes;
+
+        private Estimate(long computed, long timeLeft, Map<String, Long> referenceETA, Map<UUID, Long> startTimes) {
+            this.computed = computed;
+            this.timeLeft = timeLeft;
+            this.referenceETA = referenceETA;
+            this.startTimes = startTimes;
+        }
+
+        private long age() {
+            return WatchProvider.currentTime() - computed;
+        }
+
+        /**
+         * Moves a simulated time forward to now
+         */
+        private long adjust(long time) {
+            return Math.max(0, time - age());
+        }
+    }
+}
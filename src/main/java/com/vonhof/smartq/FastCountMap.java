@@ -3,49 +3,87 @@ package com.vonhof.smartq;
 
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Iterator;
 
+/**
+ * Counts by tag in a plain long array indexed by the tag ids of a TagDictionary. Several maps can share one
+ * dictionary so the tag is only hashed once - when it gets its id. Not thread safe.
+ */
 public class FastCountMap {
-    private final int[] keys;
-    private final long[] values;
+    private final TagDictionary tags;
+    private final long defaultValue;
+    private long[] values;
 
     public FastCountMap(Collection<String> keys, long defaultValue) {
-        this.keys = new int[keys.size()];
-        this.values = new long[keys.size()];
-        Iterator<String> it = keys.iterator();
-        int i = 0;
-        while(it.hasNext()) {
-            this.keys[i] = it.next().hashCode();
-            i++;
-        }
-        Arrays.sort(this.keys);
-        Arrays.fill(values,defaultValue);
+        this(new TagDictionary(keys), defaultValue);
+    }
+
+    public FastCountMap(TagDictionary tags, long defaultValue) {
+        this.tags = tags;
+        this.defaultValue = defaultValue;
+        this.values = new long[Math.max(16, tags.size())];
+        Arrays.fill(values, defaultValue);
+    }
+
+    public TagDictionary getTags() {
+        return tags;
     }
 
     public int indexOf(String search) {
-        return Arrays.binarySearch(keys, search.hashCode());
+        return tags.indexOf(search);
     }
 
     public long increment(String key, long count) {
-        int ix = indexOf(key);
-        values[ix] += count;
-        return values[ix];
+        return increment(tags.intern(key), count);
     }
 
     public long decrement(String key, long count) {
-        int ix = indexOf(key);
-        values[ix] -= count;
-        return values[ix];
+        return decrement(tags.intern(key), count);
     }
 
     public long get(String key) {
-        int ix = indexOf(key);
-        return values[ix];
+        int ix = tags.indexOf(key);
+        if (ix < 0) {
+            return defaultValue;
+        }
+        return get(ix);
     }
 
     public long set(String tag, long val) {
-        int ix = indexOf(tag);
-        values[ix] = val;
-        return values[ix];
+        return set(tags.intern(tag), val);
+    }
+
+    public long increment(int id, long count) {
+        ensureCapacity(id);
+        values[id] += count;
+        return values[id];
+    }
+
+    public long decrement(int id, long count) {
+        ensureCapacity(id);
+        values[id] -= count;
+        return values[id];
+    }
+
+    public long get(int id) {
+        if (id >= values.length) {
+            return defaultValue;
+        }
+        return values[id];
+    }
+
+    public long set(int id, long val) {
+        ensureCapacity(id);
+        values[id] = val;
+        return val;
+    }
+
+    private void ensureCapacity(int id) {
+        if (id < values.length) {
+            return;
+        }
+
+        int oldLength = values.length;
+        values = Arrays.copyOf(values, Math.max(id + 1, oldLength * 2));
+        Arrays.fill(values, oldLength, values.length, defaultValue);
     }
 }
@@ -0,0 +1,765 @@
+package com.vonhof.smartq;
+
+
+import org.apache.log4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Task store kept in memory and persisted to an append-only journal on local disk - durable without a database.
+ *
+ * Every change is appended to a SegmentLog as a small record - before it is made to the memory store - and the memory
+ * store is rebuilt from the log when the store is opened. Changes wait for their record to be synced to disk unless
+ * waitForSync is turned off - changes made at the same time share one fsync.
+ *
+ * Once the journal is full a checkpoint is written by a background thread. Only references to the tasks are taken
+ * while changes are held back - they are serialized while changes go on, as the journal writes the changes made
+ * meanwhile after the checkpoint.
+ */
+public class JournalTaskStore implements TaskStore {
+    private static final Logger log = Logger.getLogger(JournalTaskStore.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte QUEUE = 'Q';
+    private static final byte RUN = 'R';
+    private static final byte FAILED = 'F';
+    private static final byte REMOVE = 'D';
+    private static final byte CANCEL = 'C';
+    private static final byte RATE_LIMIT = 'L';
+    private static final byte RETRY_LIMIT = 'T';
+    private static final byte DURATION = 'U';
+    private static final byte ESTIMATE = 'E';
+    private static final byte DICTIONARY = 'N';
+
+    private final Class<Task> taskClass;
+    private final MemoryTaskStore memStore = new MemoryTaskStore();
+    private final SegmentLog journal;
+
+    private final Map<String, Integer> retryLimits = new HashMap<>();
+    private final Set<String> estimatedTypes = new HashSet<>();
+
+    private DocumentSerializer documentSerializer = new JacksonDocumentSerializer();
+    private boolean waitForSync = true;
+    private Thread checkpointer;
+
+    public JournalTaskStore(Class<Task> taskClass, File dir) {
+        this.taskClass = taskClass;
+        this.journal = new SegmentLog(dir);
+    }
+
+    public void setDocumentSerializer(DocumentSerializer documentSerializer) {
+        this.documentSerializer = documentSerializer;
+        memStore.setDocumentSerializer(documentSerializer);
+    }
+
+    /**
+     * Keeps the data of queued tasks off the heap - see MemoryTaskStore.setPayloadStore. Must be set before opening.
+     * @param payloadStore
+     */
+    public void setPayloadStore(PayloadStore payloadStore) {
+        memStore.setPayloadStore(payloadStore);
+    }
+
+    /**
+     * Ids of the tags, types and groups - kept across restarts by the journal checkpoints
+     * @return
+     */
+    public TagDictionary getDictionary() {
+        return memStore.getDictionary();
+    }
+
+    public boolean isWaitForSync() {
+        return waitForSync;
+    }
+
+    /**
+     * Whether changes wait for the journal to be synced to disk before returning. Without it a crash may lose the
+     * last few milliseconds of changes.
+     * @param waitForSync
+     */
+    public void setWaitForSync(boolean waitForSync) {
+        this.waitForSync = waitForSync;
+    }
+
+    /**
+     * Journal size after which it is replaced by a checkpoint of the current tasks
+     * @param segmentSize
+     */
+    public void setSegmentSize(long segmentSize) {
+        journal.setSegmentSize(segmentSize);
+    }
+
+    /**
+     * Loads the tasks from the journal and opens it for changes
+     * @throws IOException
+     */
+    public synchronized void open() throws IOException {
+        log.info(String.format("Reading journal from %s", journal.getDir()));
+
+        final int[] records = {0};
+        journal.open(new SegmentLog.RecordHandler() {
+            @Override
+            public void handle(byte[] record) throws IOException {
+                apply(record);
+                records[0]++;
+            }
+        });
+
+        log.info(String.format("Read %s records from journal - %s queued and %s running tasks",
+                records[0], memStore.queueSize(), memStore.runningCount()));
+    }
+
+    @Override
+    public Task get(UUID id) {
+        return memStore.get(id);
+    }
+
+    @Override
+    public void remove(Task task) {
+        remove(task.getId());
+    }
+
+    @Override
+    public void remove(UUID id) {
+        long position;
+        synchronized (this) {
+            if (memStore.get(id) == null) {
+                return;
+            }
+            position = write(record(REMOVE).id(id));
+            memStore.remove(id);
+            checkpointIfFull();
+        }
+        await(position);
+    }
+
+    @Override
+    public void queue(Task... tasks) {
+        long position;
+        synchronized (this) {
+            List<Record> records = new ArrayList<>(tasks.length);
+            for (Task task : tasks) {
+                records.add(record(QUEUE).task(task));
+            }
+            position = write(records);
+            memStore.queue(tasks);
+            checkpointIfFull();
+        }
+        await(position);
+    }
+
+    @Override
+    public void run(Task... tasks) {
+        long position;
+        synchronized (this) {
+            List<Record> records = new ArrayList<>(tasks.length);
+            for (Task task : tasks) {
+                records.add(record(RUN).task(memStore.withData(task)));
+            }
+            position = write(records);
+            memStore.run(tasks);
+            checkpointIfFull();
+        }
+        await(position);
+    }
+
+    @Override
+    public List<Task> claim(Task... tasks) {
+        List<Task> claimed = new ArrayList<>(tasks.length);
+        long position;
+        synchronized (this) {
+            long started = WatchProvider.currentTime();
+            List<Record> records = new ArrayList<>(tasks.length);
+            for (Task task : tasks) {
+                if (memStore.isQueued(task.getId())) {
+                    Task running = memStore.withData(task).copy();
+                    running.setState(Task.State.RUNNING);
+                    running.setStarted(started);
+                    records.add(record(RUN).task(running));
+                    claimed.add(task);
+                }
+            }
+            position = write(records);
+
+            for (Task task : claimed) {
+                task.setStarted(started);
+            }
+            memStore.run(claimed.toArray(new Task[claimed.size()]));
+            checkpointIfFull();
+        }
+        await(position);
+        return claimed;
+    }
+
+    @Override
+    public void failed(Task task) {
+        long position;
+        synchronized (this) {
+            position = write(record(FAILED).task(memStore.withData(task)));
+            memStore.failed(task);
+            checkpointIfFull();
+        }
+        await(position);
+    }
+
+    @Override
+    public void cancelByReference(String referenceId) {
+        long position;
+        synchronized (this) {
+            position = write(record(CANCEL).string(referenceId));
+            memStore.cancelByReference(referenceId);
+            checkpointIfFull();
+        }
+        await(position);
+    }
+
+    @Override
+    public void setMaxRetries(String tag, int limit) {
+        long position;
+        synchronized (this) {
+            position = write(record(RETRY_LIMIT).string(tag).integer(limit));
+            setRetryLimit(tag, limit);
+            checkpointIfFull();
+        }
+        await(position);
+    }
+
+    @Override
+    public void setRateLimit(String tag, int limit) {
+        long position;
+        synchronized (this) {
+            position = write(record(RATE_LIMIT).string(tag).integer(limit));
+            memStore.setRateLimit(tag, limit);
+            checkpointIfFull();
+        }
+        await(position);
+    }
+
+    @Override
+    public void addTaskTypeDuration(String type, long duration) {
+        synchronized (this) {
+            //Estimates are not worth waiting for
+            write(record(DURATION).string(type).number(duration));
+            memStore.addTaskTypeDuration(type, duration);
+            estimatedTypes.add(type);
+            checkpointIfFull();
+        }
+    }
+
+    @Override
+    public void setTaskTypeEstimate(String type, long estimate) {
+        synchronized (this) {
+            write(record(ESTIMATE).string(type).number(estimate));
+            memStore.setTaskTypeEstimate(type, estimate);
+            estimatedTypes.add(type);
+            checkpointIfFull();
+        }
+    }
+
+    @Override
+    public Iterator<Task> getFailed() {
+        return memStore.getFailed();
+    }
+
+    @Override
+    public Iterator<Task> getQueued() {
+        return memStore.getQueued();
+    }
+
+    @Override
+    public Iterator<Task> getQueued(String type) {
+        return memStore.getQueued(type);
+    }
+
+    @Override
+    public Iterator<UUID> getQueuedIds() {
+        return memStore.getQueuedIds();
+    }
+
+    @Override
+    public Iterator<UUID> getQueuedIds(String type) {
+        return memStore.getQueuedIds(type);
+    }
+
+    @Override
+    public Iterator<UUID> getQueuedIds(String type, Set<String> excludedTags) {
+        return memStore.getQueuedIds(type, excludedTags);
+    }
+
+    @Override
+    public Iterator<Task> getRunning() {
+        return memStore.getRunning();
+    }
+
+    @Override
+    public Iterator<Task> getRunning(String type) {
+        return memStore.getRunning(type);
+    }
+
+    @Override
+    public long queueSize() throws InterruptedException {
+        return memStore.queueSize();
+    }
+
+    @Override
+    public long runningCount() throws InterruptedException {
+        return memStore.runningCount();
+    }
+
+    @Override
+    public long queueSize(String type) throws InterruptedException {
+        return memStore.queueSize(type);
+    }
+
+    @Override
+    public long runningCount(String type) throws InterruptedException {
+        return memStore.runningCount(type);
+    }
+
+    @Override
+    public CountMap<String> getRunningCounts() {
+        return memStore.getRunningCounts();
+    }
+
+    @Override
+    public long queueSizeForGroup(String group) {
+        return memStore.queueSizeForGroup(group);
+    }
+
+    @Override
+    public long runningCountForGroup(String group) {
+        return memStore.runningCountForGroup(group);
+    }
+
+    @Override
+    public Set<String> getTags() throws InterruptedException {
+        return memStore.getTags();
+    }
+
+    @Override
+    public <U> U isolatedChange(Callable<U> callable) throws InterruptedException {
+        return memStore.isolatedChange(callable);
+    }
+
+    @Override
+    public void waitForChange() throws InterruptedException {
+        memStore.waitForChange();
+    }
+
+    @Override
+    public void signalChange() {
+        memStore.signalChange();
+    }
+
+    @Override
+    public void signalChange(TaskWaiters.Change change, Set<String> tags) {
+        memStore.signalChange(change, tags);
+    }
+
+    @Override
+    public TaskWaiters getWaiters() {
+        return memStore.getWaiters();
+    }
+
+    @Override
+    public ParallelIterator<Task> getPending() {
+        return memStore.getPending();
+    }
+
+    @Override
+    public ParallelIterator<Task> getPending(String tag) {
+        return memStore.getPending(tag);
+    }
+
+    @Override
+    public long getTaskTypeEstimate(String type) {
+        return memStore.getTaskTypeEstimate(type);
+    }
+
+    @Override
+    public Task getFirstTaskWithReference(String referenceId) {
+        return memStore.getFirstTaskWithReference(referenceId);
+    }
+
+    @Override
+    public Task getLastTaskWithReference(String referenceId) {
+        return memStore.getLastTaskWithReference(referenceId);
+    }
+
+    @Override
+    public int getMaxRetries(Set<String> tags) {
+        return memStore.getMaxRetries(tags);
+    }
+
+    @Override
+    public int getRateLimit(String tag) {
+        return memStore.getRateLimit(tag);
+    }
+
+    @Override
+    public CountMap<String> getAllRateLimit() {
+        return memStore.getAllRateLimit();
+    }
+
+    @Override
+    public void setDefaultRateLimit(int limit) {
+        memStore.setDefaultRateLimit(limit);
+    }
+
+    /**
+     * Replaces the journal with a checkpoint of the current tasks and limits - waits for a checkpoint being written
+     * in the background first.
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        SegmentLog.Checkpoint checkpoint;
+        synchronized (this) {
+            while (journal.isCheckpointStarted()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for checkpoint", e);
+                }
+            }
+            checkpoint = startCheckpoint();
+        }
+        journal.checkpoint(checkpoint);
+    }
+
+    /**
+     * Waits until no checkpoint is being written in the background
+     * @throws InterruptedException
+     */
+    public synchronized void waitForCheckpoint() throws InterruptedException {
+        while (checkpointer != null) {
+            wait();
+        }
+    }
+
+    /**
+     * Takes the limits and references to the tasks to checkpoint and marks the journal - must hold the store lock.
+     * Tasks are only serialized when the checkpoint is written.
+     */
+    private SegmentLog.Checkpoint startCheckpoint() {
+        //First - so tags, types and groups keep their ids when the checkpoint is read
+        final List<byte[]> records = new ArrayList<>();
+        records.add(record(DICTIONARY).dictionary(memStore.getDictionary()).bytes());
+
+        for (Map.Entry<String, Long> limit : memStore.getAllRateLimit().entrySet()) {
+            records.add(record(RATE_LIMIT).string(limit.getKey()).integer(limit.getValue().intValue()).bytes());
+        }
+
+        for (Map.Entry<String, Integer> limit : retryLimits.entrySet()) {
+            records.add(record(RETRY_LIMIT).string(limit.getKey()).integer(limit.getValue()).bytes());
+        }
+
+        for (String type : estimatedTypes) {
+            records.add(record(ESTIMATE).string(type).number(memStore.getTaskTypeEstimate(type)).bytes());
+        }
+
+        final List<Task> failed = new ArrayList<>();
+        Iterator<Task> it = memStore.getFailed();
+        while (it.hasNext()) {
+            Task task = it.next();
+            //Failed tasks that were removed stay in the failed list of the memory store
+            if (memStore.get(task.getId()) == task) {
+                failed.add(task);
+            }
+        }
+
+        final List<Task> running = new ArrayList<>();
+        it = memStore.getRunning();
+        while (it.hasNext()) {
+            running.add(it.next());
+        }
+
+        final List<Task> queued = new ArrayList<>();
+        it = memStore.getQueued();
+        while (it.hasNext()) {
+            queued.add(it.next());
+        }
+
+        journal.startCheckpoint();
+
+        return new SegmentLog.Checkpoint() {
+            @Override
+            public void write(SegmentLog.RecordHandler out) throws IOException {
+                for (byte[] record : records) {
+                    out.handle(record);
+                }
+
+                //Tasks changed since are written again after the checkpoint
+                for (Task task : failed) {
+                    out.handle(record(FAILED).task(task).bytes());
+                }
+
+                for (Task task : running) {
+                    out.handle(record(RUN).task(task).bytes());
+                }
+
+                for (Task task : queued) {
+                    out.handle(record(QUEUE).task(memStore.withData(task)).bytes());
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws Exception {
+        Thread running;
+        synchronized (this) {
+            running = checkpointer;
+        }
+        if (running != null) {
+            running.join();
+        }
+        journal.close();
+        memStore.close();
+    }
+
+    private void setRetryLimit(String tag, int limit) {
+        memStore.setMaxRetries(tag, limit);
+        if (limit < 1) {
+            retryLimits.remove(tag);
+        } else {
+            retryLimits.put(tag, limit);
+        }
+    }
+
+    /**
+     * Starts writing a checkpoint in the background once the journal is full - must hold the store lock
+     */
+    private void checkpointIfFull() {
+        if (!journal.isFull() || journal.isCheckpointStarted()) {
+            return;
+        }
+
+        final SegmentLog.Checkpoint checkpoint = startCheckpoint();
+        checkpointer = new Thread("journal-checkpoint") {
+            @Override
+            public void run() {
+                boolean written = false;
+                try {
+                    journal.checkpoint(checkpoint);
+                    written = true;
+                } catch (IOException e) {
+                    //The journal is still complete - the next change tries again
+                    log.error("Failed to write journal checkpoint", e);
+                } finally {
+                    synchronized (JournalTaskStore.this) {
+                        checkpointer = null;
+                        if (written) {
+                            //Changes made while writing may have filled the journal again
+                            checkpointIfFull();
+                        }
+                        JournalTaskStore.this.notifyAll();
+                    }
+                }
+            }
+        };
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    /**
+     * Appends the record. Changes are written before they are made to the memory store - a change the journal did
+     * not take is not made at all.
+     * @return position of the record
+     */
+    private long write(Record record) {
+        try {
+            return journal.append(record.bytes());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Appends the records in order
+     * @return position of the last record - or 0 if there were none
+     */
+    private long write(List<Record> records) {
+        long position = 0;
+        for (Record record : records) {
+            position = write(record);
+        }
+        return position;
+    }
+
+    private void await(long position) {
+        if (!waitForSync || position < 1) {
+            return;
+        }
+
+        try {
+            journal.sync(position);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void apply(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        switch (type) {
+            case QUEUE:
+                Task queued = readTask(in);
+                forget(queued.getId());
+                memStore.queue(queued);
+                break;
+            case RUN:
+                Task running = readTask(in);
+                forget(running.getId());
+                memStore.queue(running);
+                memStore.run(running);
+                break;
+            case FAILED:
+                Task failed = readTask(in);
+                forget(failed.getId());
+                memStore.failed(failed);
+                break;
+            case REMOVE:
+                forget(new UUID(in.readLong(), in.readLong()));
+                break;
+            case CANCEL:
+                memStore.cancelByReference(in.readUTF());
+                break;
+            case RATE_LIMIT:
+                memStore.setRateLimit(in.readUTF(), in.readInt());
+                break;
+            case RETRY_LIMIT:
+                setRetryLimit(in.readUTF(), in.readInt());
+                break;
+            case DURATION:
+                String durationType = in.readUTF();
+                memStore.addTaskTypeDuration(durationType, in.readLong());
+                estimatedTypes.add(durationType);
+                break;
+            case ESTIMATE:
+                String estimateType = in.readUTF();
+                memStore.setTaskTypeEstimate(estimateType, in.readLong());
+                estimatedTypes.add(estimateType);
+                break;
+            case DICTIONARY:
+                TagDictionary dictionary = memStore.getDictionary();
+                int size = in.readInt();
+                for (int i = 0; i < size; i++) {
+                    int id = in.readInt();
+                    try {
+                        dictionary.put(in.readUTF(), id);
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException("Journal dictionary does not match the known tags", e);
+                    }
+                }
+                break;
+            default:
+                throw new IOException(String.format("Unknown journal record type: %s", (char) type));
+        }
+    }
+
+    /**
+     * Removes the task from the memory store - if it is there
+     */
+    private void forget(UUID id) {
+        if (memStore.get(id) != null) {
+            memStore.remove(id);
+        }
+    }
+
+    private Task readTask(DataInputStream in) throws IOException {
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        return documentSerializer.deserialize(new String(content, UTF8), taskClass);
+    }
+
+    private Record record(byte type) {
+        return new Record(type);
+    }
+
+    private final class Record {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(buffer);
+
+        private Record(byte type) {
+            buffer.write(type);
+        }
+
+        private Record task(Task task) {
+            try {
+                byte[] content = documentSerializer.serialize(task).getBytes(UTF8);
+                out.writeInt(content.length);
+                out.write(content);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return this;
+        }
+
+        private Record dictionary(TagDictionary dictionary) {
+            String[] tags = dictionary.toArray();
+            try {
+                out.writeInt(tags.length - Collections.frequency(Arrays.asList(tags), null));
+                for (int id = 0; id < tags.length; id++) {
+                    if (tags[id] != null) {
+                        out.writeInt(id);
+                        out.writeUTF(tags[id]);
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return this;
+        }
+
+        private Record id(UUID id) {
+            try {
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return this;
+        }
+
+        private Record string(String value) {
+            try {
+                out.writeUTF(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return this;
+        }
+
+        private Record integer(int value) {
+            try {
+                out.writeInt(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return this;
+        }
+
+        private Record number(long value) {
+            try {
+                out.writeLong(value);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return this;
+        }
+
+        private byte[] bytes() {
+            return buffer.toByteArray();
+        }
+    }
+}
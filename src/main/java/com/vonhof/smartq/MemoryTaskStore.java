@@ -3,34 +3,60 @@ package com.vonhof.smartq;
 import com.vonhof.smartq.Task.State;
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 
 public class MemoryTaskStore implements TaskStore {
     private static final Logger log = Logger.getLogger(MemoryTaskStore.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private final Map<UUID, Task> tasks = new ConcurrentHashMap<>();
-    private final List<Task> queuedTasks = new LinkedList<Task>();
-    private final List<Task> runningTasks = new LinkedList<Task>();
-    private final List<Task> failedTasks = new LinkedList<Task>();
+    private final Map<UUID, TaskHeader> queuedHeaders = new ConcurrentHashMap<>();
+    private final Map<UUID, TaskHeader> runningHeaders = new ConcurrentHashMap<>();
+    private final TaskIndex queuedTasks = new TaskIndex();
+    private final TaskIndex runningTasks = new TaskIndex();
+    private final Map<Integer, TaskIndex> queuedTasksByTag = new ConcurrentHashMap<>();
+    private final Map<Integer, TaskIndex> runningTasksByTag = new ConcurrentHashMap<>();
+    private final Map<Integer, TaskIndex> queuedTasksByRateLimit = new ConcurrentHashMap<>();
+    private final TaskIndex queuedTasksWithoutRateLimit = new TaskIndex();
+    /**
+     * The rate limit buckets of each tag - by tag id, then by bucket with -1 for tasks without a rate limit
+     */
+    private final Map<Integer, Map<Integer, TaskIndex>> queuedTasksByTagAndRateLimit = new ConcurrentHashMap<>();
+    private final Queue<Task> failedTasks = new ConcurrentLinkedQueue<Task>();
     private final ReferenceMap referenceMap = new ReferenceMap();
 
-    private final CountMap<String> runningTypeCount = new CountMap<>();
-    private final CountMap<String> queuedTypeCount = new CountMap<>();
+    private final TagCountMap runningTypeCount = new TagCountMap();
+    private final TagCountMap queuedTypeCount = new TagCountMap();
     private EstimateMap<String> typeEstimate = new EstimateMap<>();
 
 
-    private final CountMap<String> runningGroupCount = new CountMap<>();
-    private final CountMap<String> queuedGroupCount = new CountMap<>();
+    private final TagCountMap runningGroupCount = new TagCountMap();
+    private final TagCountMap queuedGroupCount = new TagCountMap();
 
     private final Map<String, Integer> taskTagRateLimits = new HashMap<>();
     private final Map<String, Integer> taskTagRetryLimits = new HashMap<>();
 
+    /**
+     * Ids of the tags, types and groups in the task headers and counts
+     */
+    private TagDictionary dictionary = new TagDictionary();
+    private int[] tagRateLimits = new int[0];
+    private int defaultRateLimit = 0;
+
+
+    private final Map<UUID, Payload> payloads = new ConcurrentHashMap<>();
+    private PayloadStore payloadStore;
+    private DocumentSerializer documentSerializer = new JacksonDocumentSerializer();
 
     private final Lock lock = new ReentrantLock();
+    private final TaskWaiters waiters = new TaskWaiters();
 
     private ThreadLocal<UUID> localTID = new ThreadLocal<UUID>() {
         @Override
@@ -46,13 +72,24 @@ public class MemoryTaskStore implements TaskStore {
             @Override
             public Object call() throws Exception {
                 tasks.clear();
+                queuedHeaders.clear();
+                runningHeaders.clear();
                 queuedTasks.clear();
                 runningTasks.clear();
+                queuedTasksByTag.clear();
+                runningTasksByTag.clear();
+                queuedTasksByRateLimit.clear();
+                queuedTasksWithoutRateLimit.clear();
+                queuedTasksByTagAndRateLimit.clear();
                 failedTasks.clear();
                 runningTypeCount.clear();
                 queuedTypeCount.clear();
                 runningGroupCount.clear();
                 queuedGroupCount.clear();
+                payloads.clear();
+                if (payloadStore != null) {
+                    payloadStore.clear();
+                }
                 return null;
             }
         });
@@ -60,6 +97,42 @@ public class MemoryTaskStore implements TaskStore {
 
 
 
+    public TagDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Uses the dictionary of another store for the ids of tags, types and groups - so the ids are the same in both.
+     * Must be set before tasks are queued.
+     * @param dictionary
+     */
+    public synchronized void setDictionary(TagDictionary dictionary) {
+        this.dictionary = dictionary;
+        rebuildRateLimitBuckets();
+    }
+
+    public PayloadStore getPayloadStore() {
+        return payloadStore;
+    }
+
+    /**
+     * Keeps the data of queued tasks off the heap in the payload store. The store then keeps a copy of the queued
+     * task without its data - the data is put back when the task is run. Queued tasks read from the store have no
+     * data - use withData to get it. Must be set before tasks are queued.
+     * @param payloadStore
+     */
+    public void setPayloadStore(PayloadStore payloadStore) {
+        this.payloadStore = payloadStore;
+    }
+
+    /**
+     * Serializes the data of tasks kept in the payload store
+     * @param documentSerializer
+     */
+    public void setDocumentSerializer(DocumentSerializer documentSerializer) {
+        this.documentSerializer = documentSerializer;
+    }
+
     /**
      * Limit the throughput of a specific tag ( e.g. how many tasks of the given tag that may be processed
      * concurrently )
@@ -67,13 +140,17 @@ public class MemoryTaskStore implements TaskStore {
      * @param limit
      */
     @Override
-    public final void setRateLimit(String tag, int limit) {
+    public final synchronized void setRateLimit(String tag, int limit) {
+        Integer previous;
         if (limit < 1) {
-            taskTagRateLimits.remove(tag);
+            previous = taskTagRateLimits.remove(tag);
         } else {
-            taskTagRateLimits.put(tag, limit);
+            previous = taskTagRateLimits.put(tag, limit);
         }
 
+        if (previous == null ? limit > 0 : previous != limit) {
+            rebuildRateLimitBuckets();
+        }
     }
 
     @Override
@@ -81,6 +158,20 @@ public class MemoryTaskStore implements TaskStore {
         return new CountMap<>(taskTagRateLimits);
     }
 
+    /**
+     * Tags without a rate limit of their own are bucketed by this limit - so tasks held back by it are skipped as a
+     * whole too.
+     * @param limit
+     */
+    @Override
+    public synchronized void setDefaultRateLimit(int limit) {
+        limit = Math.max(0, limit);
+        if (limit != defaultRateLimit) {
+            defaultRateLimit = limit;
+            rebuildRateLimitBuckets();
+        }
+    }
+
     /**
      * Gets the max allowed concurrent tasks for a given tag. Returns -1 if no limit is specified.
      * @param tag
@@ -121,34 +212,25 @@ public class MemoryTaskStore implements TaskStore {
 
 
     @Override
-    public synchronized Task get(UUID id) {
+    public Task get(UUID id) {
         return tasks.get(id);
     }
 
     @Override
     public synchronized void remove(Task task) {
+        freePayload(task.getId());
         tasks.remove(task.getId());
         referenceMap.remove(task);
-        boolean queuedRemoved = queuedTasks.remove(task);
-        boolean runningRemoved = runningTasks.remove(task);
 
-        if (runningRemoved) {
-            runningGroupCount.decrement(task.getGroup(), 1);
+        TaskHeader queued = queuedHeaders.remove(task.getId());
+        if (queued != null) {
+            unindexQueued(queued);
         }
 
-        if (queuedRemoved) {
-            queuedGroupCount.decrement(task.getGroup(), 1);
+        TaskHeader running = runningHeaders.remove(task.getId());
+        if (running != null) {
+            unindexRunning(running);
         }
-
-        for(String tag : (Set<String>)task.getTagSet()) {
-            if (runningRemoved) {
-                runningTypeCount.decrement(tag, 1);
-            }
-            if (queuedRemoved) {
-                queuedTypeCount.decrement(tag,1);
-            }
-        }
-        
     }
 
     @Override
@@ -160,53 +242,79 @@ public class MemoryTaskStore implements TaskStore {
     public synchronized void queue(Task ... tasks) {
         for(Task task : tasks) {
             task.setState(State.PENDING);
+            task = storePayload(task);
             this.tasks.put(task.getId(), task);
-            referenceMap.add(task);
-            queuedGroupCount.increment(task.getGroup(), 1);
 
-            for(String tag : (Set<String>) task.getTagSet()) {
-                queuedTypeCount.increment(tag,1);
+            TaskHeader header = header(task);
+            TaskHeader old = queuedHeaders.put(task.getId(), header);
+            if (old != null) {
+                //Already queued - moves to the back of its priority
+                unindexQueued(old);
+            } else {
+                referenceMap.add(task);
             }
+            indexQueued(header);
         }
-
-        queuedTasks.addAll(Arrays.asList(tasks));
-        sort(queuedTasks);
     }
 
     @Override
-    public synchronized void run(Task task) {
-        task.setState(State.RUNNING);
-        boolean queuedRemoved = queuedTasks.remove(task);
-        runningTasks.add(task);
+    public synchronized void run(Task ... tasks) {
+        for(Task task : tasks) {
+            run(task);
+        }
+    }
 
-        if (queuedRemoved) {
-            queuedGroupCount.decrement(task.getGroup(), 1);
+    @Override
+    public synchronized List<Task> claim(Task ... tasks) {
+        List<Task> out = new ArrayList<>(tasks.length);
+        for(Task task : tasks) {
+            if (queuedHeaders.containsKey(task.getId())) {
+                task.setStarted(WatchProvider.currentTime());
+                run(task);
+                out.add(task);
+            }
         }
+        return out;
+    }
 
-        runningGroupCount.increment(task.getGroup(), 1);
+    /**
+     * Whether the task is queued - i.e. would be claimed by claim
+     * @param id
+     * @return
+     */
+    public synchronized boolean isQueued(UUID id) {
+        return queuedHeaders.containsKey(id);
+    }
 
-        for(String tag : (Set<String>)task.getTagSet()) {
-            if (queuedRemoved) {
-                queuedTypeCount.decrement(tag, 1);
-            }
+    private void run(Task task) {
+        task.setState(State.RUNNING);
+        loadPayload(task);
 
-            runningTypeCount.increment(tag,1);
+        TaskHeader queued = queuedHeaders.remove(task.getId());
+        if (queued != null) {
+            unindexQueued(queued);
         }
 
-        sort(runningTasks);
+        TaskHeader header = header(task);
+        TaskHeader old = runningHeaders.put(task.getId(), header);
+        if (old != null) {
+            unindexRunning(old);
+        }
+        indexRunning(header);
     }
 
     @Override
     public synchronized void failed(Task task) {
         task.setState(State.ERROR);
+        loadPayload(task);
         remove(task);
         tasks.put(task.getId(),task);
         failedTasks.add(task);
     }
 
     @Override
-    public synchronized Iterator<Task> getFailed() {
-        return Collections.unmodifiableList(new LinkedList<Task>(failedTasks)).iterator();
+    public Iterator<Task> getFailed() {
+        return Collections.unmodifiableCollection(failedTasks).iterator();
     }
 
 
@@ -226,49 +334,52 @@ public class MemoryTaskStore implements TaskStore {
     @Override
     public synchronized void cancelByReference(String referenceId) {
         referenceMap.removeRef(referenceId);
-        Iterator<Task> iterator = queuedTasks.iterator();
+        Iterator<TaskHeader> iterator = queuedTasks.headers();
         while(iterator.hasNext()) {
-            Task task = iterator.next();
+            TaskHeader header = iterator.next();
+            Task task = header.getTask();
             if (referenceId.equals(task.getReferenceId())) {
+                freePayload(task.getId());
                 tasks.remove(task.getId());
-                iterator.remove();
-
-                queuedGroupCount.decrement(task.getGroup(), 1);
-
-                for(String tag : (Set<String>)task.getTagSet()) {
-                    queuedTypeCount.decrement(tag,1);
-                }
+                queuedHeaders.remove(task.getId());
+                unindexQueued(header);
             }
         }
 
-        Iterator<Task> runIterator = runningTasks.iterator();
+        Iterator<TaskHeader> runIterator = runningTasks.headers();
         while(runIterator.hasNext()) {
-            Task runningTask = runIterator.next();
+            TaskHeader header = runIterator.next();
+            Task runningTask = header.getTask();
             if (referenceId.equals(runningTask.getReferenceId())) {
                 tasks.remove(runningTask.getId());
-                runIterator.remove();
-
-                runningGroupCount.decrement(runningTask.getGroup(), 1);
-
-                for(String tag : (Set<String>)runningTask.getTagSet()) {
-                    runningTypeCount.decrement(tag,1);
-                }
+                runningHeaders.remove(runningTask.getId());
+                unindexRunning(header);
             }
         }
     }
 
+    /**
+     * The task iterators read straight from the indexes without copying them. They are weakly consistent - tasks
+     * added or removed while iterating may or may not be seen. A task queued again while iterating gets a new place
+     * further back, so it can be returned twice - and a task claimed while getPending is iterating can be returned
+     * twice or not at all. Fine for estimates and listings - not where every task must be seen exactly once.
+     */
     @Override
-    public synchronized Iterator<Task> getQueued() {
-        return Collections.unmodifiableList(new LinkedList<Task>(queuedTasks)).iterator();
+    public Iterator<Task> getQueued() {
+        return Collections.unmodifiableCollection(queuedTasks).iterator();
     }
 
+    /**
+     * Running tasks, then queued tasks. The size is counted when the iterator is created - it may not match the
+     * amount of tasks iterated.
+     */
     @Override
-    public synchronized ParallelIterator<Task> getPending() {
+    public ParallelIterator<Task> getPending() {
         return new CombinedIterator<Task>(runningCount() + queueSize(),getRunning(), getQueued());
     }
 
     @Override
-    public synchronized ParallelIterator<Task> getPending(String tag) {
+    public ParallelIterator<Task> getPending(String tag) {
         return new CombinedIterator(runningCount(tag) + queueSize(tag), getRunning(tag), getQueued(tag));
     }
 
@@ -289,93 +400,217 @@ public class MemoryTaskStore implements TaskStore {
 
     @Override
     public void close() throws Exception {
+        if (payloadStore != null) {
+            payloadStore.close();
+        }
+    }
+
+    /**
+     * Gets a copy of the task with its data - if the data is kept in the payload store. Otherwise the task itself.
+     * @param task
+     * @return
+     */
+    public synchronized Task withData(Task task) {
+        Payload payload = payloads.get(task.getId());
+        if (payload == null) {
+            return task;
+        }
 
+        Task out = task.copy();
+        out.setData(readPayload(payload));
+        return out;
     }
 
+    /**
+     * Moves the data of the task to the payload store
+     * @return the task to keep in the store - a copy without data if the data was moved
+     */
+    private Task storePayload(Task task) {
+        if (payloadStore == null || task.getData() == null) {
+            //Queued again without data - e.g. the copy from the store - keeps its data in the payload store
+            return task;
+        }
+
+        freePayload(task.getId());
 
-    @Override
-    public Iterator<Task> getQueued(String type) {
-        List<Task> out = new LinkedList<Task>();
-        for(Task task : queuedTasks) {
-            if (task.getTags().containsKey(type)) {
-                out.add(task);
+        try {
+            byte[] content = documentSerializer.serialize(task.getData()).getBytes(UTF8);
+            long address = payloadStore.put(content);
+            if (address < 0) {
+                //Payload store is full - keep the data on the heap
+                return task;
             }
+            payloads.put(task.getId(), new Payload(address, content.length, task.getData().getClass()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        //The caller keeps its task with data
+        Task out = task.copy();
+        out.setData(null);
+        return out;
+    }
+
+    /**
+     * Puts the data of the task back from the payload store - onto the task given and the one kept in the store
+     */
+    private void loadPayload(Task task) {
+        Payload payload = payloads.remove(task.getId());
+        if (payload == null) {
+            return;
+        }
+
+        Object data = readPayload(payload);
+        payloadStore.free(payload.address, payload.length);
+
+        task.setData(data);
+        Task stored = tasks.get(task.getId());
+        if (stored != null && stored != task) {
+            stored.setData(data);
+        }
+    }
+
+    private void freePayload(UUID id) {
+        Payload payload = payloads.remove(id);
+        if (payload != null) {
+            payloadStore.free(payload.address, payload.length);
+        }
+    }
+
+    private Object readPayload(Payload payload) {
+        try {
+            byte[] content = payloadStore.get(payload.address, payload.length);
+            return documentSerializer.deserialize(new String(content, UTF8), payload.type);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
+
 
-        sort(out);
-        return Collections.unmodifiableList(out).iterator();
+    @Override
+    public Iterator<Task> getQueued(String type) {
+        return Collections.unmodifiableCollection(getTagIndex(queuedTasksByTag, type)).iterator();
     }
 
+    /**
+     * Iterates the ids of the queued tasks directly from the queue index. Only the ids that are actually read
+     * are visited - so finding the first queued task is O(1).
+     */
     @Override
     public Iterator<UUID> getQueuedIds() {
-        List<UUID> out = new LinkedList<UUID>();
-        Iterator<Task> queued = getQueued();
-        while(queued.hasNext()) {
-            out.add(queued.next().getId());
-        }
-        return out.iterator();
+        return new TaskIdIterator(queuedTasks.headers());
     }
 
     @Override
     public Iterator<UUID> getQueuedIds(String type) {
-        List<UUID> out = new LinkedList<UUID>();
-        Iterator<Task> queued = getQueued(type);
-        while(queued.hasNext()) {
-            out.add(queued.next().getId());
+        TaskIndex index = type != null ? queuedTasksByTag.get(dictionary.indexOf(type)) : null;
+        if (index == null) {
+            return Collections.<UUID>emptyList().iterator();
         }
-        return out.iterator();
-    }
-
-    public synchronized Iterator<Task> getRunning() {
-        return Collections.unmodifiableList(new LinkedList<Task>(runningTasks)).iterator();
+        return new TaskIdIterator(index.headers());
     }
 
+    /**
+     * Queued tasks are also bucketed by their most restrictive rate limited tag - overall and within each tag. Buckets
+     * for excluded tags are skipped as a whole and the heads of the remaining buckets are merged - so tasks whose
+     * bucket is a saturated rate limit are never visited. Tasks held back by one of their less restrictive tags are
+     * still visited and skipped.
+     */
     @Override
-    public Iterator<Task> getRunning(String type) {
-        List<Task> out = new LinkedList<Task>();
-        for(Task task : runningTasks) {
-            if (task.getTags().containsKey(type)) {
-                out.add(task);
+    public Iterator<UUID> getQueuedIds(String type, Set<String> excludedTags) {
+        if (excludedTags == null || excludedTags.isEmpty()) {
+            return type != null ? getQueuedIds(type) : getQueuedIds();
+        }
+
+        int[] excludedTagIds = getTagIds(excludedTags);
+
+        List<TaskIndex> buckets = new ArrayList<>();
+        if (type != null) {
+            Map<Integer, TaskIndex> tagBuckets = queuedTasksByTagAndRateLimit.get(dictionary.indexOf(type));
+            if (tagBuckets == null || excludedTags.contains(type)) {
+                return Collections.<UUID>emptyList().iterator();
+            }
+            for(Map.Entry<Integer, TaskIndex> entry : tagBuckets.entrySet()) {
+                if (!contains(excludedTagIds, entry.getKey())) {
+                    buckets.add(entry.getValue());
+                }
+            }
+        } else {
+            buckets.add(queuedTasksWithoutRateLimit);
+            for(Map.Entry<Integer, TaskIndex> entry : queuedTasksByRateLimit.entrySet()) {
+                if (!contains(excludedTagIds, entry.getKey())) {
+                    buckets.add(entry.getValue());
+                }
             }
         }
 
-        sort(out);
-        return Collections.unmodifiableList(out).iterator();
+        return new TaskIdIterator(new ExcludingIterator(TaskIndex.merge(buckets), excludedTagIds));
+    }
+
+    public Iterator<Task> getRunning() {
+        return Collections.unmodifiableCollection(runningTasks).iterator();
     }
 
     @Override
-    public synchronized long queueSize() {
+    public Iterator<Task> getRunning(String type) {
+        return Collections.unmodifiableCollection(getTagIndex(runningTasksByTag, type)).iterator();
+    }
+
+    @Override
+    public long queueSize() {
         return queuedTasks.size();
     }
 
     @Override
-    public synchronized long runningCount() {
+    public long runningCount() {
         return runningTasks.size();
     }
 
     @Override
      public long queueSize(String type) {
-        return queuedTypeCount.get(type);
+        return type != null ? queuedTypeCount.get(dictionary.indexOf(type)) : 0;
     }
 
     @Override
     public long runningCount(String type) {
-        return runningTypeCount.get(type);
+        return type != null ? runningTypeCount.get(dictionary.indexOf(type)) : 0;
+    }
+
+    @Override
+    public CountMap<String> getRunningCounts() {
+        CountMap<String> out = new CountMap<>();
+        for(Map.Entry<Integer, TaskIndex> entry : runningTasksByTag.entrySet()) {
+            int count = entry.getValue().size();
+            if (count > 0) {
+                out.set(dictionary.tagOf(entry.getKey()), count);
+            }
+        }
+        return out;
     }
 
     @Override
     public long queueSizeForGroup(String group) {
-        return queuedGroupCount.get(group);
+        return group != null ? queuedGroupCount.get(dictionary.indexOf(group)) : 0;
     }
 
     @Override
     public long runningCountForGroup(String type) {
-        return runningGroupCount.get(type);
+        return type != null ? runningGroupCount.get(dictionary.indexOf(type)) : 0;
     }
 
+    /**
+     * Gets the tags of the queued and running tasks
+     */
     @Override
     public Set<String> getTags() {
-        return Collections.unmodifiableSet(queuedTypeCount.keySet());
+        Set<String> out = new HashSet<>();
+        int size = dictionary.size();
+        for(int id = 0; id < size; id++) {
+            if (queuedTypeCount.get(id) > 0 || runningTypeCount.get(id) > 0) {
+                out.add(dictionary.tagOf(id));
+            }
+        }
+        return out;
     }
 
     @Override
@@ -405,29 +640,313 @@ public class MemoryTaskStore implements TaskStore {
     }
 
     @Override
-    public synchronized void waitForChange() throws InterruptedException {
+    public void waitForChange() throws InterruptedException {
         log.debug("Waiting for change");
-        this.wait();
+        TaskWaiters.Waiter waiter = waiters.register(null);
+        try {
+            waiter.await(null);
+        } finally {
+            waiters.unregister(waiter);
+        }
     }
 
     @Override
-    public synchronized void signalChange() {
+    public void signalChange() {
         log.debug("Signalling change");
-        this.notifyAll();
+        waiters.signalAll();
     }
 
+    @Override
+    public void signalChange(TaskWaiters.Change change, Set<String> tags) {
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Signalling change: %s %s", change, tags));
+        }
+        waiters.signal(change, tags);
+    }
 
-    private void sort(List<Task> tasks) {
-        Collections.sort(tasks,new Comparator<Task>() {
-            @Override
-            public int compare(Task t, Task t2) {
-                int diffPrio = t2.getPriority()-t.getPriority();
-                if (diffPrio == 0) {
-                    return (int) ( (t.getCreated() / 1000L) - (t2.getCreated() / 1000L) );
+    @Override
+    public TaskWaiters getWaiters() {
+        return waiters;
+    }
+
+    private Collection<Task> getTagIndex(Map<Integer, TaskIndex> tagIndex, String tag) {
+        TaskIndex index = tag != null ? tagIndex.get(dictionary.indexOf(tag)) : null;
+        if (index == null) {
+            return Collections.emptyList();
+        }
+        return index;
+    }
+
+    /**
+     * Creates the header to index the task by
+     */
+    private TaskHeader header(Task task) {
+        Set<String> tags = task.getTagSet();
+        int[] tagIds = new int[tags.size()];
+        int i = 0;
+        for(String tag : tags) {
+            if (tag != null) {
+                tagIds[i++] = dictionary.intern(tag);
+            }
+        }
+        if (i < tagIds.length) {
+            tagIds = Arrays.copyOf(tagIds, i);
+        }
+
+        return new TaskHeader(task, tagIds,
+                task.getType() != null ? dictionary.intern(task.getType()) : -1,
+                dictionary.intern(task.getGroup()));
+    }
+
+    /**
+     * Gets the ids of the known tags among the given tags
+     */
+    private int[] getTagIds(Set<String> tags) {
+        int[] out = new int[tags.size()];
+        int i = 0;
+        for(String tag : tags) {
+            int id = tag != null ? dictionary.indexOf(tag) : -1;
+            if (id > -1) {
+                out[i++] = id;
+            }
+        }
+        return i < out.length ? Arrays.copyOf(out, i) : out;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for(int i : ids) {
+            if (i == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void indexQueued(TaskHeader header) {
+        queuedTasks.add(header);
+        addToRateLimitBucket(header);
+        queuedGroupCount.increment(header.getGroupId(), 1);
+        for(int tagId : header.getTagIds()) {
+            queuedTypeCount.increment(tagId, 1);
+            addToTagIndex(queuedTasksByTag, tagId, header);
+        }
+    }
+
+    private void unindexQueued(TaskHeader header) {
+        queuedTasks.remove(header);
+        removeFromRateLimitBucket(header);
+        queuedGroupCount.decrement(header.getGroupId(), 1);
+        for(int tagId : header.getTagIds()) {
+            queuedTypeCount.decrement(tagId, 1);
+            removeFromTagIndex(queuedTasksByTag, tagId, header);
+        }
+    }
+
+    private void indexRunning(TaskHeader header) {
+        runningTasks.add(header);
+        runningGroupCount.increment(header.getGroupId(), 1);
+        for(int tagId : header.getTagIds()) {
+            runningTypeCount.increment(tagId, 1);
+            addToTagIndex(runningTasksByTag, tagId, header);
+        }
+    }
+
+    private void unindexRunning(TaskHeader header) {
+        runningTasks.remove(header);
+        runningGroupCount.decrement(header.getGroupId(), 1);
+        for(int tagId : header.getTagIds()) {
+            runningTypeCount.decrement(tagId, 1);
+            removeFromTagIndex(runningTasksByTag, tagId, header);
+        }
+    }
+
+    private void addToTagIndex(Map<Integer, TaskIndex> tagIndex, int tagId, TaskHeader header) {
+        TaskIndex index = tagIndex.get(tagId);
+        if (index == null) {
+            index = new TaskIndex();
+            tagIndex.put(tagId, index);
+        }
+        index.add(header);
+    }
+
+    private void removeFromTagIndex(Map<Integer, TaskIndex> tagIndex, int tagId, TaskHeader header) {
+        TaskIndex index = tagIndex.get(tagId);
+        if (index == null) {
+            return;
+        }
+        index.remove(header);
+        if (index.isEmpty()) {
+            tagIndex.remove(tagId);
+        }
+    }
+
+    /**
+     * The rate limit bucket of a task is its tag with the lowest rate limit - its own or the default - or -1 if none
+     * of its tags are limited.
+     */
+    private int getRateLimitBucket(TaskHeader header) {
+        int bucket = -1;
+        int bucketLimit = -1;
+        for(int tagId : header.getTagIds()) {
+            int limit = tagId < tagRateLimits.length ? tagRateLimits[tagId] : 0;
+            if (limit < 1) {
+                limit = defaultRateLimit;
+            }
+            if (limit < 1) {
+                continue;
+            }
+
+            if (bucket == -1 ||
+                    limit < bucketLimit ||
+                    (limit == bucketLimit && dictionary.tagOf(tagId).compareTo(dictionary.tagOf(bucket)) < 0)) {
+                bucket = tagId;
+                bucketLimit = limit;
+            }
+        }
+        return bucket;
+    }
+
+    private void addToRateLimitBucket(TaskHeader header) {
+        int bucket = getRateLimitBucket(header);
+        header.setBucketId(bucket);
+        if (bucket == -1) {
+            queuedTasksWithoutRateLimit.add(header);
+        } else {
+            addToTagIndex(queuedTasksByRateLimit, bucket, header);
+        }
+
+        for(int tagId : header.getTagIds()) {
+            Map<Integer, TaskIndex> tagBuckets = queuedTasksByTagAndRateLimit.get(tagId);
+            if (tagBuckets == null) {
+                tagBuckets = new ConcurrentHashMap<>();
+                queuedTasksByTagAndRateLimit.put(tagId, tagBuckets);
+            }
+            addToTagIndex(tagBuckets, bucket, header);
+        }
+    }
+
+    private void removeFromRateLimitBucket(TaskHeader header) {
+        int bucket = header.getBucketId();
+        if (bucket == -1) {
+            queuedTasksWithoutRateLimit.remove(header);
+        } else {
+            removeFromTagIndex(queuedTasksByRateLimit, bucket, header);
+        }
+
+        for(int tagId : header.getTagIds()) {
+            Map<Integer, TaskIndex> tagBuckets = queuedTasksByTagAndRateLimit.get(tagId);
+            if (tagBuckets == null) {
+                continue;
+            }
+            removeFromTagIndex(tagBuckets, bucket, header);
+            if (tagBuckets.isEmpty()) {
+                queuedTasksByTagAndRateLimit.remove(tagId);
+            }
+        }
+    }
+
+    private void rebuildRateLimitBuckets() {
+        for(String tag : taskTagRateLimits.keySet()) {
+            dictionary.intern(tag);
+        }
+
+        int[] limits = new int[dictionary.size()];
+        for(Map.Entry<String, Integer> entry : taskTagRateLimits.entrySet()) {
+            limits[dictionary.indexOf(entry.getKey())] = entry.getValue();
+        }
+        tagRateLimits = limits;
+
+        queuedTasksByRateLimit.clear();
+        queuedTasksWithoutRateLimit.clear();
+        queuedTasksByTagAndRateLimit.clear();
+        Iterator<TaskHeader> headers = queuedTasks.headers();
+        while(headers.hasNext()) {
+            addToRateLimitBucket(headers.next());
+        }
+    }
+
+    private static class ExcludingIterator implements Iterator<TaskHeader> {
+        private final Iterator<TaskHeader> headers;
+        private final int[] excludedTagIds;
+        private TaskHeader next;
+
+        private ExcludingIterator(Iterator<TaskHeader> headers, int[] excludedTagIds) {
+            this.headers = headers;
+            this.excludedTagIds = excludedTagIds;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(next == null && headers.hasNext()) {
+                TaskHeader header = headers.next();
+                if (!isExcluded(header)) {
+                    next = header;
                 }
-                return diffPrio;
             }
-        });
+            return next != null;
+        }
+
+        private boolean isExcluded(TaskHeader header) {
+            for(int tagId : excludedTagIds) {
+                if (header.hasTag(tagId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public TaskHeader next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            TaskHeader out = next;
+            next = null;
+            return out;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Where the data of a queued task is kept in the payload store
+     */
+    private static class Payload {
+        private final long address;
+        private final int length;
+        private final Class type;
+
+        private Payload(long address, int length, Class type) {
+            this.address = address;
+            this.length = length;
+            this.type = type;
+        }
+    }
+
+    private static class TaskIdIterator implements Iterator<UUID> {
+        private final Iterator<TaskHeader> headers;
+
+        private TaskIdIterator(Iterator<TaskHeader> headers) {
+            this.headers = headers;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return headers.hasNext();
+        }
+
+        @Override
+        public UUID next() {
+            return headers.next().getTask().getId();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
     }
 
 }
@@ -0,0 +1,309 @@
+package com.vonhof.smartq;
+
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Keeps byte payloads off the heap in memory-mapped temporary files - the OS pages them out when memory is short.
+ *
+ * Payloads are appended to chunks of chunkSize bytes. The space of a freed payload goes to a free list - merged with
+ * free space next to it - and new payloads take the smallest free space they fit in before anything is appended. So
+ * a long-lived payload only holds on to its own bytes, not its whole chunk. A chunk is reset once all payloads in it
+ * have been freed. Payloads larger than a chunk get a chunk of their own.
+ */
+public class PayloadStore {
+    private static final Logger log = Logger.getLogger(PayloadStore.class);
+
+    private final File dir;
+    private final int chunkSize;
+    private final List<Chunk> chunks = new ArrayList<>();
+    //Free space of all chunks - smallest first
+    private final TreeSet<Extent> free = new TreeSet<>();
+    private Chunk current;
+    private long size = 0;
+    private long mappedSize = 0;
+    private volatile long maxMappedSize = Long.MAX_VALUE;
+
+    public PayloadStore() {
+        this(new File(System.getProperty("java.io.tmpdir")), 64 * 1024 * 1024);
+    }
+
+    /**
+     * @param dir directory for the mapped files
+     * @param chunkSize size of each mapped file
+     */
+    public PayloadStore(File dir, int chunkSize) {
+        this.dir = dir;
+        this.chunkSize = chunkSize;
+    }
+
+    public long getMaxMappedSize() {
+        return maxMappedSize;
+    }
+
+    /**
+     * Most bytes to map - once reached, payloads that do not fit in the mapped files are not stored.
+     * @param maxMappedSize
+     */
+    public void setMaxMappedSize(long maxMappedSize) {
+        this.maxMappedSize = maxMappedSize;
+    }
+
+    /**
+     * Copies the payload off the heap
+     * @param payload
+     * @return the address of the payload - or -1 if it does not fit without mapping more than maxMappedSize
+     */
+    public synchronized long put(byte[] payload) {
+        Chunk chunk;
+        int position;
+
+        Extent extent = payload.length > 0 ? free.ceiling(new Extent(null, -1, payload.length)) : null;
+        if (extent != null) {
+            chunk = extent.chunk;
+            position = extent.offset;
+            removeFree(extent);
+            if (extent.length > payload.length) {
+                addFree(new Extent(chunk, position + payload.length, extent.length - payload.length));
+            }
+        } else {
+            chunk = current;
+            if (chunk == null || chunk.position + payload.length > chunk.buffer.capacity()) {
+                chunk = nextChunk(payload.length);
+                if (chunk == null) {
+                    return -1;
+                }
+            }
+            position = chunk.position;
+            chunk.position += payload.length;
+        }
+
+        ByteBuffer buffer = chunk.buffer.duplicate();
+        buffer.position(position);
+        buffer.put(payload);
+
+        chunk.live++;
+        size += payload.length;
+        return ((long) chunk.index << 32) | position;
+    }
+
+    /**
+     * Copies the payload at the address back onto the heap
+     * @param address
+     * @param length
+     * @return
+     */
+    public synchronized byte[] get(long address, int length) {
+        Chunk chunk = chunks.get((int) (address >>> 32));
+        ByteBuffer buffer = chunk.buffer.duplicate();
+        buffer.position((int) address);
+        byte[] out = new byte[length];
+        buffer.get(out);
+        return out;
+    }
+
+    /**
+     * Frees the payload at the address - its space can be used by the next payloads that fit in it
+     * @param address
+     * @param length
+     */
+    public synchronized void free(long address, int length) {
+        Chunk chunk = chunks.get((int) (address >>> 32));
+        chunk.live--;
+        size -= length;
+        if (chunk.live == 0) {
+            reset(chunk);
+            return;
+        }
+
+        int offset = (int) address;
+        Map.Entry<Integer, Extent> before = chunk.free.floorEntry(offset);
+        if (before != null && before.getValue().offset + before.getValue().length == offset) {
+            removeFree(before.getValue());
+            offset = before.getValue().offset;
+            length += before.getValue().length;
+        }
+
+        Extent after = chunk.free.get(offset + length);
+        if (after != null) {
+            removeFree(after);
+            length += after.length;
+        }
+
+        if (chunk == current && offset + length == chunk.position) {
+            //Freed the end of what was appended - append there again
+            chunk.position = offset;
+        } else if (length > 0) {
+            addFree(new Extent(chunk, offset, length));
+        }
+    }
+
+    /**
+     * Bytes of payloads currently stored
+     * @return
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Bytes mapped for payloads - stored or free
+     * @return
+     */
+    public synchronized long mappedSize() {
+        return mappedSize;
+    }
+
+    /**
+     * Frees all payloads
+     */
+    public synchronized void clear() {
+        for (Chunk chunk : chunks) {
+            chunk.position = 0;
+            chunk.live = 0;
+            chunk.free.clear();
+        }
+        free.clear();
+        size = 0;
+    }
+
+    /**
+     * Deletes the mapped files. The mappings themselves go away when they are garbage collected.
+     */
+    public synchronized void close() {
+        for (Chunk chunk : chunks) {
+            try {
+                chunk.channel.close();
+            } catch (IOException e) {
+                log.warn(String.format("Failed to close payload file %s", chunk.file), e);
+            }
+            if (!chunk.file.delete()) {
+                log.warn(String.format("Failed to delete payload file %s", chunk.file));
+            }
+        }
+        chunks.clear();
+        free.clear();
+        current = null;
+        size = 0;
+        mappedSize = 0;
+    }
+
+    /**
+     * Moves on to an empty chunk - the rest of the current one goes to the free list
+     * @return null if a new chunk would map more than maxMappedSize
+     */
+    private Chunk nextChunk(int minSize) {
+        Chunk next = null;
+        for (Chunk chunk : chunks) {
+            if (chunk != current && chunk.live == 0 && chunk.buffer.capacity() >= minSize) {
+                next = chunk;
+                break;
+            }
+        }
+
+        if (next == null) {
+            int size = Math.max(chunkSize, minSize);
+            if (mappedSize + size > maxMappedSize) {
+                return null;
+            }
+            next = new Chunk(chunks.size(), size);
+            chunks.add(next);
+            mappedSize += size;
+        }
+
+        //An empty chunk is found as a whole instead
+        if (current != null && current.live > 0 && current.position < current.buffer.capacity()) {
+            addFree(new Extent(current, current.position, current.buffer.capacity() - current.position));
+            current.position = current.buffer.capacity();
+        }
+
+        current = next;
+        return next;
+    }
+
+    private void reset(Chunk chunk) {
+        for (Extent extent : chunk.free.values()) {
+            free.remove(extent);
+        }
+        chunk.free.clear();
+        chunk.position = 0;
+    }
+
+    private void addFree(Extent extent) {
+        free.add(extent);
+        extent.chunk.free.put(extent.offset, extent);
+    }
+
+    private void removeFree(Extent extent) {
+        free.remove(extent);
+        extent.chunk.free.remove(extent.offset);
+    }
+
+    /**
+     * Free space in a chunk. Ordered by length, then by where it is.
+     */
+    private static final class Extent implements Comparable<Extent> {
+        private final Chunk chunk;
+        private final int offset;
+        private final int length;
+
+        private Extent(Chunk chunk, int offset, int length) {
+            this.chunk = chunk;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Extent other) {
+            if (length != other.length) {
+                return length < other.length ? -1 : 1;
+            }
+            int index = chunk != null ? chunk.index : -1;
+            int otherIndex = other.chunk != null ? other.chunk.index : -1;
+            if (index != otherIndex) {
+                return index < otherIndex ? -1 : 1;
+            }
+            if (offset != other.offset) {
+                return offset < other.offset ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private final class Chunk {
+        private final int index;
+        private final File file;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int position = 0;
+        private int live = 0;
+        //Free space before position by offset
+        private final TreeMap<Integer, Extent> free = new TreeMap<>();
+
+        private Chunk(int index, int size) {
+            this.index = index;
+            try {
+                file = File.createTempFile("smartq-payloads", ".bin", dir);
+                file.deleteOnExit();
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.setLength(size);
+                channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to map payload file", e);
+            }
+        }
+    }
+}
@@ -9,12 +9,14 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.postgresql.PGConnection;
 import org.postgresql.PGNotification;
+import org.postgresql.copy.CopyIn;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PostgresTaskStore implements TaskStore {
 
@@ -24,39 +26,72 @@ public class PostgresTaskStore implements TaskStore {
     private final int STATE_RUNNING = 2;
     private final int STATE_ERROR = 3;
 
+    //Columns iterated queries must select - the queue position of each row is read from them
+    private static final String POSITION_COLUMNS = "task.state, task.priority, task.created, task.order";
+    private static final String TASK_COLUMNS = "task.id, task.content, " + POSITION_COLUMNS;
+    private static final String ID_COLUMNS = "task.id, " + POSITION_COLUMNS;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    //First byte of RAW content
+    private static final byte RAW_MARKER = 0;
+
+    //Postgres limits payloads to 8000 bytes - leaves room for multi byte characters
+    private static final int MAX_PAYLOAD_LENGTH = 2000;
+
+    //Delay before the listener connects again after losing its connection - doubled on every failed attempt
+    private static final long MIN_LISTEN_RETRY_DELAY = 100;
+    private static final long MAX_LISTEN_RETRY_DELAY = 10000;
+
+    /**
+     * How task content is written to the content column. Content in either format can always be read.
+     */
+    public static enum ContentFormat {
+        /**
+         * The serialized task as UTF-8 bytes after a zero byte - which marks the format, as it is never the first
+         * byte of Base64 content
+         */
+        RAW,
+        /**
+         * The serialized task as Base64 encoded UTF-8 bytes - a third larger than RAW. Only needed while older
+         * versions that can not read RAW content still use the table.
+         */
+        BASE64
+    }
+
     private final String url;  //jdbc:postgresql://host:port/database
     private final String username;
     private final String password;
     private String tableName = "queue";
     private volatile boolean closed = false;
+    private final TaskWaiters waiters = new TaskWaiters();
+    private final Map<Connection, Integer> backendPids = new ConcurrentHashMap<Connection, Integer>();
 
     private final ThreadLocal<PostgresClient> client = new ThreadLocal<PostgresClient>() {
         @Override
         protected PostgresClient initialValue() {
-            try {
-                PostgresClient client = new PostgresClient();
-                client.startListening();
-                return client;
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
-            }
+            startListening();
+            return new PostgresClient();
         }
-
-        @Override
-        public void remove() {
-            super.remove();
-            try {
-                this.get().close();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            }
-        }
-
     };
 
+    private volatile int readPoolSize = 8;
+    private volatile int writePoolSize = 4;
+    private volatile ConnectionPool readPool;
+    private volatile ConnectionPool writePool;
+    private Listener listener;
+    private final PendingNotifications pendingNotifications = new PendingNotifications();
+
     private final Class<Task> taskClass;
 
     private DocumentSerializer documentSerializer = new JacksonDocumentSerializer();
+    private volatile ContentFormat contentFormat = ContentFormat.RAW;
+    private volatile int copyThreshold = 1000;
+    private volatile boolean archiveFailed = true;
+    private volatile int prepareThreshold = 3;
+    private volatile int statementCacheSize = 64;
+    private final Map<Connection, StatementCache> statementCaches = new ConcurrentHashMap<Connection, StatementCache>();
+    private final Dictionary dictionary = new Dictionary();
 
 
     public PostgresTaskStore(Class<Task> taskClass) throws SQLException {
@@ -78,18 +113,231 @@ public class PostgresTaskStore implements TaskStore {
         this.tableName = tableName;
     }
 
+    public ContentFormat getContentFormat() {
+        return contentFormat;
+    }
+
+    /**
+     * Format to write task content in. Existing content is left as is - see migrateContent.
+     * @param contentFormat
+     */
+    public void setContentFormat(ContentFormat contentFormat) {
+        this.contentFormat = contentFormat;
+    }
+
+    public boolean isArchiveFailed() {
+        return archiveFailed;
+    }
+
+    /**
+     * Move failed tasks to the archive table - <table>_failed - so the task table only holds queued and running
+     * tasks. When off failed tasks stay in the task table. getFailed reads from the archive while on.
+     * @param archiveFailed
+     */
+    public void setArchiveFailed(boolean archiveFailed) {
+        this.archiveFailed = archiveFailed;
+    }
+
+    public int getCopyThreshold() {
+        return copyThreshold;
+    }
+
+    /**
+     * Submits of at least this many tasks are written with COPY instead of batched inserts.
+     * @param copyThreshold
+     */
+    public void setCopyThreshold(int copyThreshold) {
+        this.copyThreshold = copyThreshold;
+    }
+
+    public int getPrepareThreshold() {
+        return prepareThreshold;
+    }
+
+    /**
+     * Amount of times a cached statement is executed before the driver prepares it on the server. Must be set
+     * before connecting.
+     * @param prepareThreshold
+     */
+    public void setPrepareThreshold(int prepareThreshold) {
+        this.prepareThreshold = prepareThreshold;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Max amount of prepared statements kept open per connection. Must be set before connecting.
+     * @param statementCacheSize
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getReadPoolSize() {
+        return readPoolSize;
+    }
+
+    /**
+     * Max amount of connections used for queries outside transactions. Must be set before connecting.
+     * @param readPoolSize
+     */
+    public void setReadPoolSize(int readPoolSize) {
+        this.readPoolSize = readPoolSize;
+    }
+
+    public int getWritePoolSize() {
+        return writePoolSize;
+    }
+
+    /**
+     * Max amount of connections used for changes. A thread keeps its write connection for the whole of a
+     * transaction. Must be set before connecting.
+     * @param writePoolSize
+     */
+    public void setWritePoolSize(int writePoolSize) {
+        this.writePoolSize = writePoolSize;
+    }
+
     public void connect() {
         client.get();
     }
 
+    private ConnectionPool readPool() {
+        if (readPool == null) {
+            createPools();
+        }
+        return readPool;
+    }
+
+    private ConnectionPool writePool() {
+        if (writePool == null) {
+            createPools();
+        }
+        return writePool;
+    }
+
+    private synchronized void createPools() {
+        if (readPool != null) {
+            return;
+        }
+
+        writePool = new ConnectionPool("write", writePoolSize) {
+            @Override
+            protected Connection newConnection() throws SQLException {
+                return newPooledConnection();
+            }
+
+            @Override
+            protected void onClose(Connection connection) {
+                closeStatements(connection);
+                backendPids.remove(connection);
+            }
+        };
+
+        readPool = new ConnectionPool("read", readPoolSize) {
+            @Override
+            protected Connection newConnection() throws SQLException {
+                return newPooledConnection();
+            }
+
+            @Override
+            protected void onClose(Connection connection) {
+                closeStatements(connection);
+                backendPids.remove(connection);
+            }
+        };
+    }
+
+    private Connection newPooledConnection() throws SQLException {
+        Connection connection = newConnection();
+        connection.setAutoCommit(true);
+        ((PGConnection) connection).setPrepareThreshold(prepareThreshold);
+        backendPids.put(connection, backendPid(connection));
+        return connection;
+    }
+
+    /**
+     * Gets the cached statements of a pooled connection
+     */
+    private StatementCache statements(Connection connection) {
+        StatementCache cache = statementCaches.get(connection);
+        if (cache == null) {
+            cache = new StatementCache(connection, statementCacheSize);
+            statementCaches.put(connection, cache);
+        }
+        return cache;
+    }
+
+    private void closeStatements(Connection connection) {
+        StatementCache cache = statementCaches.remove(connection);
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    private Connection newConnection() throws SQLException {
+        java.util.Properties info = new java.util.Properties();
+        if (username != null) {
+            info.put("user" ,username);
+        }
+
+        if (password != null) {
+            info.put("password", password);
+        }
+
+        //Socket buffers are left at the driver and OS defaults
+        return DriverManager.getConnection(url, info);
+    }
+
+    private int backendPid(Connection connection) throws SQLException {
+        Statement stmt = connection.createStatement();
+        try {
+            ResultSet result = stmt.executeQuery("SELECT pg_backend_pid()");
+            result.next();
+            return result.getInt(1);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Starts the listener for notifications from other processes - one per store, on its own connection.
+     */
+    private synchronized void startListening() {
+        //A listener that died is replaced
+        if ((listener != null && listener.isAlive()) || closed) {
+            return;
+        }
+
+        listener = new Listener();
+        listener.start();
+    }
+
+    private synchronized void stopListening() throws InterruptedException {
+        if (listener != null &&
+                listener.isAlive()) {
+            listener.interrupt();
+            listener.join();
+        }
+        listener = null;
+    }
+
     private PostgresClient client() {
         return client.get();
     }
 
+    /*
+     * Tasks are also looked up by id in the archive - even with archiveFailed off, as other processes or earlier runs
+     * may have archived them. Those are primary key look-ups, so they stay cheap however large the archive grows.
+     */
+
     @Override
     public Task get(UUID id) {
         try {
-            return client().queryOne(String.format("SELECT * FROM \"%s\" WHERE id = ?", tableName), id);
+            return client().queryOne(String.format("SELECT id, content FROM \"%1$s\" WHERE id = ? " +
+                    "UNION ALL SELECT id, content FROM \"%1$s_failed\" WHERE id = ?", tableName), id, id);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -103,7 +351,27 @@ public class PostgresTaskStore implements TaskStore {
     @Override
     public void remove(UUID id) {
         try {
-            client().update(String.format("DELETE FROM \"%s\" WHERE id = ?", tableName), id);
+            if (client().update(String.format("DELETE FROM \"%s\" WHERE id = ?", tableName), id) < 1) {
+                client().update(String.format("DELETE FROM \"%s_failed\" WHERE id = ?", tableName), id);
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Removes the given tasks in one statement per table
+     * @param ids
+     */
+    public void removeAll(Collection<UUID> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        String idArray = "{" + StringUtils.join(ids, ",") + "}";
+        try {
+            client().update(String.format("DELETE FROM \"%s\" WHERE id = ANY(?::uuid[])", tableName), idArray);
+            client().update(String.format("DELETE FROM \"%s_failed\" WHERE id = ANY(?::uuid[])", tableName), idArray);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -113,6 +381,7 @@ public class PostgresTaskStore implements TaskStore {
     public void cancelByReference(String referenceId) {
         try {
             client().update(String.format("DELETE FROM \"%s\" WHERE referenceid = ?", tableName), referenceId);
+            client().update(String.format("DELETE FROM \"%s_failed\" WHERE referenceid = ?", tableName), referenceId);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -164,6 +433,15 @@ public class PostgresTaskStore implements TaskStore {
     }
 
 
+    /**
+     * Queued tasks are not organized by rate limit in the database - the default is not used
+     * @param limit
+     */
+    @Override
+    public void setDefaultRateLimit(int limit) {
+
+    }
+
     public final CountMap<String> getAllRetryLimits() {
         try {
             return client().queryForCountMap(String.format("SELECT tag,retrylimit from %s_retrylimits", tableName));
@@ -201,66 +479,141 @@ public class PostgresTaskStore implements TaskStore {
 
     @Override
     public void queue(final Task... tasks) {
-        Connection connection = null;
+        Connection connection;
+        try {
+            connection = client().begin();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
 
         try {
-            connection = client().conn();
-            connection.setAutoCommit(false);
+            if (tasks.length >= copyThreshold) {
+                copyTasks(connection, tasks);
+            } else {
+                insertTasks(connection, tasks);
+            }
+
+            client().commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e.getNextException() == null ? e : e.getNextException());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            client().end();
+        }
+    }
 
-            PreparedStatement insertTasks = connection.prepareStatement(
-                    String.format(
-                            "INSERT INTO \"%s\" (id, content, state, priority, type, \"group\", referenceid, created) VALUES (?,?,?,?,?,?,?,?)",
-                            tableName
-                    ));
+    private void insertTasks(Connection connection, Task... tasks) throws SQLException, IOException {
+        int[][] tagIds = internTags(tasks);
+
+        PreparedStatement insertTasks = statements(connection).prepare(
+                String.format(
+                        "INSERT INTO \"%s\" (id, content, state, priority, type, \"group\", referenceid, created) VALUES (?,?,?,?,?,?,?,?)",
+                        tableName
+                ));
+
+        for (int i = 0; i < tasks.length; i++) {
+            Task task = tasks[i].copy();
+            task.setState(State.PENDING);
+
+            insertTasks.setObject(1, task.getId());
+            insertTasks.setBytes(2, serialize(task));
+            insertTasks.setInt(3, STATE_QUEUED);
+            insertTasks.setInt(4, task.getPriority());
+            insertTasks.setString(5, task.getType());
+            insertTasks.setString(6, task.getGroup());
+            insertTasks.setString(7, task.getReferenceId());
+            insertTasks.setLong(8, task.getCreated());
+            insertTasks.addBatch();
+        }
 
-            for (int i = 0; i < tasks.length; i++) {
-                Task task = new Task(tasks[i]);
-                task.setState(State.PENDING);
+        insertTasks.executeBatch();
 
-                insertTasks.setObject(1, task.getId());
-                insertTasks.setBytes(2, serialize(task));
-                insertTasks.setInt(3, STATE_QUEUED);
-                insertTasks.setInt(4, task.getPriority());
-                insertTasks.setString(5, task.getType());
-                insertTasks.setString(6, task.getGroup());
-                insertTasks.setString(7, task.getReferenceId());
-                insertTasks.setLong(8, task.getCreated());
-                insertTasks.addBatch();
+        PreparedStatement insertTags = statements(connection).prepare(
+                String.format(
+                        "INSERT INTO \"%s_tags\" (id, tag_id) VALUES (?,?)",
+                        tableName
+                ));
+
+        for (int i = 0; i < tasks.length; i++) {
+            for (int tagId : tagIds[i]) {
+                insertTags.setObject(1, tasks[i].getId());
+                insertTags.setInt(2, tagId);
+                insertTags.addBatch();
             }
+        }
 
-            insertTasks.executeBatch();
+        insertTags.executeBatch();
+    }
 
-            PreparedStatement insertTags = connection.prepareStatement(
-                    String.format(
-                            "INSERT INTO \"%s_tags\" (id, tag) VALUES (?,?)",
-                            tableName
-                    ));
+    /**
+     * Streams the tasks and their tags into the tables with COPY - a lot faster than batched inserts for large
+     * submits. Runs in the transaction of the connection.
+     */
+    private void copyTasks(Connection connection, Task... tasks) throws SQLException, IOException {
+        int[][] tagIds = internTags(tasks);
 
+        CopyWriter taskRows = new CopyWriter(((PGConnection) connection).getCopyAPI().copyIn(String.format(
+                "COPY \"%s\" (id, content, state, priority, type, \"group\", referenceid, created) FROM STDIN",
+                tableName)));
+        try {
+            for (int i = 0; i < tasks.length; i++) {
+                Task task = tasks[i].copy();
+                task.setState(State.PENDING);
 
-            int i = 0;
-            for (Task task : tasks) {
-                for (String tag : (Set<String>) task.getTags().keySet()) {
-                    insertTags.setObject(1, task.getId());
-                    insertTags.setString(2, tag);
-                    insertTags.addBatch();
+                taskRows.column(task.getId().toString())
+                        .column(serialize(task))
+                        .column(STATE_QUEUED)
+                        .column(task.getPriority())
+                        .column(task.getType())
+                        .column(task.getGroup())
+                        .column(task.getReferenceId())
+                        .column(task.getCreated())
+                        .endRow();
+            }
+            taskRows.end();
+        } finally {
+            taskRows.cancel();
+        }
 
+        CopyWriter tagRows = new CopyWriter(((PGConnection) connection).getCopyAPI().copyIn(String.format(
+                "COPY \"%s_tags\" (id, tag_id) FROM STDIN", tableName)));
+        try {
+            for (int i = 0; i < tasks.length; i++) {
+                for (int tagId : tagIds[i]) {
+                    tagRows.column(tasks[i].getId().toString())
+                            .column(tagId)
+                            .endRow();
                 }
             }
+            tagRows.end();
+        } finally {
+            tagRows.cancel();
+        }
+    }
 
-            insertTags.executeBatch();
-
-            connection.commit();
-            connection.setAutoCommit(true);
-        } catch (SQLException e) {
-            throw new RuntimeException(e.getNextException() == null ? e : e.getNextException());
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+    /**
+     * Gets the ids of the tags of the tasks - adding new tags and groups to the dictionary first, as the tags table
+     * and the counts refer to them by id
+     */
+    private int[][] internTags(Task... tasks) {
+        int[][] out = new int[tasks.length][];
+        for (int i = 0; i < tasks.length; i++) {
+            Set<String> tags = (Set<String>) tasks[i].getTags().keySet();
+            out[i] = new int[tags.size()];
+            int j = 0;
+            for (String tag : tags) {
+                out[i][j++] = dictionary.intern(tag);
+            }
+            dictionary.intern(tasks[i].getGroup());
         }
+        return out;
     }
 
     public void reset() {
         try {
             client().update(String.format("DELETE FROM \"%s\"", tableName));
+            client().update(String.format("DELETE FROM \"%s_failed\"", tableName));
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -268,12 +621,173 @@ public class PostgresTaskStore implements TaskStore {
 
     private byte[] serialize(Task task) throws IOException {
         String json = documentSerializer.serialize(task);
-        byte[] bytes = json.getBytes(Charset.forName("UTF-8"));
-        return Base64.encodeBase64(bytes);
+        byte[] bytes = json.getBytes(UTF8);
+        if (contentFormat == ContentFormat.BASE64) {
+            return Base64.encodeBase64(bytes);
+        }
+
+        byte[] out = new byte[bytes.length + 1];
+        out[0] = RAW_MARKER;
+        System.arraycopy(bytes, 0, out, 1, bytes.length);
+        return out;
+    }
+
+    /**
+     * Content is RAW if it starts with the marker - anything else is Base64, whatever the serializer writes.
+     */
+    private Task deserialize(byte[] content) throws IOException {
+        String json;
+        if (content.length > 0 && content[0] == RAW_MARKER) {
+            json = new String(content, 1, content.length - 1, UTF8);
+        } else {
+            json = new String(Base64.decodeBase64(content), UTF8);
+        }
+        return documentSerializer.deserialize(json, taskClass);
+    }
+
+    /**
+     * Rewrites Base64 encoded content as RAW content - batchSize rows per transaction, so the table stays usable
+     * while migrating. Stop writing BASE64 content before migrating.
+     * @param batchSize
+     * @return the amount of rows migrated
+     */
+    public long migrateContent(final int batchSize) throws SQLException {
+        long migrated = 0;
+        while (true) {
+            int rows = client().update(String.format("UPDATE \"%1$s\" " +
+                    "SET content = decode('00', 'hex') || decode(convert_from(content, 'UTF8'), 'base64') " +
+                    "WHERE id IN (SELECT id FROM \"%1$s\" " +
+                    "WHERE substring(content FROM 1 FOR 1) <> decode('00', 'hex') LIMIT ?)", tableName), batchSize);
+            migrated += rows;
+            if (rows < batchSize) {
+                return migrated;
+            }
+        }
+    }
+
+    @Override
+    public void run(Task ... tasks) {
+        if (tasks.length == 1) {
+            run(tasks[0]);
+            return;
+        }
+
+        Connection connection;
+        try {
+            connection = client().begin();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            PreparedStatement updateTasks = statements(connection).prepare(
+                    String.format("UPDATE \"%s\" SET content = ?,state = ? WHERE id = ?", tableName));
+
+            for (Task task : tasks) {
+                task.setState(State.RUNNING);
+                updateTasks.setBytes(1, serialize(task));
+                updateTasks.setInt(2, STATE_RUNNING);
+                updateTasks.setObject(3, task.getId());
+                updateTasks.addBatch();
+            }
+
+            updateTasks.executeBatch();
+
+            client().commit();
+        } catch (SQLException e) {
+            throw new RuntimeException(e.getNextException() == null ? e : e.getNextException());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            client().end();
+        }
     }
 
+    /**
+     * Claims the tasks that are still queued in a single statement. The rows are locked with FOR UPDATE SKIP LOCKED
+     * so dispatchers - also in other processes - that claim the same tasks at the same time do not wait for each other.
+     * Whoever gets the row lock first gets the task. The content of the claimed tasks is updated in the same
+     * transaction.
+     */
     @Override
-    public void run(Task task) {
+    public List<Task> claim(Task ... tasks) {
+        if (tasks.length < 1) {
+            return Collections.emptyList();
+        }
+
+        Connection connection;
+        try {
+            connection = client().begin();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        try {
+            Map<UUID, Task> byId = new LinkedHashMap<>();
+            for (Task task : tasks) {
+                byId.put(task.getId(), task);
+            }
+
+            //SKIP LOCKED - like INSERT ... ON CONFLICT used by the dictionary - needs PostgreSQL 9.5 or newer
+            PreparedStatement claimTasks = statements(connection).prepare(
+                    String.format("UPDATE \"%1$s\" SET state = ? WHERE id IN (" +
+                            "SELECT task.id FROM \"%1$s\" task " +
+                            "WHERE task.id = ANY(?) AND task.state = ? " +
+                            "ORDER BY task.state DESC, task.priority DESC, task.created ASC, task.order ASC " +
+                            "FOR UPDATE SKIP LOCKED) " +
+                            "RETURNING id", tableName));
+
+            claimTasks.setInt(1, STATE_RUNNING);
+            claimTasks.setArray(2, connection.createArrayOf("uuid", byId.keySet().toArray()));
+            claimTasks.setInt(3, STATE_QUEUED);
+
+            Set<UUID> claimedIds = new HashSet<>();
+            ResultSet result = claimTasks.executeQuery();
+            while (result.next()) {
+                claimedIds.add((UUID) result.getObject(1));
+            }
+            result.close();
+
+            List<Task> claimed = new ArrayList<>(claimedIds.size());
+            if (!claimedIds.isEmpty()) {
+                PreparedStatement updateTasks = statements(connection).prepare(
+                        String.format("UPDATE \"%s\" SET content = ? WHERE id = ?", tableName));
+
+                for (Task task : byId.values()) {
+                    if (!claimedIds.contains(task.getId())) {
+                        continue;
+                    }
+                    task.setState(State.RUNNING);
+                    task.setStarted(WatchProvider.currentTime());
+                    updateTasks.setBytes(1, serialize(task));
+                    updateTasks.setObject(2, task.getId());
+                    updateTasks.addBatch();
+                    claimed.add(task);
+                }
+
+                updateTasks.executeBatch();
+            }
+
+            client().commit();
+
+            return claimed;
+        } catch (Exception e) {
+            try {
+                client().rollback();
+            } catch (SQLException e1) {
+                log.error("Failed to roll back claim", e1);
+            }
+
+            if (e instanceof SQLException && ((SQLException) e).getNextException() != null) {
+                throw new RuntimeException(((SQLException) e).getNextException());
+            }
+            throw new RuntimeException(e);
+        } finally {
+            client().end();
+        }
+    }
+
+    private void run(Task task) {
         try {
             task.setState(State.RUNNING);
             client().update(
@@ -290,6 +804,20 @@ public class PostgresTaskStore implements TaskStore {
     public void failed(Task task) {
         try {
             task.setState(State.ERROR);
+            if (archiveFailed) {
+                //Moves the task in one statement - its tags are deleted along with it
+                client().update(
+                        String.format("WITH failed AS (DELETE FROM \"%1$s\" WHERE id = ? RETURNING *) " +
+                                "INSERT INTO \"%1$s_failed\" " +
+                                "(id, content, state, priority, created, \"order\", referenceid, type, \"group\", failed) " +
+                                "SELECT id, ?, ?, priority, created, \"order\", referenceid, type, \"group\", ? FROM failed", tableName),
+                        task.getId(),
+                        serialize(task),
+                        STATE_ERROR,
+                        WatchProvider.currentTime());
+                return;
+            }
+
             client().update(
                     String.format("UPDATE \"%s\" SET content = ?,state = ? WHERE id = ?", tableName),
                     serialize(task),
@@ -302,9 +830,36 @@ public class PostgresTaskStore implements TaskStore {
 
     @Override
     public Iterator<Task> getFailed() {
+        if (archiveFailed) {
+            return client().getArchived();
+        }
         return client().getList(STATE_ERROR);
     }
 
+    /**
+     * Deletes archived failed tasks that failed more than maxAge ms ago. Deletes batchSize rows per transaction so
+     * vacuum can keep up and the archive is not locked for long.
+     * @param maxAge
+     * @param batchSize
+     * @return the amount of tasks deleted
+     */
+    public long purgeFailed(long maxAge, int batchSize) {
+        long failedBefore = WatchProvider.currentTime() - maxAge;
+        long purged = 0;
+        try {
+            while (true) {
+                int rows = client().update(String.format("DELETE FROM \"%1$s_failed\" WHERE id IN (" +
+                        "SELECT id FROM \"%1$s_failed\" WHERE failed < ? LIMIT ?)", tableName), failedBefore, batchSize);
+                purged += rows;
+                if (rows < batchSize) {
+                    return purged;
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public Iterator<Task> getQueued() {
         return client().getList(STATE_QUEUED);
@@ -385,6 +940,14 @@ public class PostgresTaskStore implements TaskStore {
         return client().getIds(STATE_QUEUED, type);
     }
 
+    @Override
+    public Iterator<UUID> getQueuedIds(String type, Set<String> excludedTags) {
+        if (excludedTags == null || excludedTags.isEmpty()) {
+            return type != null ? getQueuedIds(type) : getQueuedIds();
+        }
+        return client().getIds(STATE_QUEUED, type, excludedTags);
+    }
+
     @Override
     public Iterator<Task> getRunning() {
         return (Iterator<Task>) client().getList(STATE_RUNNING);
@@ -415,6 +978,18 @@ public class PostgresTaskStore implements TaskStore {
         return client().count(STATE_RUNNING, type);
     }
 
+    @Override
+    public CountMap<String> getRunningCounts() {
+        try {
+            return client().queryForCountMap(String.format(
+                    "SELECT dict.name, sum(counts.count) FROM \"%1$s_counts\" counts, \"%1$s_dict\" dict " +
+                    "WHERE counts.kind = 't' AND counts.state = ? AND dict.id = counts.\"key\" " +
+                    "GROUP BY dict.name HAVING sum(counts.count) > 0", tableName), STATE_RUNNING);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Override
     public long queueSizeForGroup(String group) {
         return client().countGroup(STATE_QUEUED, group);
@@ -428,21 +1003,35 @@ public class PostgresTaskStore implements TaskStore {
     @Override
     public Set<String> getTags() throws InterruptedException {
         try {
-            return client().queryStringSet(String.format("SELECT DISTINCT tag from \"%s_tags\"", tableName));
+            return client().queryStringSet(String.format(
+                    "SELECT dict.name FROM \"%1$s_dict\" dict WHERE dict.id IN (SELECT DISTINCT tag_id FROM \"%1$s_tags\")",
+                    tableName));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * Calls the callable in a transaction - joining the current transaction if there is one. Errors roll the
+     * transaction back and are logged.
+     * @param callable
+     * @return true if the callable completed without errors
+     */
+    public boolean withinTransaction(Callable callable) {
+        try {
+            client().begin();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
-    }
 
-
-    public void withinTransaction(Callable callable) {
         try {
-            client().conn().setAutoCommit(false);
             callable.call();
-            client().conn().commit();
+            client().commit();
+            return true;
         } catch (Exception e) {
             try {
-                client().conn().rollback();
+                client().rollback();
                 if (e instanceof BatchUpdateException) {
                     e = ((BatchUpdateException) e).getNextException();
                 }
@@ -450,12 +1039,9 @@ public class PostgresTaskStore implements TaskStore {
             } catch (SQLException e1) {
                 log.debug("Failed to roll back transaction", e1);
             }
+            return false;
         } finally {
-            try {
-                client().conn().setAutoCommit(true);
-            } catch (SQLException e) {
-                log.error("Failed to reactivate auto commit", e);
-            }
+            client().end();
         }
     }
 
@@ -466,10 +1052,10 @@ public class PostgresTaskStore implements TaskStore {
         boolean transactionDone = true;
         try {
             if (!client().isolated) {
-                client().conn().setAutoCommit(false);
-                client().lockTable();
+                client().begin();
                 client().isolated = isolationStartedInThisCall = true;
                 transactionDone = false;
+                client().lockTable();
             }
 
             U result = callable.call();
@@ -502,65 +1088,447 @@ public class PostgresTaskStore implements TaskStore {
                     }
                 }
 
-                try {
-                    client().conn().setAutoCommit(true);
-                } catch (SQLException e) {
-                    log.error("Failed to reactivate auto commit", e);
-                }
+                client().end();
             }
         }
     }
 
     @Override
-    public synchronized void waitForChange() throws InterruptedException {
-        this.wait();
+    public void waitForChange() throws InterruptedException {
+        TaskWaiters.Waiter waiter = waiters.register(null);
+        try {
+            waiter.await(null);
+        } finally {
+            waiters.unregister(waiter);
+        }
+    }
+
+    @Override
+    public void signalChange() {
+        waiters.signalAll();
+        notifyOthers(null, null);
+    }
+
+    @Override
+    public void signalChange(TaskWaiters.Change change, Set<String> tags) {
+        waiters.signal(change, tags);
+        notifyOthers(change, tags);
     }
 
     @Override
-    public synchronized void signalChange() {
+    public TaskWaiters getWaiters() {
+        return waiters;
+    }
+
+    /**
+     * Tells other processes using the same table that something changed - or everything if change is null. Waiters
+     * in this process have already been signalled directly so the listener ignores notifications sent from our own
+     * connections.
+     *
+     * Changes signalled while another thread is notifying are merged and sent by that thread once it is done, so a
+     * burst of changes becomes a few notifications. Changes made within a transaction are sent right away on the
+     * connection of the transaction - Postgres delivers them when it commits.
+     */
+    private void notifyOthers(TaskWaiters.Change change, Set<String> tags) {
         try {
-            client().pgNotify();
-            log.trace("Send PG notification");
+            if (client().inTransaction()) {
+                client().pgNotify(payload(change, tags));
+                return;
+            }
+
+            synchronized (pendingNotifications) {
+                pendingNotifications.add(change, tags);
+                if (pendingNotifications.sending) {
+                    return;
+                }
+                pendingNotifications.sending = true;
+            }
+
+            boolean sent = false;
+            try {
+                while (true) {
+                    List<String> payloads;
+                    synchronized (pendingNotifications) {
+                        payloads = pendingNotifications.takePayloads();
+                        if (payloads.isEmpty()) {
+                            pendingNotifications.sending = false;
+                            sent = true;
+                            return;
+                        }
+                    }
+
+                    for (String payload : payloads) {
+                        client().pgNotify(payload);
+                    }
+                    log.trace("Send PG notifications");
+                }
+            } finally {
+                if (!sent) {
+                    synchronized (pendingNotifications) {
+                        pendingNotifications.sending = false;
+                    }
+                }
+            }
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Payload of a notification: the change and the tags it affects - one per line. Empty when everything changed
+     * or the tags do not fit in a notification.
+     */
+    private static String payload(TaskWaiters.Change change, Collection<String> tags) {
+        if (change == null || tags == null) {
+            return "";
+        }
+
+        StringBuilder out = new StringBuilder(change.name());
+        for (String tag : tags) {
+            if (tag.indexOf('\n') > -1) {
+                return "";
+            }
+            out.append('\n').append(tag);
+        }
+
+        if (out.length() > MAX_PAYLOAD_LENGTH) {
+            return "";
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Creates the tables of the store - unless they already exist. Tables created by an older version are not
+     * changed, except for adding missing indexes: migrating them breaks processes still running the older version,
+     * so it is left to an explicit call to migrate once they have all stopped.
+     * @throws IllegalStateException if the table was created by an older version and has not been migrated
+     */
     public void createTable() throws IOException, SQLException {
-        try {
-            client().execute(String.format("select 1 from \"%s\" limit 1", tableName));
+        if (tableExists(tableName)) {
+            if (needsMigration()) {
+                throw new IllegalStateException(String.format("Table %s was created by an older version - " +
+                        "stop the processes using it and call migrate() before using it", tableName));
+            }
+            createMissingIndexes();
             return;
-        } catch (Exception ex) {
-            //Do nothing - above is just a check if the table exists
         }
 
         withinTransaction(new Callable() {
 
             @Override
             public Object call() throws Exception {
-                String statements = IOUtils.toString(PostgresTaskStore.class.getResource("/pgtable.sql")).replaceAll("%tableName%", tableName);
-                String[] statementArr = statements.split(";");
-                for (String sql : statementArr) {
-                    client().update(sql);
+                runScript("/pgtable.sql");
+                runScript("/pgdict.sql");
+                runScript("/pgcounters.sql");
+                runScript("/pgarchive.sql");
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Whether the table was created by an older version and must be migrated before this version can use it
+     * @return
+     */
+    public boolean needsMigration() {
+        return !tableExists(tableName + "_dict") ||
+                !columnExists(tableName + "_counts", "slot") ||
+                !tableExists(tableName + "_failed");
+    }
+
+    /**
+     * Brings a table created by an older version up to date. The changes can not be undone and processes running an
+     * older version can not use the table afterwards - stop them all first. Does nothing if the table is up to date.
+     */
+    public void migrate() {
+        if (!tableExists(tableName + "_dict")) {
+            createDictionary();
+        }
+        if (!columnExists(tableName + "_counts", "slot")) {
+            createCounters();
+        }
+        if (!tableExists(tableName + "_failed")) {
+            createArchive();
+        }
+        createMissingIndexes();
+    }
+
+    /**
+     * Adds the indexes that tables created by an older version lack. Older versions can keep using the table.
+     */
+    private void createMissingIndexes() {
+        //Archived tasks are cancelled by reference too. Checked first - creating the index locks the table.
+        if (relationExists(tableName + "_failed_referenceid_idx")) {
+            return;
+        }
+
+        try {
+            client().update(String.format("CREATE INDEX IF NOT EXISTS %1$s_failed_referenceid_idx " +
+                    "ON %1$s_failed USING btree (referenceid)", tableName));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds the archive table for failed tasks to a table created by an older version - moving the failed tasks
+     * already in the table to it.
+     */
+    public void createArchive() {
+        withinTransaction(new Callable() {
+
+            @Override
+            public Object call() throws Exception {
+                client().lockTable();
+                runScript("/pgarchive.sql");
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Adds the counts table - and the triggers that maintain it - to a table created by an older version, replacing
+     * counts from before they were spread over slots. The tasks already in the table are counted while the table is
+     * locked.
+     */
+    public void createCounters() {
+        withinTransaction(new Callable() {
+
+            @Override
+            public Object call() throws Exception {
+                client().lockTable();
+                client().execute(String.format("LOCK TABLE \"%s_tags\" IN EXCLUSIVE MODE", tableName));
+                dropCounters();
+                runScript("/pgcounters.sql");
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Adds the dictionary to a table created by an older version - moving the tags to it. The counts are recreated
+     * as they now count by id.
+     */
+    public void createDictionary() {
+        withinTransaction(new Callable() {
+
+            @Override
+            public Object call() throws Exception {
+                client().lockTable();
+                client().execute(String.format("LOCK TABLE \"%s_tags\" IN EXCLUSIVE MODE", tableName));
+                dropCounters();
+                runScript("/pgdict.sql");
+                runScript("/pgtagids.sql");
+                runScript("/pgcounters.sql");
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Ids of the tags, types and groups - kept in the dictionary table so every process using the table has the
+     * same ids. New names are added to the table right away.
+     * @return
+     */
+    public TagDictionary getDictionary() {
+        return dictionary.load();
+    }
+
+    /**
+     * Adds change tracking to the table - unless it is tracked already. Only needed to bring a snapshot of the tasks
+     * up to date, so it is left out by createTable: tracking costs a trigger on every write and keeps a row for every
+     * deleted task until pruneDeleted is called. The tasks already in the table count as changed before any snapshot.
+     * @throws IllegalStateException if tracking could not be added
+     */
+    public void createChanges() {
+        boolean done = withinTransaction(new Callable() {
+
+            @Override
+            public Object call() throws Exception {
+                client().lockTable();
+                //Checked again while locked - another process may have added it meanwhile
+                if (!isTrackingChanges()) {
+                    runScript("/pgchanges.sql");
                 }
                 return null;
             }
         });
+
+        if (!done) {
+            throw new IllegalStateException(String.format("Failed to add change tracking to table %s", tableName));
+        }
+    }
+
+    /**
+     * Whether changes to the table are tracked - see createChanges
+     * @return
+     */
+    public boolean isTrackingChanges() {
+        return relationExists(tableName + "_deleted");
+    }
+
+    /**
+     * The position of the last change to the tasks. Changes made after it have a higher position - as long as no
+     * transaction is writing tasks while it is read.
+     * @return
+     */
+    public long getChangePosition() {
+        try {
+            return client().queryForLong(String.format(
+                    "SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM \"%s_change_seq\"", tableName));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets the tasks inserted or updated after the position - with the state of their row.
+     * @param position
+     * @return
+     */
+    public List<Task> getChangedSince(long position) {
+        try {
+            return client().query(STATE_ROW_MAPPER, String.format(
+                    "SELECT id, content, state FROM \"%s\" WHERE changed > ? ORDER BY changed", tableName), position);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Gets the ids of the tasks deleted after the position. Deleted tasks may have been inserted again since.
+     * @param position
+     * @return
+     */
+    public List<UUID> getDeletedSince(long position) {
+        try {
+            return client().query(UUID_ROW_MAPPER, String.format(
+                    "SELECT id FROM \"%s_deleted\" WHERE changed > ? ORDER BY changed", tableName), position);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forgets the deletes up to the position - once nothing needs to replay them
+     * @param position
+     */
+    public void pruneDeleted(long position) {
+        try {
+            client().update(String.format("DELETE FROM \"%s_deleted\" WHERE changed <= ?", tableName), position);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Whether a table, index or sequence created unquoted by the scripts exists. Unlike tableExists it can be used
+     * within a transaction - a failed query would abort it.
+     */
+    private boolean relationExists(String name) {
+        try {
+            return client().queryForLong("SELECT count(*) FROM pg_class WHERE relname = ?", name.toLowerCase()) > 0;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean tableExists(String table) {
+        try {
+            client().execute(String.format("select 1 from \"%s\" limit 1", table));
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private boolean columnExists(String table, String column) {
+        try {
+            client().execute(String.format("select \"%s\" from \"%s\" limit 1", column, table));
+            return true;
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    private void runScript(String resource) throws IOException, SQLException {
+        String statements = IOUtils.toString(PostgresTaskStore.class.getResource(resource)).replaceAll("%tableName%", tableName);
+        for (String sql : splitStatements(statements)) {
+            client().update(sql);
+        }
+    }
+
+    /**
+     * Splits a script into statements on ; - except within $$ quoted function bodies.
+     */
+    private static List<String> splitStatements(String script) {
+        List<String> out = new ArrayList<String>();
+        StringBuilder statement = new StringBuilder();
+        String[] parts = script.split("\\$\\$", -1);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                statement.append("$$");
+            }
+
+            if (i % 2 == 1) {
+                statement.append(parts[i]);
+                continue;
+            }
+
+            String[] pieces = parts[i].split(";", -1);
+            for (int j = 0; j < pieces.length; j++) {
+                if (j > 0) {
+                    addStatement(out, statement);
+                }
+                statement.append(pieces[j]);
+            }
+        }
+        addStatement(out, statement);
+        return out;
+    }
+
+    private static void addStatement(List<String> statements, StringBuilder statement) {
+        if (!statement.toString().trim().isEmpty()) {
+            statements.add(statement.toString());
+        }
+        statement.setLength(0);
+    }
+
+    private void dropCounters() throws SQLException {
+        client().update(String.format("DROP TABLE IF EXISTS \"%s_counts\"", tableName));
+        client().update(String.format("DROP FUNCTION IF EXISTS \"%s_count_task\"() CASCADE", tableName));
+        client().update(String.format("DROP FUNCTION IF EXISTS \"%s_count_tag\"() CASCADE", tableName));
+        client().update(String.format("DROP FUNCTION IF EXISTS \"%s_group_id\"(character varying)", tableName));
+        client().update(String.format("DROP FUNCTION IF EXISTS \"%s_count\"(character, integer, integer, bigint)", tableName));
+        //Counts by name - from before the dictionary
+        client().update(String.format("DROP FUNCTION IF EXISTS \"%s_count\"(character, character varying, integer, bigint)", tableName));
     }
 
     public synchronized void dropTable() throws SQLException {
+        dropCounters();
+        client().update(String.format("DROP TABLE IF EXISTS \"%s_failed\"", tableName));
+        client().update(String.format("DROP TABLE IF EXISTS \"%s_deleted\"", tableName));
         client().update(String.format("DROP TABLE \"%s_estimates\"", tableName));
         client().update(String.format("DROP TABLE \"%s_tags\"", tableName));
+        client().update(String.format("DROP TABLE IF EXISTS \"%s_dict\"", tableName));
         client().update(String.format("DROP TABLE \"%s_retrylimits\"", tableName));
         client().update(String.format("DROP TABLE \"%s_ratelimits\"", tableName));
         client().update(String.format("DROP TABLE \"%s\"", tableName));
+        client().update(String.format("DROP SEQUENCE IF EXISTS \"%s_change_seq\"", tableName));
+        client().update(String.format("DROP FUNCTION IF EXISTS \"%s_track_change\"()", tableName));
+        dictionary.reset();
     }
 
     @Override
     public void close() throws Exception {
         closed = true;
-        client().close();
+        stopListening();
         client.remove();
+        if (readPool != null) {
+            readPool.close();
+            writePool.close();
+        }
     }
 
     @Override
@@ -589,79 +1557,106 @@ public class PostgresTaskStore implements TaskStore {
         }
     }
 
+    public DocumentSerializer getDocumentSerializer() {
+        return documentSerializer;
+    }
+
     public void setDocumentSerializer(DocumentSerializer documentSerializer) {
         this.documentSerializer = documentSerializer;
     }
 
+    public Class<Task> getTaskClass() {
+        return taskClass;
+    }
+
     @Override
     protected void finalize() throws Throwable {
         close();
     }
 
+    /**
+     * Runs the queries of a single thread. Queries borrow a connection from the read or write pool for as long as
+     * they run - except within a transaction, where everything runs on the write connection that begin() pinned to
+     * the client until the matching end().
+     */
     private class PostgresClient {
-        private Connection connection;
+        private Connection pinned;
+        private int pins = 0;
         private volatile boolean isolated = false;
-        private Listener listener;
-
-        private PostgresClient() throws SQLException {
-
-        }
-
 
-        private synchronized Connection conn() throws SQLException {
-            if (connection == null) {
-                connection = newConnection();
-                connection.setAutoCommit(true);
+        /**
+         * Pins a write connection to this client and turns off auto commit. Must be followed by end().
+         * Transactions may be nested - the connection is kept until the outermost transaction ends.
+         */
+        private Connection begin() throws SQLException {
+            if (pinned == null) {
+                Connection connection = writePool().acquire();
+                try {
+                    connection.setAutoCommit(false);
+                } catch (SQLException e) {
+                    writePool().release(connection);
+                    throw e;
+                }
+                pinned = connection;
             }
-
-            return connection;
+            pins++;
+            return pinned;
         }
 
-        private Connection newConnection() throws SQLException {
-            java.util.Properties info = new java.util.Properties();
-            if (username != null) {
-                info.put("user" ,username);
+        /**
+         * Ends a transaction started by begin(). Once the outermost transaction ends anything not committed is
+         * rolled back and the connection goes back to the pool.
+         */
+        private void end() {
+            if (--pins > 0) {
+                return;
             }
 
-            if (password != null) {
-                info.put("password", password);
+            Connection connection = pinned;
+            pinned = null;
+            try {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.error("Failed to reset connection - closing it", e);
+                try {
+                    connection.close();
+                } catch (SQLException e1) {
+                    //Thrown away by the pool either way
+                }
+            } finally {
+                writePool().release(connection);
             }
-
-            info.put("receiveBufferSize", "1");
-            info.put("sendBufferSize", "1");
-            return DriverManager.getConnection(url, info);
         }
 
-
-        private synchronized PGConnection pgConn() throws SQLException {
-            return (PGConnection) conn();
-        }
-
-        public void startListening() {
-            if (listener != null) {
-                throw new RuntimeException("Listener already listening");
+        /**
+         * Commits the current transaction. A transaction nested in another one is committed along with the outer
+         * transaction instead.
+         */
+        private void commit() throws SQLException {
+            if (pins == 1) {
+                conn().commit();
             }
-
-            listener = new Listener();
-            listener.start();
         }
 
-        public void close() throws SQLException, InterruptedException {
-            log.trace("Closing client connection");
-            if (connection != null) {
-                connection.close();
-            }
-
-            if (listener != null &&
-                    listener.isAlive()) {
-                listener.interrupt();
-                listener.join();
+        /**
+         * Rolls back the current transaction. A nested transaction leaves it to the outer transaction - which rolls
+         * back when the error reaches it.
+         */
+        private void rollback() throws SQLException {
+            if (pins == 1) {
+                conn().rollback();
             }
         }
 
-        @Override
-        protected void finalize() throws Throwable {
-            close();
+        /**
+         * The connection of the current transaction
+         */
+        private Connection conn() {
+            if (pinned == null) {
+                throw new IllegalStateException("Not within a transaction");
+            }
+            return pinned;
         }
 
         private void lockTable() throws SQLException {
@@ -670,7 +1665,7 @@ public class PostgresTaskStore implements TaskStore {
         }
 
         private <Task> List<Task> query(RowMapper<Task> mapper, String sql, Object... args) throws SQLException {
-            PreparedStatement stmt = stmt(sql, args);
+            PreparedStatement stmt = stmt(readPool(), sql, args);
             try {
                 ResultSet result = stmt.executeQuery();
 
@@ -687,12 +1682,23 @@ public class PostgresTaskStore implements TaskStore {
                 log.debug("SQL: " + sql, e);
                 throw e;
             } finally {
-                stmt.close();
+                close(readPool(), stmt);
             }
         }
 
-        private <Task> DBIterator<Task> queryIterator(RowMapper<Task> mapper, final String countSql, final String sql, final Object... args) throws SQLException {
-            return new DBIterator(mapper, countSql, sql, args);
+        /**
+         * Iterates the rows of a query in queue order - page by page.
+         * @param countSql counts the rows
+         * @param columns the columns to select. Must include the state, priority, created and order columns of the
+         *                task.
+         * @param from FROM clause of the query - ending with its WHERE clause
+         * @param groupBy GROUP BY clause - or empty
+         * @param byState if the rows are ordered by state before the queue order
+         */
+        private <Task> DBIterator<Task> queryIterator(RowMapper<Task> mapper, final String countSql, final String columns,
+                                                      final String from, final String groupBy, final boolean byState,
+                                                      final Object... args) throws SQLException {
+            return new DBIterator(mapper, countSql, columns, from, groupBy, byState, args);
         }
 
         private Task queryOne(String sql, Object... args) throws SQLException {
@@ -704,7 +1710,7 @@ public class PostgresTaskStore implements TaskStore {
         }
 
         private long queryForLong(String sql, Object... args) throws SQLException {
-            PreparedStatement stmt = stmt(sql, args);
+            PreparedStatement stmt = stmt(readPool(), sql, args);
             try {
 
                 ResultSet result = stmt.executeQuery();
@@ -715,7 +1721,7 @@ public class PostgresTaskStore implements TaskStore {
                 }
                 return 0;
             } finally {
-                stmt.close();
+                close(readPool(), stmt);
             }
         }
 
@@ -725,51 +1731,61 @@ public class PostgresTaskStore implements TaskStore {
 
 
         private void execute(String sql, Object... args) throws SQLException {
-            PreparedStatement stmt = stmt(sql, args);
+            PreparedStatement stmt = stmt(writePool(), sql, args);
             try {
                 stmt.execute();
             } catch (SQLException e) {
                 log.debug("SQL: " + sql, e);
                 throw e;
             } finally {
-                stmt.close();
+                close(writePool(), stmt);
             }
         }
 
-        private void update(String sql, Object... args) throws SQLException {
-            PreparedStatement stmt = stmt(sql, args);
+        private int update(String sql, Object... args) throws SQLException {
+            PreparedStatement stmt = stmt(writePool(), sql, args);
             try {
-                stmt.executeUpdate();
+                return stmt.executeUpdate();
             } catch (SQLException e) {
                 log.debug("SQL: " + sql, e);
                 throw e;
-            } finally {
-                stmt.close();
-            }
-        }
-
-        private PreparedStatement prepared(String sql) {
-            try {
-                return conn().prepareStatement(sql);
-            } catch (SQLException e) {
-                throw new RuntimeException(sql, e);
+            } finally {
+                close(writePool(), stmt);
             }
         }
 
-        private PreparedStatement stmt(String sql, Object... args) {
+        /**
+         * Gets the cached statement for the SQL on the connection of the current transaction - or one borrowed from
+         * the pool. Must be given back with close(pool, stmt) to give the connection back.
+         */
+        private PreparedStatement stmt(ConnectionPool pool, String sql, Object... args) throws SQLException {
+            Connection connection = pinned != null ? pinned : pool.acquire();
             try {
-                PreparedStatement stmt = conn().prepareStatement(sql);
+                PreparedStatement stmt = statements(connection).prepare(sql);
                 int i = 1;
                 for (Object arg : args) {
                     stmt.setObject(i, arg);
                     i++;
                 }
                 return stmt;
-            } catch (SQLException e) {
+            } catch (SQLException | RuntimeException e) {
+                if (connection != pinned) {
+                    pool.release(connection);
+                }
                 throw new RuntimeException(sql, e);
             }
         }
 
+        /**
+         * Gives back the connection of a statement from stmt(). The statement stays open in the cache.
+         */
+        private void close(ConnectionPool pool, PreparedStatement stmt) throws SQLException {
+            Connection connection = stmt.getConnection();
+            if (connection != pinned) {
+                pool.release(connection);
+            }
+        }
+
         public DBIterator<Task> getList(int state) {
             return getList(state, null);
         }
@@ -779,25 +1795,22 @@ public class PostgresTaskStore implements TaskStore {
                 if (type != null && !type.isEmpty()) {
                     return client()
                             .queryIterator(TASK_ROW_MAPPER,
-                                    String.format("SELECT COUNT(DISTINCT task.id) " +
-                                            "FROM \"%1$s\" task, \"%1$s_tags\" tag " +
-                                            "WHERE tag.id = task.id AND task.state = ? AND tag.tag = ? ", tableName),
-                                    String.format("SELECT task.id, task.content " +
-                                            "FROM \"%1$s\" task, \"%1$s_tags\" tag " +
-                                            "WHERE tag.id = task.id AND task.state = ? AND tag.tag = ? " +
-                                            "GROUP BY task.id " +
-                                            "ORDER BY task.priority DESC, task.created ASC, task.order ASC ", tableName), state, type
+                                    String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                            "WHERE kind = 't' AND state = ? AND \"key\" = ? ", tableName),
+                                    TASK_COLUMNS,
+                                    String.format("FROM \"%1$s\" task, \"%1$s_tags\" tag " +
+                                            "WHERE tag.id = task.id AND task.state = ? AND tag.tag_id = ? ", tableName),
+                                    "GROUP BY task.id ", false, state, dictionary.find(type)
                             );
                 } else {
                     return client()
                             .queryIterator(TASK_ROW_MAPPER,
-                                    String.format("SELECT count(*) " +
-                                            "FROM \"%s\" task " +
+                                    String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                            "WHERE kind = '*' AND state = ? AND \"key\" = 0 ", tableName),
+                                    TASK_COLUMNS,
+                                    String.format("FROM \"%1$s\" task " +
                                             "WHERE task.state = ? ", tableName),
-                                    String.format("SELECT task.id, task.content " +
-                                            "FROM \"%s\" task " +
-                                            "WHERE task.state = ? " +
-                                            "ORDER BY task.priority DESC, task.created ASC, task.order DESC ", tableName), state
+                                    "", false, state
                             );
                 }
             } catch (SQLException e) {
@@ -805,6 +1818,24 @@ public class PostgresTaskStore implements TaskStore {
             }
         }
 
+        /**
+         * Iterates the failed tasks in the archive
+         */
+        public DBIterator<Task> getArchived() {
+            try {
+                return client()
+                        .queryIterator(TASK_ROW_MAPPER,
+                                String.format("SELECT count(*) FROM \"%s_failed\" task WHERE task.state = ? ", tableName),
+                                TASK_COLUMNS,
+                                String.format("FROM \"%1$s_failed\" task " +
+                                        "WHERE task.state = ? ", tableName),
+                                "", false, STATE_ERROR
+                        );
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         public DBIterator<Task> getPending() {
             return getPending(null);
         }
@@ -814,28 +1845,25 @@ public class PostgresTaskStore implements TaskStore {
                 if (tag != null && !tag.isEmpty()) {
                     return client()
                             .queryIterator(TASK_ROW_MAPPER,
-                                    String.format("SELECT count(distinct task.id) " +
-                                            "FROM \"%s\" task, \"%1$s_tags\" tag " +
-                                            "WHERE state IN (?,?) AND tag.id = task.id and tag.tag = ? ", tableName),
-                                    String.format("SELECT task.id, task.content " +
-                                            "FROM \"%s\" task, \"%1$s_tags\" tag " +
-                                            "WHERE state IN (?,?) AND tag.id = task.id and tag.tag = ? " +
-                                            "GROUP BY task.id " +
-                                            "ORDER BY task.state DESC, task.priority DESC, task.created ASC, task.order ASC ", tableName),
+                                    String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                            "WHERE kind = 't' AND state IN (?,?) AND \"key\" = ? ", tableName),
+                                    TASK_COLUMNS,
+                                    String.format("FROM \"%1$s\" task, \"%1$s_tags\" tag " +
+                                            "WHERE state IN (?,?) AND tag.id = task.id and tag.tag_id = ? ", tableName),
+                                    "GROUP BY task.id ", true,
                                     STATE_RUNNING,
                                     STATE_QUEUED,
-                                    tag
+                                    dictionary.find(tag)
                             );
                 } else {
                     return client()
                             .queryIterator(TASK_ROW_MAPPER,
-                                    String.format("SELECT count(*) " +
-                                            "FROM \"%s\" task " +
+                                    String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                            "WHERE kind = '*' AND state IN (?,?) AND \"key\" = 0 ", tableName),
+                                    TASK_COLUMNS,
+                                    String.format("FROM \"%1$s\" task " +
                                             "WHERE task.state IN (?,?) ", tableName),
-                                    String.format("SELECT task.id, task.content " +
-                                            "FROM \"%s\" task " +
-                                            "WHERE task.state IN (?,?) " +
-                                            "ORDER BY task.state DESC, task.priority DESC, task.created ASC, task.order ASC ", tableName),
+                                    "", true,
                                     STATE_RUNNING,
                                     STATE_QUEUED
                             );
@@ -850,17 +1878,21 @@ public class PostgresTaskStore implements TaskStore {
             return count(state, null);
         }
 
+        /**
+         * Counts are read from the counts table - kept up to date by triggers on the task and tag tables
+         */
         public long count(int state, String tag) {
 
 
             try {
                 if (tag != null && !tag.isEmpty()) {
                     return client().queryForLong(
-                            String.format("SELECT count(task.*) as count FROM \"%1$s\" task, \"%1$s_tags\" tag " +
-                                    "WHERE tag.id = task.id AND task.state = ? AND tag.tag = ? ", tableName), state, tag);
+                            String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                    "WHERE kind = 't' AND state = ? AND \"key\" = ? ", tableName), state, dictionary.find(tag));
                 } else {
                     return client().queryForLong(
-                            String.format("SELECT count(*) as count FROM \"%s\" WHERE state = ?", tableName), state);
+                            String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                    "WHERE kind = '*' AND state = ? AND \"key\" = 0 ", tableName), state);
                 }
             } catch (SQLException e) {
                 throw new RuntimeException(e);
@@ -875,11 +1907,11 @@ public class PostgresTaskStore implements TaskStore {
 
             try {
                 if (group != null && !group.isEmpty()) {
-                    return client().queryForLong(String.format("SELECT count(*) FROM \"%1$s\" task " +
-                                    "WHERE task.state = ? AND task.group = ? ", tableName),
-                            state, group);
+                    return client().queryForLong(String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                    "WHERE kind = 'g' AND state = ? AND \"key\" = ? ", tableName),
+                            state, dictionary.find(group));
                 } else {
-                    return client().queryForLong(String.format("SELECT count(*) from \"%s\" WHERE state = ?", tableName), state);
+                    return count(state);
                 }
             } catch (SQLException e) {
                 throw new RuntimeException(e);
@@ -888,7 +1920,7 @@ public class PostgresTaskStore implements TaskStore {
 
 
         private CountMap<String> queryForCountMap(String sql, Object... args) throws SQLException {
-            PreparedStatement stmt = stmt(sql, args);
+            PreparedStatement stmt = stmt(readPool(), sql, args);
             try {
                 ResultSet result = stmt.executeQuery();
                 CountMap<String> out = new CountMap<String>();
@@ -897,13 +1929,13 @@ public class PostgresTaskStore implements TaskStore {
                 }
                 return out;
             } finally {
-                stmt.close();
+                close(readPool(), stmt);
             }
         }
 
 
         public Set<String> queryStringSet(String sql, Object... args) throws SQLException {
-            PreparedStatement stmt = stmt(sql, args);
+            PreparedStatement stmt = stmt(readPool(), sql, args);
             try {
                 ResultSet result = stmt.executeQuery();
                 Set<String> out = new HashSet<String>();
@@ -912,61 +1944,93 @@ public class PostgresTaskStore implements TaskStore {
                 }
                 return out;
             } finally {
-                stmt.close();
-            }
-        }
-
-        public void pgListen() throws SQLException {
-            if (log.isTraceEnabled()) {
-                log.trace(String.format("Listening on PG : \"%s_event\"", tableName));
+                close(readPool(), stmt);
             }
-            execute(String.format("LISTEN \"%s_event\"", tableName));
         }
 
-        public void pgNotify() throws SQLException {
+        public void pgNotify(String payload) throws SQLException {
             if (log.isTraceEnabled()) {
-                log.trace(String.format("Notifying on PG : \"%s_event\"", tableName));
+                log.trace(String.format("Notifying on PG : \"%s_event\" %s", tableName, payload));
             }
 
-            execute(String.format("NOTIFY \"%s_event\"", tableName));
+            execute("SELECT pg_notify(?, ?)", tableName + "_event", payload);
         }
 
-        public boolean hasNotifications() throws SQLException {
-            execute("SELECT 1"); //Trigger notification push
-            PGNotification[] notifications = pgConn().getNotifications();
-            return notifications != null && notifications.length > 0;
+        private boolean inTransaction() {
+            return pinned != null;
         }
 
-
         public DBIterator<UUID> getIds(int state) {
             return getIds(state, null);
         }
 
+        /**
+         * Gets the ids of tasks in the given state that has none of the excluded tags.
+         */
+        public DBIterator<UUID> getIds(int state, String type, Set<String> excludedTags) {
+            List<Object> args = new ArrayList<Object>();
+            args.add(state);
+
+            String typeFilter = "";
+            if (type != null && !type.isEmpty()) {
+                typeFilter = String.format("AND EXISTS (SELECT 1 FROM \"%s_tags\" tag WHERE tag.id = task.id AND tag.tag_id = ?) ", tableName);
+                args.add(dictionary.find(type));
+            }
+
+            List<Integer> excludedTagIds = new ArrayList<Integer>();
+            for (String tag : excludedTags) {
+                int tagId = dictionary.find(tag);
+                if (tagId > -1) {
+                    excludedTagIds.add(tagId);
+                }
+            }
+
+            String excludeFilter = "";
+            if (!excludedTagIds.isEmpty()) {
+                excludeFilter = String.format("AND NOT EXISTS (SELECT 1 FROM \"%s_tags\" tag WHERE tag.id = task.id AND tag.tag_id IN (%s)) ",
+                        tableName, StringUtils.repeat("?", ",", excludedTagIds.size()));
+                args.addAll(excludedTagIds);
+            }
+
+            try {
+                return client()
+                        .queryIterator(UUID_ROW_MAPPER,
+                                String.format("SELECT count(*) " +
+                                        "FROM \"%s\" task " +
+                                        "WHERE task.state = ? %s%s", tableName, typeFilter, excludeFilter),
+                                ID_COLUMNS,
+                                String.format("FROM \"%1$s\" task " +
+                                        "WHERE task.state = ? %2$s%3$s", tableName, typeFilter, excludeFilter),
+                                "", false,
+                                args.toArray()
+                        );
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
         public DBIterator<UUID> getIds(int state, String type) {
             try {
                 if (type != null && !type.isEmpty()) {
                     return client()
                             .queryIterator(UUID_ROW_MAPPER,
-                                    String.format("SELECT count(distinct task.id) " +
-                                            "FROM \"%1$s\" task, \"%1$s_tags\" tag " +
-                                            "WHERE tag.id = task.id AND task.state = ? AND tag.tag = ? ", tableName),
-                                    String.format("SELECT task.id " +
-                                            "FROM \"%1$s\" task, \"%1$s_tags\" tag " +
-                                            "WHERE tag.id = task.id AND task.state = ? AND tag.tag = ? " +
-                                            "GROUP BY task.id " +
-                                            "ORDER BY task.priority DESC, task.created ASC, task.order ASC ", tableName),
-                                    state, type
+                                    String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                            "WHERE kind = 't' AND state = ? AND \"key\" = ? ", tableName),
+                                    ID_COLUMNS,
+                                    String.format("FROM \"%1$s\" task, \"%1$s_tags\" tag " +
+                                            "WHERE tag.id = task.id AND task.state = ? AND tag.tag_id = ? ", tableName),
+                                    "GROUP BY task.id ", false,
+                                    state, dictionary.find(type)
                             );
                 } else {
                     return client()
                             .queryIterator(UUID_ROW_MAPPER,
-                                    String.format("SELECT count(*) " +
-                                            "FROM \"%s\" task " +
+                                    String.format("SELECT sum(count) FROM \"%s_counts\" " +
+                                            "WHERE kind = '*' AND state = ? AND \"key\" = 0 ", tableName),
+                                    ID_COLUMNS,
+                                    String.format("FROM \"%1$s\" task " +
                                             "WHERE task.state = ? ", tableName),
-                                    String.format("SELECT task.id " +
-                                            "FROM \"%s\" task " +
-                                            "WHERE task.state = ? " +
-                                            "ORDER BY task.priority DESC, task.created ASC, task.order ASC ", tableName), state
+                                    "", false, state
                             );
                 }
             } catch (SQLException e) {
@@ -975,48 +2039,70 @@ public class PostgresTaskStore implements TaskStore {
         }
 
 
+        /**
+         * Iterates a query page by page. Each page starts right after the queue position - state, priority, created
+         * and order - of the last row of the page before. The rows after a position are read as a union of index
+         * ranges of state_priority_idx: the rest of its priority, the lower priorities and - when ordered by state -
+         * the lower states. Each range starts where the position is instead of at the head of the queue, and rows
+         * added while iterating do not shift the pages.
+         *
+         * Pages are read in full on a pooled connection that is given back right away - iterators that are left
+         * unfinished do not hold on to a connection.
+         */
         public class DBIterator<Task> implements ParallelIterator<Task> {
 
-            private final String sql;
+            private final String columns;
+            private final String fromWhere;
+            private final String groupBy;
+            private final boolean byState;
             private final String countSql;
             private final Object[] args;
             private final RowMapper<Task> rowMapper;
-            private int offset = 0;
-            private int lastOffset = -1;
-            private long bufferOffset = 0;
-            private long bufferSize = 40000;
-            private PreparedStatement stmt = null;
-            private ResultSet result = null;
-            private boolean lastResult = false;
+            private final QueuePosition from;
+            private final QueuePosition to;
+            private final boolean thisChunkOnly;
+            private int bufferSize = 10000;
+            private Iterator<Task> page = null;
+            private boolean lastPage = false;
+            private QueuePosition last = null;
             private long totalCount = -1;
-            private boolean thisChunkOnly = false;
 
-            public DBIterator(RowMapper<Task> rowMapper, String countSql, String sql, Object... args) {
+            public DBIterator(RowMapper<Task> rowMapper, String countSql, String columns, String fromWhere, String groupBy,
+                              boolean byState, Object... args) {
                 this.rowMapper = rowMapper;
-                this.sql = sql;
+                this.columns = columns;
+                this.fromWhere = fromWhere;
+                this.groupBy = groupBy;
+                this.byState = byState;
                 this.countSql = countSql;
                 this.args = args;
+                this.from = null;
+                this.to = null;
+                this.thisChunkOnly = false;
             }
 
-            private DBIterator(RowMapper<Task> rowMapper, String countSql, String sql, long offset, long size, Object... args) {
-                this.rowMapper = rowMapper;
-                this.sql = sql;
-                this.args = args;
-                this.bufferOffset = offset;
-                this.bufferSize = size;
-                this.countSql = countSql;
+            /**
+             * Iterates the rows after from and up to - and including - to.
+             */
+            private DBIterator(DBIterator<Task> parent, QueuePosition from, QueuePosition to, long size) {
+                this.rowMapper = parent.rowMapper;
+                this.columns = parent.columns;
+                this.fromWhere = parent.fromWhere;
+                this.groupBy = parent.groupBy;
+                this.byState = parent.byState;
+                this.countSql = parent.countSql;
+                this.args = parent.args;
+                this.from = from;
+                this.to = to;
+                this.totalCount = size;
                 this.thisChunkOnly = true;
             }
 
             @Override
             public long size() {
                 if (totalCount < 0 && countSql != null) {
-                    String sqlStr = countSql;
-                    if (thisChunkOnly) {
-                        sqlStr = String.format("%s OFFSET %s LIMIT %s", countSql, bufferOffset, bufferSize);
-                    }
                     try {
-                        totalCount = client().queryForLong(sqlStr, args);
+                        totalCount = client().queryForLong(countSql, args);
                     } catch (SQLException e) {
                         totalCount = 0;
                         log.error("Failed to count rows", e);
@@ -1028,108 +2114,170 @@ public class PostgresTaskStore implements TaskStore {
 
             @Override
             public boolean canDoParallel() {
-                long total = size();
-                if (total < 10000) {
-                    return false;
-                }
-                return true;
+                return !thisChunkOnly && size() >= 10000;
             }
 
             @Override
             public ParallelIterator[] getParallelIterators() {
                 final long total = size();
-                if (total < 10000) {
+                if (thisChunkOnly || total < 10000) {
                     return new ParallelIterator[]{this};
                 }
                 int chunks = total > 40000 ? 4 : 2;
                 long chunkSize = (long) Math.ceil((double) total / (double) chunks);
 
+                //Each chunk ends with the row before the first row of the next chunk
+                QueuePosition[] bounds = new QueuePosition[chunks + 1];
+                try {
+                    List<QueuePosition> positions = positionsEvery(chunkSize, chunks - 1);
+                    if (positions.size() < chunks - 1) {
+                        return new ParallelIterator[]{this};
+                    }
+                    for (int i = 1; i < chunks; i++) {
+                        bounds[i] = positions.get(i - 1);
+                    }
+                } catch (SQLException e) {
+                    log.warn("Failed to split query", e);
+                    return new ParallelIterator[]{this};
+                }
+
                 DBIterator<Task>[] iterators = new DBIterator[chunks];
                 for (int i = 0; i < chunks; i++) {
-                    iterators[i] = new DBIterator<Task>(rowMapper, countSql, sql, i * chunkSize, chunkSize, args) {
-                        @Override
-                        public boolean canDoParallel() {
-                            return false;
-                        }
-                    };
+                    long size = i < chunks - 1 ? chunkSize : total - (chunks - 1) * chunkSize;
+                    iterators[i] = new DBIterator<Task>(this, bounds[i], bounds[i + 1], size);
                 }
 
                 return iterators;
             }
 
-            @Override
-            public boolean hasNext() {
+            /**
+             * Gets the queue positions of every interval'th row - up to count positions. Only used to split up the
+             * query: all positions are read in one pass over the rows, which stops at the last one.
+             */
+            private List<QueuePosition> positionsEvery(long interval, int count) throws SQLException {
+                List<Object> pageArgs = new ArrayList<Object>();
+                String positionSql = "SELECT * FROM (" +
+                        "SELECT ordered.state, ordered.priority, ordered.created, ordered.order, " +
+                        "row_number() OVER (" + orderBy("ordered.") + ") AS row_num " +
+                        "FROM (" + pageSql(POSITION_COLUMNS, interval * count, pageArgs) + ") ordered" +
+                        String.format(") boundary WHERE boundary.row_num %% %s = 0 ORDER BY boundary.row_num", interval);
+
+                PostgresClient client = client();
+                PreparedStatement positionStmt = client.stmt(readPool(), positionSql, pageArgs.toArray());
                 try {
-
-                    if (lastOffset == offset) {
-                        return lastResult;
+                    ResultSet positionResult = positionStmt.executeQuery();
+                    List<QueuePosition> positions = new ArrayList<QueuePosition>(count);
+                    while (positionResult.next()) {
+                        positions.add(new QueuePosition(positionResult));
                     }
+                    return positions;
+                } finally {
+                    client.close(readPool(), positionStmt);
+                }
+            }
 
-                    lastOffset = offset;
-
-                    if (result == null || result.isAfterLast()) {
-
-
-                        if (result != null && thisChunkOnly) {
-                            ensureClosed();
-                            return lastResult = false;
-                        }
+            private String orderBy(String alias) {
+                return (byState ? "ORDER BY " + alias + "state DESC, " : "ORDER BY ") +
+                        alias + "priority DESC, " + alias + "created ASC, " + alias + "order ASC ";
+            }
 
-                        if (result != null && offset > 0) {
-                            bufferOffset += bufferSize;
-                        }
+            /**
+             * Selects the given columns of the next limit rows after the last row read - or the start of this chunk -
+             * and up to the end of this chunk. Adds the arguments of the query to pageArgs.
+             */
+            private String pageSql(String columns, long limit, List<Object> pageArgs) {
+                QueuePosition after = last != null ? last : from;
+                if (after == null) {
+                    return rangeSql(columns, null, Collections.emptyList(), limit, pageArgs);
+                }
 
-                        ensureClosed();
+                //Each range is read in index order and stops at the limit - the union is merged in queue order
+                StringBuilder out = new StringBuilder("SELECT * FROM (");
+                for (int range = 0; range < QueuePosition.ranges(byState); range++) {
+                    if (range > 0) {
+                        out.append(" UNION ALL ");
+                    }
+                    List<Object> rangeArgs = new ArrayList<Object>();
+                    String condition = after.after(range, byState, rangeArgs);
+                    out.append("(").append(rangeSql(columns, condition, rangeArgs, limit, pageArgs)).append(")");
+                }
+                return out.append(") page ")
+                        .append(orderBy("page."))
+                        .append(String.format("LIMIT %s", limit))
+                        .toString();
+            }
 
+            /**
+             * Selects the rows of the query that match the condition - or all rows if null - up to the end of this
+             * chunk.
+             */
+            private String rangeSql(String columns, String condition, List<Object> conditionArgs, long limit,
+                                    List<Object> pageArgs) {
+                pageArgs.addAll(Arrays.asList(args));
+                String sql = "SELECT " + columns + " " + fromWhere;
+                if (condition != null) {
+                    sql += "AND " + condition;
+                    pageArgs.addAll(conditionArgs);
+                }
+                if (to != null) {
+                    sql += "AND " + to.upTo(byState, pageArgs);
+                }
+                return sql + groupBy + orderBy("task.") + String.format("LIMIT %s", limit);
+            }
 
-                        stmt = stmt(String.format("%s OFFSET %s LIMIT %s", sql, bufferOffset, bufferSize), args);
+            private void nextPage() throws SQLException {
+                List<Object> pageArgs = new ArrayList<Object>();
+                String pageSql = pageSql(columns, bufferSize, pageArgs);
 
-                        result = stmt.executeQuery();
-                        result.setFetchSize(1);
-                        lastResult = result.next();
-                        if (!lastResult) {
-                            ensureClosed();
-                        }
-                        return lastResult;
+                PostgresClient client = client();
+                PreparedStatement stmt = client.stmt(readPool(), pageSql, pageArgs.toArray());
+                try {
+                    ResultSet result = stmt.executeQuery();
+                    List<Task> rows = new ArrayList<Task>();
+                    while (result.next()) {
+                        rows.add(rowMapper.mapRow(stmt, result));
+                        last = new QueuePosition(result);
                     }
+                    result.close();
 
-                } catch (SQLException e) {
-                    log.warn("Failed to execute query", e);
+                    lastPage = rows.size() < bufferSize;
+                    page = rows.iterator();
+                } finally {
+                    client.close(readPool(), stmt);
                 }
-
-                return lastResult = true;
             }
 
-            private void ensureClosed() throws SQLException {
-                if (stmt != null) {
-                    stmt.close();
-                    stmt = null;
-                }
-                if (result != null) {
-                    result.close();
-                    result = null;
+            @Override
+            public boolean hasNext() {
+                while (page == null || !page.hasNext()) {
+                    if (lastPage) {
+                        return false;
+                    }
+
+                    try {
+                        nextPage();
+                    } catch (SQLException e) {
+                        log.warn("Failed to execute query", e);
+                        close();
+                        return false;
+                    }
                 }
+
+                return true;
             }
 
             @Override
             public Task next() {
-                offset++;
-                try {
-                    Task out = rowMapper.mapRow(stmt, result);
-                    result.next();
-                    return out;
-                } catch (SQLException e) {
-                    log.error("Failed to map row", e);
-                    throw new RuntimeException(e);
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                return page.next();
             }
 
             @Override
             public void close() {
-                try {
-                    ensureClosed();
-                } catch (SQLException e) {
-                }
+                page = null;
+                lastPage = true;
             }
 
             @Override
@@ -1141,6 +2289,199 @@ public class PostgresTaskStore implements TaskStore {
         }
     }
 
+    /**
+     * The position of a row in the queue order
+     */
+    private static class QueuePosition {
+        private final int state;
+        private final int priority;
+        private final long created;
+        private final long order;
+
+        private QueuePosition(ResultSet result) throws SQLException {
+            this.state = result.getInt("state");
+            this.priority = result.getInt("priority");
+            this.created = result.getLong("created");
+            this.order = result.getLong("order");
+        }
+
+        /**
+         * Number of index ranges that together hold the rows after a position
+         */
+        private static int ranges(boolean byState) {
+            return byState ? 3 : 2;
+        }
+
+        /**
+         * SQL condition matching one of the index ranges after this position: the rest of its priority, the lower
+         * priorities or the lower states. Each range is a bound state_priority_idx can seek to - unlike a single
+         * condition OR-ing them together. Adds its arguments to args.
+         */
+        private String after(int range, boolean byState, List<Object> args) {
+            String out = "";
+            if (byState && range < 2) {
+                out += "task.state = ? AND ";
+                args.add(state);
+            }
+
+            switch (range) {
+                case 0:
+                    args.add(priority);
+                    args.add(created);
+                    args.add(order);
+                    return out + "task.priority = ? AND (task.created, task.order) > (?, ?) ";
+                case 1:
+                    args.add(priority);
+                    return out + "task.priority < ? ";
+                default:
+                    args.add(state);
+                    return "task.state < ? ";
+            }
+        }
+
+        /**
+         * SQL condition matching the rows up to - and including - this position. Starts with a bound on the leading
+         * column so the index scan stops at it. Adds its arguments to args.
+         */
+        private String upTo(boolean byState, List<Object> args) {
+            String out = "";
+            if (byState) {
+                out += "task.state >= ? AND (task.state > ? OR (task.state = ? AND ";
+                args.add(state);
+                args.add(state);
+                args.add(state);
+            } else {
+                out += "task.priority >= ? AND ";
+                args.add(priority);
+            }
+
+            out += "(task.priority > ? OR (task.priority = ? AND (task.created, task.order) <= (?, ?))) ";
+            args.add(priority);
+            args.add(priority);
+            args.add(created);
+            args.add(order);
+
+            return byState ? out + ")) " : out;
+        }
+    }
+
+    /**
+     * Dictionary backed by the dictionary table. Ids are handed out by the table - new names are added to it on
+     * a connection of their own, outside of any transaction, so a rolled back transaction never leaves an id behind
+     * that other processes do not know.
+     */
+    private class Dictionary extends TagDictionary {
+        private volatile boolean loaded = false;
+
+        private Dictionary load() {
+            if (loaded) {
+                return this;
+            }
+
+            synchronized (this) {
+                if (loaded) {
+                    return this;
+                }
+
+                try {
+                    Connection connection = readPool().acquire();
+                    try {
+                        Statement stmt = connection.createStatement();
+                        try {
+                            ResultSet result = stmt.executeQuery(String.format("SELECT id, name FROM \"%s_dict\"", tableName));
+                            while (result.next()) {
+                                put(result.getString(2), result.getInt(1));
+                            }
+                        } finally {
+                            stmt.close();
+                        }
+                    } finally {
+                        readPool().release(connection);
+                    }
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                loaded = true;
+            }
+            return this;
+        }
+
+        private synchronized void reset() {
+            clear();
+            loaded = false;
+        }
+
+        /**
+         * Gets the id of the name - adding it to the dictionary table if it is not there already
+         */
+        @Override
+        public int intern(String name) {
+            load();
+            int id = indexOf(name);
+            if (id > -1) {
+                return id;
+            }
+
+            id = query(name, true);
+            put(name, id);
+            return id;
+        }
+
+        /**
+         * Gets the id of the name or -1 if it is not in the dictionary table. Names added by other processes are
+         * looked up in the table.
+         */
+        private int find(String name) {
+            if (name == null) {
+                return -1;
+            }
+
+            load();
+            int id = indexOf(name);
+            if (id > -1) {
+                return id;
+            }
+
+            id = query(name, false);
+            if (id > -1) {
+                put(name, id);
+            }
+            return id;
+        }
+
+        /**
+         * Reads the id of the name from the table - on a read connection, as those are never pinned by a
+         * transaction.
+         */
+        private int query(String name, boolean insert) {
+            try {
+                Connection connection = readPool().acquire();
+                try {
+                    if (insert) {
+                        PreparedStatement stmt = statements(connection).prepare(String.format(
+                                "INSERT INTO \"%s_dict\" (name) VALUES (?) ON CONFLICT (name) DO NOTHING", tableName));
+                        stmt.setString(1, name);
+                        stmt.executeUpdate();
+                    }
+
+                    PreparedStatement stmt = statements(connection).prepare(String.format(
+                            "SELECT id FROM \"%s_dict\" WHERE name = ?", tableName));
+                    stmt.setString(1, name);
+                    ResultSet result = stmt.executeQuery();
+                    try {
+                        return result.next() ? result.getInt(1) : -1;
+                    } finally {
+                        result.close();
+                    }
+                } finally {
+                    readPool().release(connection);
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     private static interface RowMapper<Task> {
 
         Task mapRow(PreparedStatement stmt, ResultSet result) throws SQLException;
@@ -1158,14 +2499,178 @@ public class PostgresTaskStore implements TaskStore {
         public Task mapRow(PreparedStatement stmt, ResultSet result) throws SQLException {
             UUID id = (UUID) result.getObject("id");
             try {
-                byte[] contents = Base64.decodeBase64(result.getBytes("content"));
-                return documentSerializer.deserialize(new String(contents, "UTF8"), taskClass);
+                return deserialize(result.getBytes("content"));
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
         }
     };
 
+    private final RowMapper<Task> STATE_ROW_MAPPER = new RowMapper<Task>() {
+        @Override
+        public Task mapRow(PreparedStatement stmt, ResultSet result) throws SQLException {
+            Task task = TASK_ROW_MAPPER.mapRow(stmt, result);
+            switch (result.getInt("state")) {
+                case STATE_QUEUED:
+                    task.setState(State.PENDING);
+                    break;
+                case STATE_RUNNING:
+                    task.setState(State.RUNNING);
+                    break;
+                default:
+                    task.setState(State.ERROR);
+                    break;
+            }
+            return task;
+        }
+    };
+
+    /**
+     * Writes rows in the text format of COPY. Rows are buffered and sent in chunks of about 64 KB.
+     */
+    private static class CopyWriter {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private static final int CHUNK_SIZE = 64 * 1024;
+
+        private final CopyIn copy;
+        private final StringBuilder buffer = new StringBuilder(CHUNK_SIZE + 1024);
+        private boolean firstColumn = true;
+
+        private CopyWriter(CopyIn copy) {
+            this.copy = copy;
+        }
+
+        private CopyWriter column(String value) {
+            separate();
+            if (value == null) {
+                buffer.append("\\N");
+                return this;
+            }
+
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\\':
+                        buffer.append("\\\\");
+                        break;
+                    case '\t':
+                        buffer.append("\\t");
+                        break;
+                    case '\n':
+                        buffer.append("\\n");
+                        break;
+                    case '\r':
+                        buffer.append("\\r");
+                        break;
+                    default:
+                        buffer.append(c);
+                }
+            }
+            return this;
+        }
+
+        private CopyWriter column(long value) {
+            separate();
+            buffer.append(value);
+            return this;
+        }
+
+        /**
+         * Writes bytea values in hex format - the backslash of \x is escaped as COPY requires
+         */
+        private CopyWriter column(byte[] value) {
+            separate();
+            buffer.append("\\\\x");
+            for (byte b : value) {
+                buffer.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+            return this;
+        }
+
+        private void separate() {
+            if (!firstColumn) {
+                buffer.append('\t');
+            }
+            firstColumn = false;
+        }
+
+        private void endRow() throws SQLException {
+            buffer.append('\n');
+            firstColumn = true;
+            if (buffer.length() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws SQLException {
+            byte[] bytes = buffer.toString().getBytes(UTF8);
+            copy.writeToCopy(bytes, 0, bytes.length);
+            buffer.setLength(0);
+        }
+
+        private void end() throws SQLException {
+            flush();
+            copy.endCopy();
+        }
+
+        /**
+         * Aborts the copy if it has not ended
+         */
+        private void cancel() throws SQLException {
+            if (copy.isActive()) {
+                copy.cancelCopy();
+            }
+        }
+    }
+
+    /**
+     * Changes waiting to be sent to other processes - merged by kind of change
+     */
+    private static class PendingNotifications {
+        private boolean sending = false;
+        private boolean everything = false;
+        private final Map<TaskWaiters.Change, Set<String>> changes =
+                new EnumMap<TaskWaiters.Change, Set<String>>(TaskWaiters.Change.class);
+
+        private void add(TaskWaiters.Change change, Set<String> tags) {
+            if (everything) {
+                return;
+            }
+
+            if (change == null || tags == null) {
+                everything = true;
+                changes.clear();
+                return;
+            }
+
+            Set<String> changedTags = changes.get(change);
+            if (changedTags == null) {
+                changedTags = new HashSet<String>();
+                changes.put(change, changedTags);
+            }
+            changedTags.addAll(tags);
+        }
+
+        private List<String> takePayloads() {
+            List<String> out = new ArrayList<String>();
+            if (everything) {
+                out.add(payload(null, null));
+            } else {
+                for (Map.Entry<TaskWaiters.Change, Set<String>> entry : changes.entrySet()) {
+                    out.add(payload(entry.getKey(), entry.getValue()));
+                }
+            }
+
+            everything = false;
+            changes.clear();
+            return out;
+        }
+    }
+
+    /**
+     * Listens for notifications from other processes on a connection of its own. Blocks on the connection until
+     * a notification arrives - waiters are woken as soon as the notification is received.
+     */
     private class Listener extends Thread {
         private Listener() {
             super("pg-queue-listener");
@@ -1174,51 +2679,121 @@ public class PostgresTaskStore implements TaskStore {
 
         @Override
         public void run() {
-
-            PostgresClient client = null;
+            Connection connection = null;
+            long retryDelay = MIN_LISTEN_RETRY_DELAY;
 
             try {
-
-                try {
-                    client = new PostgresClient();
-                    client.pgListen();
-                } catch (SQLException e) {
-                    throw new RuntimeException(e);
-                }
-
                 while (!interrupted() && !closed) {
-                    try {
-                        if (client.hasNotifications()) {
-                            log.trace("PG returned notifications");
-                            synchronized (PostgresTaskStore.this) {
-                                PostgresTaskStore.this.notifyAll();
+                    if (connection == null) {
+                        try {
+                            connection = newConnection();
+                            connection.setAutoCommit(true);
+                            listen(connection);
+                            retryDelay = MIN_LISTEN_RETRY_DELAY;
+                        } catch (SQLException e) {
+                            log.warn(String.format("Failed to listen for changes to %s - retrying in %s ms",
+                                    tableName, retryDelay), e);
+                            closeQuietly(connection);
+                            connection = null;
+                            if (!waitToRetry(retryDelay)) {
+                                break;
                             }
+                            retryDelay = Math.min(retryDelay * 2, MAX_LISTEN_RETRY_DELAY);
+                            continue;
                         }
-                    } catch (SQLException e) {
-                        synchronized (PostgresTaskStore.this) {
-                            PostgresTaskStore.this.notifyAll();
-                        }
-                        throw new RuntimeException(e);
+
+                        //Changes made while not listening were not heard
+                        waiters.signalAll();
                     }
 
-                    synchronized (this) {
-                        try {
-                            wait(1000);
-                        } catch (InterruptedException e) {
-                            return;
+                    try {
+                        //Times out now and then to check if the store was closed
+                        PGNotification[] notifications = ((PGConnection) connection).getNotifications(500);
+                        if (notifications != null) {
+                            signal(notifications);
+                        }
+                    } catch (SQLException e) {
+                        if (closed) {
+                            break;
                         }
+                        log.warn(String.format("Lost connection listening for changes to %s - reconnecting",
+                                tableName), e);
+                        closeQuietly(connection);
+                        connection = null;
+                        //Waiters look again rather than wait for a change that may never be heard
+                        waiters.signalAll();
                     }
                 }
+            } finally {
+                closeQuietly(connection);
+            }
+        }
+
+        /**
+         * @return false if interrupted
+         */
+        private boolean waitToRetry(long millis) {
+            try {
+                Thread.sleep(millis);
+                return true;
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        private void closeQuietly(Connection connection) {
+            if (connection == null) {
+                return;
+            }
+
+            try {
+                connection.close();
+            } catch (Exception e) {
+                log.warn("Failed to close listener connection", e);
+            }
+        }
 
+        private void listen(Connection connection) throws SQLException {
+            if (log.isTraceEnabled()) {
+                log.trace(String.format("Listening on PG : \"%s_event\"", tableName));
+            }
+            Statement stmt = connection.createStatement();
+            try {
+                stmt.execute(String.format("LISTEN \"%s_event\"", tableName));
             } finally {
-                try {
-                    client.close();
-                } catch (Exception e) {
-                    log.warn("Failed to shut down client", e);
-                }
+                stmt.close();
             }
+        }
 
+        /**
+         * Wakes the waiters affected by notifications sent by other processes
+         */
+        private void signal(PGNotification[] notifications) {
+            for (PGNotification notification : notifications) {
+                //Only the pids of open pooled connections - pids are reused by the server once a connection closes
+                if (backendPids.containsValue(notification.getPID())) {
+                    continue;
+                }
+
+                log.trace("PG returned notification");
+
+                String payload = notification.getParameter();
+                if (payload == null || payload.isEmpty()) {
+                    waiters.signalAll();
+                    continue;
+                }
 
+                String[] lines = payload.split("\n");
+                TaskWaiters.Change change;
+                try {
+                    change = TaskWaiters.Change.valueOf(lines[0]);
+                } catch (IllegalArgumentException e) {
+                    waiters.signalAll();
+                    continue;
+                }
+
+                waiters.signal(change, Arrays.asList(lines).subList(1, lines.length));
+            }
         }
     }
 }
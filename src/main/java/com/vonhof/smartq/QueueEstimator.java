@@ -20,16 +20,66 @@ public class QueueEstimator {
         });
     }
 
+    /**
+     * Marks rate limits and estimates that have not been looked up yet
+     */
+    private final static long UNKNOWN = Long.MIN_VALUE;
+
+    private final static Comparator<TaskInfo> BY_END_TIME = new Comparator<TaskInfo>() {
+        @Override
+        public int compare(TaskInfo a, TaskInfo b) {
+            if (a.getEnded() != b.getEnded()) {
+                return a.getEnded() < b.getEnded() ? -1 : 1;
+            }
+            return BY_ORDER.compare(a, b);
+        }
+    };
+
+    private final static Comparator<TaskInfo> BY_ORDER = new Comparator<TaskInfo>() {
+        @Override
+        public int compare(TaskInfo a, TaskInfo b) {
+            return a.getOrder() < b.getOrder() ? -1 : (a.getOrder() == b.getOrder() ? 0 : 1);
+        }
+    };
+
+    private final static Comparator<PriorityQueue<TaskInfo>> BY_FIRST_ORDER = new Comparator<PriorityQueue<TaskInfo>>() {
+        @Override
+        public int compare(PriorityQueue<TaskInfo> a, PriorityQueue<TaskInfo> b) {
+            return BY_ORDER.compare(a.peek(), b.peek());
+        }
+    };
+
     private long time = 0;
+    private long order = 0;
     private final SmartQ queue;
     private final TaskStore store;
-    private final List<TaskInfo> runningTasks = new LinkedList<>();
-    private final List<TaskInfo> onHold = new ArrayList<>(1000);
+    /**
+     * Running tasks ordered by their estimated end time
+     */
+    private final PriorityQueue<TaskInfo> runningTasks = new PriorityQueue<>(1000, BY_END_TIME);
+    /**
+     * Tasks that were held back only because all subscribers were busy
+     */
+    private final PriorityQueue<TaskInfo> onHold = new PriorityQueue<>(1000, BY_ORDER);
+    /**
+     * Tasks that were held back by a rate limit - by the tag that held them back
+     */
+    private final List<PriorityQueue<TaskInfo>> onHoldByTag = new ArrayList<>();
+    /**
+     * Tags that have had capacity freed and might have held tasks that can run
+     */
+    private final BitSet releasedTags = new BitSet();
+    private final PriorityQueue<PriorityQueue<TaskInfo>> releasable = new PriorityQueue<>(16, BY_FIRST_ORDER);
+    private int holdingSize = 0;
     private final List<TaskInfo> executionOrder = new LinkedList<>();
     private final HashMap<String, Long> referenceMap = new HashMap<>();
+    private Map<UUID, Long> startTimes = null;
+    private boolean complete = false;
+    private TagDictionary tags;
     private FastCountMap runningTaskCount;
     private FastCountMap concurrencyCache;
     private FastCountMap estimates;
+    private long untypedEstimate;
     private Speed speed = Speed.AUTO;
 
     public QueueEstimator(SmartQ queue) {
@@ -41,6 +91,36 @@ public class QueueEstimator {
         this.speed = speed;
     }
 
+    /**
+     * Records when each task with a reference starts while simulating. None are recorded for queues that are split up
+     * for parallel simulation, and only those of the tasks simulated before guesstimating - see isComplete.
+     * @param recordStartTimes
+     */
+    public synchronized void setRecordStartTimes(boolean recordStartTimes) {
+        this.startTimes = recordStartTimes ? new HashMap<UUID, Long>() : null;
+    }
+
+    /**
+     * Gets the simulated start times of the tasks with a reference from the last run. Empty unless start times are
+     * being recorded.
+     * @return
+     */
+    public synchronized Map<UUID, Long> getStartTimes() {
+        if (startTimes == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.unmodifiableMap(startTimes);
+    }
+
+    /**
+     * Whether the last run simulated every task of the queue in one piece. If not - the queue was split up for
+     * parallel simulation or the end was guesstimated - start times and reference ETAs are only known for some tasks.
+     * @return
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
     public synchronized long queueEnds() throws InterruptedException {
         return taskStarts(null);
     }
@@ -56,15 +136,16 @@ public class QueueEstimator {
     public synchronized long taskStarts(ParallelIterator<Task> queued, final Task task) throws InterruptedException {
 
         if (speed.equals(Speed.AUTO) && queued.size() > 0) {
-            if (queued.size() > 500000) {
+            if (queued.size() > 2000000) {
                 speed = Speed.FASTEST;
-            } else if (queued.size() > 100000) {
+            } else if (queued.size() > 1000000) {
                 speed = Speed.FAST;
             } else {
                 speed = Speed.EXACT;
             }
         }
 
+        complete = false;
         boolean doInParallel = speed.getSpeed() >= Speed.FAST.getSpeed();
         if (doInParallel &&
                 queued.canDoParallel() &&
@@ -72,6 +153,11 @@ public class QueueEstimator {
 
             final ParallelIterator[] its = queued.getParallelIterators();
             if (its.length > 1) {
+                referenceMap.clear();
+                if (startTimes != null) {
+                    startTimes.clear();
+                }
+
                 final List<Future<Long>> futures = new LinkedList<>();
 
                 for(final ParallelIterator it : its) {
@@ -115,12 +201,21 @@ public class QueueEstimator {
 
             runningTasks.clear();
             onHold.clear();
+            onHoldByTag.clear();
+            releasedTags.clear();
+            holdingSize = 0;
             executionOrder.clear();
             referenceMap.clear();
+            if (startTimes != null) {
+                startTimes.clear();
+            }
             time = 0;
-            concurrencyCache = new FastCountMap(store.getTags(), -1);
-            runningTaskCount = new FastCountMap(store.getTags(), 0);
-            estimates = new FastCountMap(store.getTags(), -1);
+            order = 0;
+            tags = new TagDictionary(store.getTags());
+            concurrencyCache = new FastCountMap(tags, UNKNOWN);
+            runningTaskCount = new FastCountMap(tags, 0);
+            estimates = new FastCountMap(tags, UNKNOWN);
+            untypedEstimate = UNKNOWN;
 
             int maxHoldingSize = -1;
 
@@ -134,11 +229,10 @@ public class QueueEstimator {
             long size = queued.size();
             long criticalMass = Math.max(15000, size / 5L);
             mainWhile:
-            while(queued.hasNext() || !onHold.isEmpty())  {
+            while(queued.hasNext() || holdingSize > 0)  {
                 time = markFirstDone(); //Moves time forward
 
                 //Check if we had to skip some that now can be executed
-                int holdingSize = onHold.size();
                 if (maxHoldingSize < holdingSize) {
                     maxHoldingSize = holdingSize;
                 }
@@ -151,40 +245,41 @@ public class QueueEstimator {
                 }
 
                 holdingHits++;
-                for(TaskInfo holding : new ArrayList<>(onHold)) {
-                    if (canRunNow(holding)) {
-                        if (task != null &&
-                                holding.getId().equals(task.getId())) {
-                            return time;
-                        }
-
-                        if (onHold.remove(holding)) {
-                            markAsRunning(holding);
-                            taskCount++;
-                        }
+                int holdingBefore = holdingSize;
+                TaskInfo released;
+                while((released = releaseNextHeld()) != null) {
+                    if (task != null &&
+                            released.getId().equals(task.getId())) {
+                        return time;
                     }
+
+                    markAsRunning(released);
+                    taskCount++;
                 }
 
-                if (holdingSize > 500) {
+                if (holdingBefore > 500) {
                     continue; //Save some memory
                 }
 
                 while(queued.hasNext()) {
-                    TaskInfo next = new TaskInfo(queued.next());
+                    TaskInfo next = new TaskInfo(queued.next(), tags);
+                    next.setOrder(order++);
 
 
                     //Pick from queue
 
-                    if (!canRunNow(next)) {
-                        onHold.add(next);
-                        if (!canRunAny()) {
-                            break;
-                        } else {
-                            if (onHold.size() > 500) {
-                                continue mainWhile;//Save some memory
-                            }
-                            continue;
+                    if (!canRunAny()) {
+                        hold(next, -1);
+                        break;
+                    }
+
+                    int blockingTag = getBlockingTag(next);
+                    if (blockingTag > -1) {
+                        hold(next, blockingTag);
+                        if (holdingSize > 500) {
+                            continue mainWhile;//Save some memory
                         }
+                        continue;
                     }
 
                     if (task != null &&
@@ -204,6 +299,7 @@ public class QueueEstimator {
             }
 
             referenceMap.put("total",time);
+            complete = true;
             return time;
         } finally {
             queued.close();
@@ -218,49 +314,117 @@ public class QueueEstimator {
             return time;
         }
 
-        long fastest = time; //Now
+        long fastest = runningTasks.peek().getEnded();
+
+        while(!runningTasks.isEmpty() &&
+                runningTasks.peek().getEnded() == fastest) {
+            markAsDone(runningTasks.poll(), fastest);
+        }
 
-        for(TaskInfo task : runningTasks) {
+        return fastest;
+    }
 
-            long estimate = estimates.get(task.getType());
-            if (estimate < 0) {
-                estimate = estimates.set(task.getType(), queue.getEstimateForTaskType(task.getType()));
+    /**
+     * Puts a task on hold until the given tag - or any subscriber if the tag is -1 - has capacity for it.
+     */
+    private void hold(TaskInfo task, int tagId) {
+        if (tagId < 0) {
+            onHold.add(task);
+        } else {
+            while(onHoldByTag.size() <= tagId) {
+                onHoldByTag.add(null);
             }
+            PriorityQueue<TaskInfo> tagQueue = onHoldByTag.get(tagId);
+            if (tagQueue == null) {
+                tagQueue = new PriorityQueue<>(16, BY_ORDER);
+                onHoldByTag.set(tagId, tagQueue);
+            }
+            tagQueue.add(task);
+        }
+        holdingSize++;
+    }
+
+    /**
+     * Finds the held task that comes first in the queue and can run now. Only the hold queues of tags that
+     * have had capacity freed are looked at, so each held task is visited once per release of its tag.
+     *
+     * @return the task - taken off hold - or null if none of the held tasks can run now.
+     */
+    private TaskInfo releaseNextHeld() throws InterruptedException {
+        if (holdingSize < 1 || !canRunAny()) {
+            return null;
+        }
 
-            long estimatedEndTime = task.getStarted() + estimate;
+        releasable.clear();
+        if (!onHold.isEmpty()) {
+            releasable.add(onHold);
+        }
 
-            if (fastest == time || estimatedEndTime < fastest) {
-                fastest = estimatedEndTime;
+        for(int tagId = releasedTags.nextSetBit(0); tagId > -1; tagId = releasedTags.nextSetBit(tagId + 1)) {
+            PriorityQueue<TaskInfo> tagQueue = onHoldByTag.get(tagId);
+            if (tagQueue.isEmpty() || isSaturated(tagId)) {
+                releasedTags.clear(tagId);
+                continue;
             }
+            releasable.add(tagQueue);
         }
 
-        for(TaskInfo task : new LinkedList<>(runningTasks)) {
-            long estimatedEndTime = task.getStarted() + estimates.get(task.getType());
+        while(!releasable.isEmpty()) {
+            PriorityQueue<TaskInfo> holdQueue = releasable.poll();
+            TaskInfo held = holdQueue.poll();
+            holdingSize--;
 
-            if (estimatedEndTime == fastest) {
-                markAsDone(task, estimatedEndTime);
+            int blockingTag = getBlockingTag(held);
+            if (blockingTag < 0) {
+                return held;
             }
-        }
 
-        return fastest;
-    }
+            //Held back by another tag - wait for that one instead. That tag is saturated so its queue is not
+            //among the releasable ones.
+            hold(held, blockingTag);
 
+            if (!holdQueue.isEmpty()) {
+                releasable.add(holdQueue);
+            }
+        }
 
+        return null;
+    }
 
     private void markAsRunning(TaskInfo task) {
         if (log.isTraceEnabled()) {
             log.trace(String.format("Marking %s as running at %s", task, time));
         }
 
-        runningTasks.add(task);
         if (task.isRunning()) {
             task.setStarted(time - (WatchProvider.currentTime() - task.getStarted()));
         } else {
             task.setStarted(time);
         }
 
-        for(String tag: task.getTags()) {
-            runningTaskCount.increment(tag, 1);
+        long estimate;
+        if (task.getTypeId() < 0) {
+            if (untypedEstimate == UNKNOWN) {
+                untypedEstimate = queue.getEstimateForTaskType(null);
+            }
+            estimate = untypedEstimate;
+        } else {
+            estimate = estimates.get(task.getTypeId());
+            if (estimate == UNKNOWN) {
+                estimate = estimates.set(task.getTypeId(), queue.getEstimateForTaskType(tags.tagOf(task.getTypeId())));
+            }
+        }
+
+        if (startTimes != null && !StringUtils.isEmpty(task.getReferenceId())) {
+            startTimes.put(task.getId(), time);
+        }
+
+        //Estimated end time until it is actually done
+        task.setEnded(task.getStarted() + estimate);
+        runningTasks.add(task);
+
+        for(int tagId : task.getTagIds()) {
+            runningTaskCount.increment(tagId, 1);
         }
 
         if (executionOrder.size() < 300) {
@@ -269,10 +433,6 @@ public class QueueEstimator {
     }
 
     private void markAsDone(TaskInfo task, long endTime) {
-        if (!runningTasks.remove(task)) {
-            return;
-        }
-
         if (log.isTraceEnabled()) {
             log.trace(String.format("Marking %s as done at %s", task, endTime));
         }
@@ -282,8 +442,11 @@ public class QueueEstimator {
             referenceMap.put(task.getReferenceId(), endTime);
         }
 
-        for(String tag: task.getTags()) {
-            runningTaskCount.decrement(tag, 1);
+        for(int tagId : task.getTagIds()) {
+            runningTaskCount.decrement(tagId, 1);
+            if (tagId < onHoldByTag.size() && onHoldByTag.get(tagId) != null) {
+                releasedTags.set(tagId);
+            }
         }
     }
 
@@ -297,25 +460,25 @@ public class QueueEstimator {
         return true;
     }
 
-    private boolean canRunNow(TaskInfo task) throws InterruptedException {
-
-        if (!canRunAny()) {
-            return false;
-        }
-
-        for(String tag: task.getTags()) {
-            long runningCount = runningTaskCount.get(tag);
-            long rateLimit = concurrencyCache.get(tag);
-            if (rateLimit < 0) {
-                rateLimit = queue.getConcurrency(tag);
-                concurrencyCache.set(tag, rateLimit);
-            }
-            if (rateLimit > 0 && runningCount >= rateLimit) {
-                return false;
+    /**
+     * Gets the id of the first tag of the task that has reached its rate limit, or -1 if the task is not rate limited
+     */
+    private int getBlockingTag(TaskInfo task) throws InterruptedException {
+        for(int tagId : task.getTagIds()) {
+            if (isSaturated(tagId)) {
+                return tagId;
             }
         }
 
-        return true;
+        return -1;
+    }
+
+    private boolean isSaturated(int tagId) throws InterruptedException {
+        long rateLimit = concurrencyCache.get(tagId);
+        if (rateLimit == UNKNOWN) {
+            rateLimit = concurrencyCache.set(tagId, queue.getConcurrency(tags.tagOf(tagId)));
+        }
+        return rateLimit > 0 && runningTaskCount.get(tagId) >= rateLimit;
     }
 
 
@@ -327,12 +490,12 @@ public class QueueEstimator {
         /**
          * Gives a near-exact ETA of the queued tasks. Runs bigger queues in parallel thus losing some
          * level of accuracy. The bigger the queue bigger the effect this has on the speed. Use
-         * with queues of (60K+)
+         * with queues of (1M+)
          */
         FAST(2),
         /**
          * Gives a rough guesstimate of the ETA by only calculating some of the queues and doing it in parallel.
-         * Only use this on very large queues (120K+)
+         * Only use this on very large queues (2M+)
          */
         FASTEST(2),
         /**
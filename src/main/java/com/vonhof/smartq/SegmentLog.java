@@ -0,0 +1,575 @@
+package com.vonhof.smartq;
+
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of records in segment files in a directory.
+ *
+ * Records are appended to a buffer and written by a sync thread - everything appended while one write is being
+ * synced to disk goes out in the next write, so many appends share one fsync. Use sync(position) to wait for a
+ * record to be on disk.
+ *
+ * Once enough has been appended since the last checkpoint the owner writes a new checkpoint - records that rebuild
+ * its whole state - to a new segment and the old segments are deleted. Records may be appended while a checkpoint is
+ * written - they are copied in after it, before the checkpoint is marked complete. Reading the log starts from the
+ * last complete checkpoint and stops at the first torn or corrupt record, which is cut off.
+ */
+public class SegmentLog {
+    private static final Logger log = Logger.getLogger(SegmentLog.class);
+
+    private static final byte DATA = 0;
+    private static final byte CHECKPOINT_START = 1;
+    private static final byte CHECKPOINT_END = 2;
+
+    //Length, checksum and kind
+    private static final int HEADER_SIZE = 9;
+
+    //How many times the size of the last checkpoint may be appended before the next checkpoint
+    private static final int CHECKPOINT_GROWTH = 2;
+
+    private static final String SUFFIX = ".log";
+
+    public interface RecordHandler {
+        void handle(byte[] record) throws IOException;
+    }
+
+    public interface Checkpoint {
+        /**
+         * Writes the records that rebuild the current state to the output
+         * @param out
+         * @throws IOException
+         */
+        void write(RecordHandler out) throws IOException;
+    }
+
+    private final File dir;
+    private final Object writeLock = new Object();
+    private long segmentSize = 64 * 1024 * 1024;
+
+    private long segment = 0;
+    private FileChannel channel;
+    private long checkpointBytes = 0;
+    private long appendedBytes = 0;
+
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    /**
+     * Records appended since a checkpoint was started - null unless one is being written
+     */
+    private ByteArrayOutputStream sinceCheckpoint;
+    private long appended = 0;
+    private long synced = 0;
+    private IOException failure;
+
+    private Thread syncer;
+    private volatile boolean closed = false;
+
+    public SegmentLog(File dir) {
+        this.dir = dir;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Bytes that may be appended after a checkpoint before the next one is due - or twice the size of the last
+     * checkpoint if that is more, so a large state is not rewritten on every change.
+     * @param segmentSize
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reads all records from the last checkpoint on and opens the log for appending
+     * @param handler
+     * @throws IOException
+     */
+    public synchronized void open(RecordHandler handler) throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Log is already open");
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Could not create log directory %s", dir));
+        }
+
+        long[] segments = listSegments();
+        int start = -1;
+        for (int i = segments.length - 1; i >= 0; i--) {
+            Scan scan = scan(segments[i], null);
+            if (scan.checkpointStarted && !scan.checkpointEnded) {
+                //Checkpoint was cut short - the segments before it are still complete
+                log.warn(String.format("Deleting incomplete checkpoint in %s", segmentFile(segments[i])));
+                delete(segments[i]);
+                segments[i] = -1;
+                continue;
+            }
+            start = i;
+            if (scan.checkpointStarted) {
+                break;
+            }
+        }
+
+        for (int i = 0; i < start; i++) {
+            if (segments[i] > -1) {
+                delete(segments[i]);
+            }
+        }
+
+        long validBytes = 0;
+        if (start > -1) {
+            for (int i = start; i < segments.length; i++) {
+                if (segments[i] < 0) {
+                    continue;
+                }
+                Scan scan = scan(segments[i], handler);
+                segment = segments[i];
+                validBytes = scan.validBytes;
+                checkpointBytes = scan.checkpointBytes;
+            }
+        } else {
+            segment = 1;
+        }
+
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw");
+        if (file.length() > validBytes) {
+            log.warn(String.format("Cutting off %s bytes of torn records from %s",
+                    file.length() - validBytes, segmentFile(segment)));
+            file.setLength(validBytes);
+        }
+        channel = file.getChannel();
+        channel.position(validBytes);
+        appendedBytes = validBytes - checkpointBytes;
+
+        syncer = new Syncer();
+        syncer.start();
+    }
+
+    /**
+     * Appends a record. It is written to disk shortly after - use sync to wait for it.
+     * @param record
+     * @return the position of the record in the log
+     * @throws IOException if writing the log failed
+     */
+    public synchronized long append(byte[] record) throws IOException {
+        if (failure != null) {
+            throw new IOException("Log failed - no longer accepting records", failure);
+        }
+        if (closed || channel == null) {
+            throw new IOException("Log is not open");
+        }
+
+        frame(new DataOutputStream(pending), DATA, record);
+        if (sinceCheckpoint != null) {
+            frame(new DataOutputStream(sinceCheckpoint), DATA, record);
+        }
+        appendedBytes += HEADER_SIZE + record.length;
+        appended++;
+        notifyAll();
+        return appended;
+    }
+
+    /**
+     * Waits until the record at the position is on disk
+     * @param position
+     * @throws IOException if writing the log failed
+     */
+    public synchronized void sync(long position) throws IOException {
+        while (synced < position && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for log to sync", e);
+            }
+        }
+
+        if (synced < position) {
+            throw new IOException("Log failed before the record was written", failure);
+        }
+    }
+
+    /**
+     * Waits until everything appended so far is on disk
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        long position;
+        synchronized (this) {
+            position = appended;
+        }
+        sync(position);
+    }
+
+    /**
+     * True once more has been appended since the last checkpoint than the segment size - or than twice the size of
+     * the last checkpoint if that is more
+     * @return
+     */
+    public synchronized boolean isFull() {
+        return appendedBytes > Math.max(segmentSize, CHECKPOINT_GROWTH * checkpointBytes);
+    }
+
+    /**
+     * Whether a checkpoint has been started and not yet written
+     * @return
+     */
+    public synchronized boolean isCheckpointStarted() {
+        return sinceCheckpoint != null;
+    }
+
+    /**
+     * Marks the point the next checkpoint is taken at. Call it while nothing is appended - at the same time as the
+     * state the checkpoint writes is taken. Records appended after it go into the log as usual and are also written
+     * after the checkpoint.
+     * @throws IllegalStateException if a checkpoint has already been started
+     */
+    public synchronized void startCheckpoint() {
+        if (sinceCheckpoint != null) {
+            throw new IllegalStateException("Checkpoint already started");
+        }
+        sinceCheckpoint = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Writes the checkpoint to a new segment and deletes the older segments. The checkpoint is expected to match what
+     * was appended before startCheckpoint - which is called now if it was not. Records can be appended while the
+     * checkpoint is written - only the write of the records appended meanwhile holds them up.
+     * @param checkpoint
+     * @throws IOException
+     */
+    public void checkpoint(Checkpoint checkpoint) throws IOException {
+        synchronized (this) {
+            if (sinceCheckpoint == null) {
+                startCheckpoint();
+            }
+        }
+
+        long next;
+        synchronized (writeLock) {
+            next = segment + 1;
+        }
+
+        File file = segmentFile(next);
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        final long[] bytes = {0};
+        long previous;
+        try {
+            out.setLength(0);
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final DataOutputStream data = new DataOutputStream(buffer);
+
+            frame(data, CHECKPOINT_START, new byte[0]);
+            checkpoint.write(new RecordHandler() {
+                @Override
+                public void handle(byte[] record) throws IOException {
+                    frame(data, DATA, record);
+                    if (buffer.size() > 1024 * 1024) {
+                        bytes[0] += write(out.getChannel(), buffer);
+                    }
+                }
+            });
+            bytes[0] += write(out.getChannel(), buffer);
+
+            synchronized (writeLock) {
+                //Everything before the switch is on disk in the old segments - so nothing that was synced is lost
+                //if the new one is never completed
+                writePending();
+
+                ByteArrayOutputStream appendedMeanwhile;
+                long upTo;
+                synchronized (this) {
+                    appendedMeanwhile = sinceCheckpoint;
+                    sinceCheckpoint = null;
+                    //Pending records were all appended after the checkpoint was started - they go into the new segment
+                    pending = new ByteArrayOutputStream();
+                    upTo = appended;
+                }
+
+                try {
+                    bytes[0] += write(out.getChannel(), appendedMeanwhile);
+                    frame(data, CHECKPOINT_END, new byte[0]);
+                    bytes[0] += write(out.getChannel(), buffer);
+                    out.getChannel().force(true);
+                } catch (IOException e) {
+                    //The records taken from pending are on disk nowhere else
+                    synchronized (this) {
+                        failure = e;
+                        notifyAll();
+                    }
+                    throw e;
+                }
+
+                synchronized (this) {
+                    previous = segment;
+                    channel.close();
+                    channel = out.getChannel();
+                    segment = next;
+                    checkpointBytes = bytes[0];
+                    appendedBytes = 0;
+                    synced = Math.max(synced, upTo);
+                    notifyAll();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                sinceCheckpoint = null;
+            }
+            out.close();
+            if (!file.delete()) {
+                log.warn(String.format("Failed to delete incomplete checkpoint %s", file));
+            }
+            throw e;
+        }
+
+        //Reading starts from the new checkpoint whether these are deleted or not
+        for (long old : listSegments()) {
+            if (old <= previous) {
+                delete(old);
+            }
+        }
+
+        log.info(String.format("Wrote checkpoint of %s bytes to %s", bytes[0], file));
+    }
+
+    /**
+     * Writes everything appended so far and closes the log
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+
+        if (syncer != null) {
+            try {
+                syncer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (writeLock) {
+            writePending();
+            synchronized (this) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs the pending records. Must hold the write lock.
+     */
+    private void writePending() throws IOException {
+        ByteArrayOutputStream bytes;
+        FileChannel target;
+        long upTo;
+        synchronized (this) {
+            if (pending.size() == 0) {
+                return;
+            }
+            bytes = pending;
+            pending = new ByteArrayOutputStream();
+            upTo = appended;
+            target = channel;
+        }
+
+        try {
+            write(target, bytes);
+            target.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            synced = upTo;
+            notifyAll();
+        }
+    }
+
+    private static int write(FileChannel channel, ByteArrayOutputStream bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        int size = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        bytes.reset();
+        return size;
+    }
+
+    private static void frame(DataOutputStream out, byte kind, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.writeInt(checksum(kind, record));
+        out.writeByte(kind);
+        out.write(record);
+    }
+
+    private static int checksum(byte kind, byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(kind);
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the records of a segment up to the first torn or corrupt record - passing them to the handler if
+     * there is one.
+     */
+    private Scan scan(long segment, RecordHandler handler) throws IOException {
+        Scan scan = new Scan();
+        File file = segmentFile(segment);
+        long fileLength = file.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length;
+                int checksum;
+                byte kind;
+                byte[] record;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    kind = in.readByte();
+                    if (length < 0 || length > fileLength - scan.validBytes - HEADER_SIZE) {
+                        //Torn header - the length can not be trusted
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (checksum(kind, record) != checksum) {
+                    log.warn(String.format("Corrupt record at %s in %s", scan.validBytes, segmentFile(segment)));
+                    break;
+                }
+
+                if (kind == CHECKPOINT_START && scan.validBytes == 0) {
+                    scan.checkpointStarted = true;
+                } else if (kind == CHECKPOINT_END) {
+                    scan.checkpointEnded = true;
+                    scan.checkpointBytes = scan.validBytes + HEADER_SIZE + length;
+                } else if (kind == DATA && handler != null) {
+                    handler.handle(record);
+                }
+
+                scan.validBytes += HEADER_SIZE + length;
+            }
+        } finally {
+            in.close();
+        }
+        return scan;
+    }
+
+    private long[] listSegments() {
+        String[] names = dir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+
+        if (names == null) {
+            return new long[0];
+        }
+
+        long[] out = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                out[count] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                //Not one of ours
+            }
+        }
+
+        out = Arrays.copyOf(out, count);
+        Arrays.sort(out);
+        return out;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(dir, String.format("%016d%s", segment, SUFFIX));
+    }
+
+    private void delete(long segment) throws IOException {
+        File file = segmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            throw new IOException(String.format("Failed to delete log segment %s", file));
+        }
+    }
+
+    private static class Scan {
+        private long validBytes = 0;
+        private boolean checkpointStarted = false;
+        private boolean checkpointEnded = false;
+        private long checkpointBytes = 0;
+    }
+
+    private final class Syncer extends Thread {
+        private Syncer() {
+            super("segment-log-sync");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (SegmentLog.this) {
+                    while (pending.size() == 0 && !closed) {
+                        try {
+                            SegmentLog.this.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (pending.size() == 0) {
+                        return;
+                    }
+                }
+
+                synchronized (writeLock) {
+                    try {
+                        writePending();
+                    } catch (IOException e) {
+                        log.error(String.format("Failed to write log in %s", dir), e);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import org.apache.log4j.Logger;
 
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SmartQ<U>  {
     public static final String GROUP_DEFAULT = "default";
@@ -15,8 +16,12 @@ public class SmartQ<U>  {
     private volatile int concurrency = -1;
 
     private final List<QueueListener> listeners = new ArrayList<QueueListener>();
-    private boolean interrupted = false;
+    private volatile boolean interrupted = false;
     private long defaultTaskEstimate = 60000;
+    private volatile AcquireMode acquireMode = AcquireMode.SCAN;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong emptyLookups = new AtomicLong();
+    private volatile EstimateCache estimateCache;
 
     public SmartQ(final TaskStore store) {
         this.store = store;
@@ -36,6 +41,7 @@ public class SmartQ<U>  {
 
     public void setSubscribers(int subscribers) {
         this.subscribers = subscribers;
+        estimatesChanged();
     }
 
     protected int getConcurrency() {
@@ -44,6 +50,61 @@ public class SmartQ<U>  {
 
     public void setConcurrency(int concurrency) {
         this.concurrency = concurrency;
+        //Every tag is limited by the concurrency - lets the store skip the tasks it holds back
+        getStore().setDefaultRateLimit(concurrency);
+        estimatesChanged();
+    }
+
+    public AcquireMode getAcquireMode() {
+        return acquireMode;
+    }
+
+    public void setAcquireMode(AcquireMode acquireMode) {
+        this.acquireMode = acquireMode;
+    }
+
+    /**
+     * Gets the number of times this queue has looked for tasks to acquire
+     * @return
+     */
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    /**
+     * Gets the number of look-ups that found no task - i.e. wake-ups that were wasted
+     * @return
+     */
+    public long getEmptyLookupCount() {
+        return emptyLookups.get();
+    }
+
+    /**
+     * Answer ETA queries from a cached simulation of the queue that is at most maxStaleness ms old. Pass 0 or less to
+     * simulate the queue on every query - which is the default.
+     * @param maxStaleness
+     */
+    public synchronized void setEstimateStaleness(long maxStaleness) {
+        if (maxStaleness < 1) {
+            estimateCache = null;
+            return;
+        }
+
+        if (estimateCache == null) {
+            estimateCache = new EstimateCache(this, maxStaleness);
+        } else {
+            estimateCache.setMaxStaleness(maxStaleness);
+        }
+    }
+
+    /**
+     * Throws away cached estimates after changes that make them wrong right away - e.g. rate limits or cancels
+     */
+    private void estimatesChanged() {
+        EstimateCache cache = estimateCache;
+        if (cache != null) {
+            cache.invalidate();
+        }
     }
 
     public void addListener(QueueListener listener) {
@@ -121,6 +182,7 @@ public class SmartQ<U>  {
      */
     public final void setRateLimit(String tag, int limit) {
         getStore().setRateLimit(tag, limit);
+        estimatesChanged();
     }
 
     /**
@@ -147,6 +209,11 @@ public class SmartQ<U>  {
 
 
     public Map<String, Long> getEstimatesForReferenceGroups() throws InterruptedException {
+        EstimateCache cache = estimateCache;
+        if (cache != null) {
+            return cache.getEstimatesForReferenceGroups();
+        }
+
         QueueEstimator estimator = new QueueEstimator(this);
         estimator.queueEnds(getStore().getPending());
         return estimator.getReferenceETA();
@@ -158,6 +225,10 @@ public class SmartQ<U>  {
      * @return
      */
     public long getEstimatedTimeLeft(String tag) throws InterruptedException {
+        EstimateCache cache = estimateCache;
+        if (cache != null) {
+            return cache.getEstimatedTimeLeft(tag);
+        }
         return new QueueEstimator(this).queueEnds(getStore().getPending(tag));
     }
 
@@ -185,6 +256,10 @@ public class SmartQ<U>  {
      * @return
      */
     public long getEstimatedTimeLeft() throws InterruptedException {
+        EstimateCache cache = estimateCache;
+        if (cache != null) {
+            return cache.getEstimatedTimeLeft();
+        }
         return new QueueEstimator(this).queueEnds(getStore().getPending());
     }
 
@@ -193,6 +268,10 @@ public class SmartQ<U>  {
      * @return
      */
     public long getEstimatedStartTime(Task task) throws InterruptedException {
+        EstimateCache cache = estimateCache;
+        if (cache != null) {
+            return cache.getEstimatedStartTime(task);
+        }
         return new QueueEstimator(this).taskStarts(task);
     }
 
@@ -205,7 +284,7 @@ public class SmartQ<U>  {
         if (task == null) {
             return 0;
         }
-        return new QueueEstimator(this).taskStarts(task);
+        return getEstimatedStartTime(task);
     }
 
     /**
@@ -217,11 +296,12 @@ public class SmartQ<U>  {
         if (task == null) {
             return 0;
         }
-        return new QueueEstimator(this).taskStarts(task) + getEstimateForTaskType(task.getType()); //include itself
+        return getEstimatedStartTime(task) + getEstimateForTaskType(task.getType()); //include itself
     }
 
     public long getEstimateForTaskType(String type) {
-        long average = getStore().getTaskTypeEstimate(type);
+        //Tasks without a type get the default
+        long average = type != null ? getStore().getTaskTypeEstimate(type) : 0;
         if (average < 1) {
             average = defaultTaskEstimate;
         }
@@ -274,7 +354,11 @@ public class SmartQ<U>  {
 
         getStore().queue(tasks);
 
-        getStore().signalChange();
+        Set<String> tags = new HashSet<String>();
+        for(Task task : tasks) {
+            tags.addAll(task.getTagSet());
+        }
+        getStore().signalChange(TaskWaiters.Change.TASK_ADDED, tags);
 
         if (!listeners.isEmpty()) {
             for(Task task : tasks) {
@@ -304,12 +388,12 @@ public class SmartQ<U>  {
         }
 
         log.debug("Cancelled task: " + task.getId());
+        boolean wasRunning = task.isRunning();
         getStore().remove(task);
         task.setEnded(WatchProvider.currentTime());
 
-        if (!reschedule) {
-            getStore().signalChange();
-
+        if (!reschedule || wasRunning) {
+            getStore().signalChange(TaskWaiters.Change.CAPACITY_FREED, task.getTagSet());
         }
 
         if (reschedule) {
@@ -325,6 +409,7 @@ public class SmartQ<U>  {
     public void cancelByReference(String referenceId) {
         getStore().cancelByReference(referenceId);
         getStore().signalChange();
+        estimatesChanged();
     }
 
     
@@ -341,7 +426,7 @@ public class SmartQ<U>  {
         task.setEnded(WatchProvider.currentTime());
         getStore().addTaskTypeDuration(task.getType(), task.getActualDuration());
         getStore().remove(task);
-        getStore().signalChange();
+        getStore().signalChange(TaskWaiters.Change.CAPACITY_FREED, task.getTagSet());
         triggerDone(task);
 
         if (log.isDebugEnabled()) {
@@ -369,12 +454,13 @@ public class SmartQ<U>  {
 
         if (maxRetries > attempts) {
             getStore().remove(task);
+            getStore().signalChange(TaskWaiters.Change.CAPACITY_FREED, task.getTagSet());
             task.reset();
             task.setAttempts(attempts + 1);
             submit(task);
         } else {
             getStore().failed(task);
-            getStore().signalChange();
+            getStore().signalChange(TaskWaiters.Change.CAPACITY_FREED, task.getTagSet());
             triggerDone(task);
         }
     }
@@ -384,94 +470,219 @@ public class SmartQ<U>  {
         store.signalChange();
     }
 
+    /**
+     * Makes acquire calls made through this queue look again - e.g. after the free slots of a slot source changed.
+     * Other processes sharing the store are not signalled.
+     */
+    public void slotsChanged() {
+        store.getWaiters().signalAll();
+    }
+
     public Task acquire() throws InterruptedException {
         return acquire(null);
     }
 
     public Task acquire(final String tag) throws InterruptedException {
-        Task t = getNext(tag);
-        markAsRunning(t);
-        return t;
+        return acquire(tag, 1).get(0);
+    }
+
+    public List<Task> acquire(int max) throws InterruptedException {
+        return acquire(null, max);
+    }
+
+    /**
+     * Acquires up to max tasks in one pass over the queue and one store write. Blocks until at least one task is
+     * available. Rate limits are respected within the batch. Tasks are claimed from the store, so tasks that another
+     * dispatcher acquires at the same time are left out - if all of them are, the queue is looked at again.
+     */
+    public List<Task> acquire(final String tag, int max) throws InterruptedException {
+        return acquire(tag, max, null);
+    }
+
+    /**
+     * Acquires tasks for the free slots of each group. Tasks of a group without free slots of its own take the free
+     * slots of the default group. Blocks until at least one task fits a slot.
+     * @param freeSlots free slots by group
+     */
+    public List<Task> acquireForGroups(final CountMap<String> freeSlots) throws InterruptedException {
+        return acquireForGroups(new SlotSource() {
+            @Override
+            public CountMap<String> getFreeSlots() {
+                return freeSlots;
+            }
+        });
+    }
+
+    /**
+     * Acquires tasks for the free slots of each group. The slots are read again every time the look-up wakes up -
+     * call slotsChanged when they change to wake it.
+     * @param slotSource free slots by group
+     */
+    public List<Task> acquireForGroups(SlotSource slotSource) throws InterruptedException {
+        return acquire(null, Integer.MAX_VALUE, slotSource);
+    }
+
+    private List<Task> acquire(String tag, int max, SlotSource slotSource) throws InterruptedException {
+        while(true) {
+            List<Task> tasks = claim(getNext(tag, max, slotSource));
+            if (!tasks.isEmpty()) {
+                return tasks;
+            }
+            log.debug("Tasks were acquired by someone else - looking again");
+        }
+    }
+
+    /**
+     * Puts an acquired task back in the queue. Unlike cancel with reschedule the task keeps its creation time - so
+     * it does not go behind tasks created after it - and is not submitted again.
+     * @param task
+     */
+    public void release(Task task) throws InterruptedException {
+        getStore().remove(task);
+        task.setState(State.PENDING);
+        task.setStarted(0);
+        getStore().queue(task);
+
+        getStore().signalChange(TaskWaiters.Change.CAPACITY_FREED, task.getTagSet());
+        getStore().signalChange(TaskWaiters.Change.TASK_ADDED, task.getTagSet());
+
+        if (log.isDebugEnabled()) {
+            log.debug("Released task: " + task.getId());
+        }
     }
 
     public Task getNext() throws InterruptedException {
         return getNext(null);
     }
-    
+
     public Task getNext(final String tag) throws InterruptedException {
+        return getNext(tag, 1).get(0);
+    }
+
+    public List<Task> getNext(int max) throws InterruptedException {
+        return getNext(null, max);
+    }
+
+    public List<Task> getNext(final String tag, final int max) throws InterruptedException {
+        return getNext(tag, max, null);
+    }
+
+    private List<Task> getNext(final String tag, final int maxTasks, final SlotSource slotSource) throws InterruptedException {
+        if (maxTasks < 1) {
+            throw new IllegalArgumentException("Max must be at least 1: " + maxTasks);
+        }
 
             interrupted = false;
-            Task selectedTask = null;
+            List<Task> selectedTasks = null;
+            final TaskWaiters.Waiter waiter = getStore().getWaiters().register(tag);
 
-            while(selectedTask == null) {
+            try {
+                while(selectedTasks == null || selectedTasks.isEmpty()) {
 
-                if (log.isDebugEnabled()) {
-                    log.debug(String.format("Running tasks: %s", getStore().runningCount()));
-                    log.debug(String.format("Queue queueSize: %s", getStore().queueSize()));
-                }
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("Running tasks: %s", getStore().runningCount()));
+                        log.debug(String.format("Queue queueSize: %s", getStore().queueSize()));
+                    }
 
-                try {
-                    selectedTask = new Callable<Task>() {
-                        @Override
-                        public Task call() throws Exception {
-                            long timeStart = System.currentTimeMillis();
-                            CountMap<String> tasksRunning = new CountMap<String>();
+                    final CountMap<String> tasksRunning = new CountMap<String>();
+                    //Read after the waiter is registered - slots freed from here on wake the await below
+                    final CountMap<String> slotsLeft = slotSource != null ? new CountMap<String>() : null;
+                    long slotCount = maxTasks;
+                    if (slotsLeft != null) {
+                        slotCount = 0;
+                        for(Map.Entry<String, Long> entry : slotSource.getFreeSlots().entrySet()) {
+                            if (entry.getValue() > 0) {
+                                slotsLeft.increment(entry.getKey(), entry.getValue());
+                                slotCount += entry.getValue();
+                            }
+                        }
+                    }
+                    final int max = (int) Math.min(maxTasks, slotCount);
+                    lookups.incrementAndGet();
+
+                    try {
+                        selectedTasks = new Callable<List<Task>>() {
+                            @Override
+                            public List<Task> call() throws Exception {
+                                if (max < 1) {
+                                    //No free slots - wait for slotsChanged
+                                    return Collections.emptyList();
+                                }
 
-                            final Iterator<UUID> queuedIds = tag != null ? getStore().getQueuedIds(tag) : getStore().getQueuedIds();
+                                long timeStart = System.currentTimeMillis();
 
-                            Task taskLookup = null;
+                                final Iterator<UUID> queuedIds;
+                                if (acquireMode == AcquireMode.SKIP_RATE_LIMITED) {
+                                    queuedIds = getStore().getQueuedIds(tag, getRateLimitedTags(tasksRunning));
+                                } else {
+                                    queuedIds = tag != null ? getStore().getQueuedIds(tag) : getStore().getQueuedIds();
+                                }
 
-                            lookupLoop:
-                            while(queuedIds.hasNext()) {
-                                final UUID taskId = queuedIds.next();
-                                final Task task = getStore().get(taskId);
+                                List<Task> taskLookups = new ArrayList<Task>(Math.min(max, 16));
 
-                                if (task == null || task.isRunning()) {
-                                    if (log.isDebugEnabled()) {
-                                        log.debug(String.format("Task not found: %s", taskId));
+                                lookupLoop:
+                                while(queuedIds.hasNext()) {
+                                    final UUID taskId = queuedIds.next();
+                                    final Task task = getStore().get(taskId);
+
+                                    if (task == null || task.isRunning()) {
+                                        if (log.isDebugEnabled()) {
+                                            log.debug(String.format("Task not found: %s", taskId));
+                                        }
+                                        continue lookupLoop;
                                     }
-                                    continue lookupLoop;
-                                }
 
-                                if (isRateLimited(tasksRunning, task)) {
-                                    continue lookupLoop;
-                                }
+                                    if (isRateLimited(tasksRunning, task)) {
+                                        continue lookupLoop;
+                                    }
 
-                                taskLookup = task;
-                                break;
-                            }
+                                    if (slotsLeft != null && !takeSlot(slotsLeft, task)) {
+                                        continue lookupLoop;
+                                    }
 
-                            long timeTaken = System.currentTimeMillis() - timeStart;
+                                    taskLookups.add(task);
+                                    if (taskLookups.size() >= max) {
+                                        break;
+                                    }
 
-                            if (taskLookup != null) {
-                                if (log.isDebugEnabled()) {
-                                    log.debug(String.format("Found task %s for tag %s, group %s in %s ms", taskLookup.getId(), tag, taskLookup.getGroup(), timeTaken));
+                                    countAsRunning(tasksRunning, task);
                                 }
-                            } else if (log.isDebugEnabled()) {
-                                log.debug(String.format("Found no tasks for tag %s in %s ms", tag, timeTaken));
-                            }
 
-                            return taskLookup;
-                        }
-                    }.call();
+                                long timeTaken = System.currentTimeMillis() - timeStart;
 
-                } catch (Exception e) {
-                    log.error("Failed while trying to get selected task", e);
-                }
+                                if (!taskLookups.isEmpty()) {
+                                    if (log.isDebugEnabled()) {
+                                        log.debug(String.format("Found %s tasks for tag %s in %s ms", taskLookups.size(), tag, timeTaken));
+                                    }
+                                } else if (log.isDebugEnabled()) {
+                                    log.debug(String.format("Found no tasks for tag %s in %s ms", tag, timeTaken));
+                                }
+
+                                return taskLookups;
+                            }
+                        }.call();
+
+                    } catch (Exception e) {
+                        log.error("Failed while trying to get selected task", e);
+                    }
 
 
-                if (selectedTask == null) {
-                    log.debug("Waiting for tasks");
-                    getStore().waitForChange();
-                    log.debug("Woke up!");
-                    if (interrupted) {
-                        interrupted = false;
-                        throw new AcquireInterruptedException();
+                    if (selectedTasks == null || selectedTasks.isEmpty()) {
+                        emptyLookups.incrementAndGet();
+                        log.debug("Waiting for tasks");
+                        waiter.await(getBlockedTags(tasksRunning));
+                        log.debug("Woke up!");
+                        if (interrupted) {
+                            interrupted = false;
+                            throw new AcquireInterruptedException();
+                        }
                     }
                 }
+            } finally {
+                getStore().getWaiters().unregister(waiter);
             }
 
-            return selectedTask;
+            return selectedTasks;
     }
 
     public boolean isRateLimited(Task task) throws InterruptedException {
@@ -480,25 +691,105 @@ public class SmartQ<U>  {
 
     private boolean isRateLimited(CountMap<String> tasksRunning, Task task) throws InterruptedException {
         for(String tag : (Set<String>)task.getTagSet()) {
-            int limit = getRateLimit(tag);
+            if (isRateLimited(tasksRunning, tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            if (limit > 0) {
-                if (!tasksRunning.contains(tag)) {
-                    tasksRunning.set(tag, getStore().runningCount(tag));
-                }
-                long running = tasksRunning.get(tag);
+    private boolean isRateLimited(CountMap<String> tasksRunning, String tag) throws InterruptedException {
+        int limit = getRateLimit(tag);
 
-                if (running >= limit) {
-                    if (log.isTraceEnabled()) {
-                        log.trace(String.format("Rate limited tag: %s (Running: %s, Limit: %s)",tag, running, limit));
-                    }
-                    return true;
+        if (limit > 0) {
+            if (!tasksRunning.contains(tag)) {
+                tasksRunning.set(tag, getStore().runningCount(tag));
+            }
+            long running = tasksRunning.get(tag);
+
+            if (running >= limit) {
+                if (log.isTraceEnabled()) {
+                    log.trace(String.format("Rate limited tag: %s (Running: %s, Limit: %s)",tag, running, limit));
                 }
+                return true;
             }
         }
         return false;
     }
 
+    /**
+     * Takes a slot of the group of the task - or of the default group if its own group has none left
+     * @param slotsLeft
+     * @param task
+     * @return false if there was no slot for the task
+     */
+    private static boolean takeSlot(CountMap<String> slotsLeft, Task task) {
+        String group = task.getGroup();
+        if (slotsLeft.get(group) < 1) {
+            group = GROUP_DEFAULT;
+        }
+
+        if (slotsLeft.get(group) < 1) {
+            return false;
+        }
+
+        slotsLeft.decrement(group, 1);
+        return true;
+    }
+
+    /**
+     * Counts a task picked for the current batch against the rate limits of its tags
+     * @param tasksRunning
+     * @param task
+     */
+    private void countAsRunning(CountMap<String> tasksRunning, Task task) throws InterruptedException {
+        for(String tag : (Set<String>)task.getTagSet()) {
+            if (getRateLimit(tag) > 0) {
+                isRateLimited(tasksRunning, tag);
+                tasksRunning.increment(tag, 1);
+            }
+        }
+    }
+
+    /**
+     * Gets the tags that held back tasks in a look-up - freeing capacity for any of these might let it find a task.
+     * @param tasksRunning the running counts collected during the look-up
+     * @return
+     */
+    private Set<String> getBlockedTags(CountMap<String> tasksRunning) {
+        Set<String> out = new HashSet<String>();
+        for(Map.Entry<String, Long> entry : tasksRunning.entrySet()) {
+            int limit = getRateLimit(entry.getKey());
+            if (limit > 0 && entry.getValue() >= limit) {
+                out.add(entry.getKey());
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Gets the tags that already have as many running tasks as their rate limit allows
+     * @param tasksRunning
+     * @return
+     */
+    private Set<String> getRateLimitedTags(CountMap<String> tasksRunning) throws InterruptedException {
+        //Only tags with running tasks can be saturated - the counts and limits are read once
+        CountMap<String> running = getStore().getRunningCounts();
+        CountMap<String> limits = getStore().getAllRateLimit();
+
+        Set<String> out = new HashSet<String>();
+        for(Map.Entry<String, Long> entry : running.entrySet()) {
+            String tag = entry.getKey();
+            tasksRunning.set(tag, entry.getValue());
+
+            long limit = limits.get(tag) > 0 ? limits.get(tag) : getConcurrency();
+            if (limit > 0 && entry.getValue() >= limit) {
+                out.add(tag);
+            }
+        }
+        return out;
+    }
+
     public int getRateLimit(Task task) throws InterruptedException {
         int result = -1;
         for(String tag : (Set<String>)task.getTagSet()) {
@@ -551,6 +842,7 @@ public class SmartQ<U>  {
             }
         }.call();
 
+        estimatesChanged();
     }
 
     public void markAsRunning(Task t) {
@@ -566,6 +858,21 @@ public class SmartQ<U>  {
 
     }
 
+    private List<Task> claim(List<Task> tasks) {
+        log.trace("Claiming tasks for running pool");
+        List<Task> claimed = getStore().claim(tasks.toArray(new Task[tasks.size()]));
+
+        for(Task t : claimed) {
+            triggerAcquire(t);
+
+            if (log.isDebugEnabled()) {
+                log.debug("Acquired task: " + t.getId());
+            }
+        }
+
+        return claimed;
+    }
+
     public Task markAsRunning(final UUID taskId) throws Exception {
         return new Callable<Task>() {
             @Override
@@ -584,7 +891,26 @@ public class SmartQ<U>  {
 
     public void setEstimateForTaskType(String type, long estimate) {
         getStore().setTaskTypeEstimate(type, estimate);
+        estimatesChanged();
     }
 
+    public static enum AcquireMode {
+        /**
+         * Walks the queue in order and skips every task that is rate limited. This is the default mode.
+         */
+        SCAN,
+        /**
+         * Finds the tags that are saturated before looking at the queue and lets the store leave out every task
+         * that carries one of them. Use with queues where large amounts of tasks are held back by rate limits.
+         */
+        SKIP_RATE_LIMITED
+    }
+
+    /**
+     * Supplies the free slots by group for acquireForGroups
+     */
+    public static interface SlotSource {
+        CountMap<String> getFreeSlots();
+    }
 
 }
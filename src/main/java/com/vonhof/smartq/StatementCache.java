@@ -0,0 +1,80 @@
+package com.vonhof.smartq;
+
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of a single connection by SQL. The most recently used statements are kept open so the driver
+ * can reuse their server side prepared plans instead of parsing and planning the SQL on every call.
+ *
+ * Statements from the cache must not be closed by the caller. Not thread safe - a connection is only used by one
+ * thread at a time.
+ */
+public class StatementCache {
+    private static final Logger log = Logger.getLogger(StatementCache.class);
+
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+
+    public StatementCache(Connection connection, final int maxSize) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > maxSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the statement for the given SQL - preparing it if it is not cached already. Parameters and batches of
+     * earlier uses are cleared.
+     * @param sql
+     * @return
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt != null && !stmt.isClosed()) {
+            stmt.clearParameters();
+            stmt.clearBatch();
+            return stmt;
+        }
+
+        stmt = connection.prepareStatement(sql);
+        statements.put(sql, stmt);
+        return stmt;
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * Closes all cached statements
+     */
+    public void close() {
+        for(PreparedStatement stmt : statements.values()) {
+            closeQuietly(stmt);
+        }
+        statements.clear();
+    }
+
+    private void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            log.debug("Failed to close cached statement", e);
+        }
+    }
+}
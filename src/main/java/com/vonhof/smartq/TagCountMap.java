@@ -0,0 +1,54 @@
+package com.vonhof.smartq;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts by tag id - ids from a TagDictionary - in an atomic array. Reads never block.
+ *
+ * Updates must be made by one thread at a time, e.g. while holding the lock of the owner - the array is replaced
+ * when an id does not fit in it.
+ */
+public class TagCountMap {
+
+    private volatile AtomicLongArray counts = new AtomicLongArray(16);
+
+    public long increment(int id, long count) {
+        return ensureCapacity(id).addAndGet(id, count);
+    }
+
+    public long decrement(int id, long count) {
+        return ensureCapacity(id).addAndGet(id, -count);
+    }
+
+    public long get(int id) {
+        AtomicLongArray current = counts;
+        if (id < 0 || id >= current.length()) {
+            return 0L;
+        }
+        return current.get(id);
+    }
+
+    public void clear() {
+        counts = new AtomicLongArray(16);
+    }
+
+    private AtomicLongArray ensureCapacity(int id) {
+        AtomicLongArray current = counts;
+        if (id < current.length()) {
+            return current;
+        }
+
+        int length = current.length();
+        while (length <= id) {
+            length <<= 1;
+        }
+
+        AtomicLongArray grown = new AtomicLongArray(length);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        counts = grown;
+        return grown;
+    }
+}
@@ -0,0 +1,247 @@
+package com.vonhof.smartq;
+
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Gives each tag a small int id - ids are handed out in order starting from 0. Lets hot loops count and look up
+ * tags in plain arrays instead of hashing strings. Also used for groups and types, so stores can share one
+ * dictionary and persist it - ids given with put() are kept as they are.
+ *
+ * Tags are kept in an open addressing hash table with linear probing. Thread safe - new tags are rare once a queue
+ * is running, so the table is copied on write and published through a volatile field. Look-ups never lock.
+ */
+public class TagDictionary {
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private volatile Table table;
+
+    public TagDictionary() {
+        this(16);
+    }
+
+    public TagDictionary(Collection<String> tags) {
+        this(tags.size());
+        intern(tags);
+    }
+
+    public TagDictionary(int expectedSize) {
+        table = new Table(capacityFor(expectedSize), expectedSize);
+    }
+
+    /**
+     * Gets the id of the tag - adding the tag if it is not known already
+     * @param tag
+     * @return
+     */
+    public int intern(String tag) {
+        int id = table.indexOf(tag);
+        if (id > -1) {
+            return id;
+        }
+
+        synchronized (this) {
+            Table current = table;
+            id = current.indexOf(tag);
+            if (id > -1) {
+                return id;
+            }
+
+            id = current.next;
+            table = current.with(tag, id);
+            return id;
+        }
+    }
+
+    /**
+     * Adds the tag with the given id - e.g. one read back from where the dictionary is persisted
+     * @param tag
+     * @param id
+     * @throws IllegalArgumentException if the tag is known with another id or the id belongs to another tag
+     */
+    public synchronized void put(String tag, int id) {
+        Table current = table;
+        int known = current.indexOf(tag);
+        if (known > -1) {
+            if (known != id) {
+                throw new IllegalArgumentException(String.format("Tag %s already has id %s - not %s", tag, known, id));
+            }
+            return;
+        }
+
+        if (id < current.next && current.byId[id] != null) {
+            throw new IllegalArgumentException(String.format("Id %s already belongs to tag %s - not %s",
+                    id, current.byId[id], tag));
+        }
+
+        table = current.with(tag, id);
+    }
+
+    /**
+     * Gets the id of the tag or -1 if the tag is unknown
+     * @param tag
+     * @return
+     */
+    public int indexOf(String tag) {
+        return table.indexOf(tag);
+    }
+
+    /**
+     * Gets the ids of the given tags - adding any tags that are not known already
+     * @param tags
+     * @return
+     */
+    public int[] intern(Collection<String> tags) {
+        int[] out = new int[tags.size()];
+        int i = 0;
+        Table current = table;
+        for(String tag : tags) {
+            out[i] = current.indexOf(tag);
+            if (out[i] < 0) {
+                break;
+            }
+            i++;
+        }
+
+        if (i == out.length) {
+            return out;
+        }
+
+        synchronized (this) {
+            //Copies the table once for all the new tags
+            current = table.copy(capacityFor(table.count + tags.size()));
+            i = 0;
+            for(String tag : tags) {
+                int id = current.indexOf(tag);
+                if (id < 0) {
+                    id = current.next;
+                    current.add(tag, id);
+                }
+                out[i++] = id;
+            }
+            table = current;
+        }
+        return out;
+    }
+
+    /**
+     * Gets the tag with the given id
+     * @param id
+     * @return
+     */
+    public String tagOf(int id) {
+        Table current = table;
+        return id >= 0 && id < current.next ? current.byId[id] : null;
+    }
+
+    /**
+     * Ids are always less than this. The amount of known tags unless ids were given with put().
+     * @return
+     */
+    public int size() {
+        return table.next;
+    }
+
+    /**
+     * Gets the tags by id - ids without a tag are null
+     * @return
+     */
+    public String[] toArray() {
+        Table current = table;
+        return Arrays.copyOf(current.byId, current.next);
+    }
+
+    /**
+     * Forgets all tags
+     */
+    public synchronized void clear() {
+        table = new Table(table.tags.length, 0);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while(capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    @Override
+    public String toString() {
+        return "TagDictionary{" +
+                "tags=" + Arrays.toString(toArray()) +
+                '}';
+    }
+
+    /**
+     * The hash table - only changed before it is published
+     */
+    private static final class Table {
+        private final String[] tags;
+        private final int[] slots;
+        private String[] byId;
+        private final int mask;
+        private int count = 0;
+        private int next = 0;
+
+        private Table(int capacity, int expectedIds) {
+            this.tags = new String[capacity];
+            this.slots = new int[capacity];
+            this.byId = new String[Math.max(expectedIds, 16)];
+            this.mask = capacity - 1;
+        }
+
+        private int indexOf(String tag) {
+            int slot = slotOf(tag);
+            return tags[slot] != null ? slots[slot] : -1;
+        }
+
+        /**
+         * Gets a copy of the table with the tag added
+         */
+        private Table with(String tag, int id) {
+            Table out = copy(count + 1 > tags.length * LOAD_FACTOR ? tags.length * 2 : tags.length);
+            out.add(tag, id);
+            return out;
+        }
+
+        private Table copy(int capacity) {
+            Table out = new Table(Math.max(capacity, tags.length), 0);
+            out.byId = Arrays.copyOf(byId, byId.length);
+            out.count = count;
+            out.next = next;
+            for(int i = 0; i < tags.length; i++) {
+                if (tags[i] != null) {
+                    int slot = out.slotOf(tags[i]);
+                    out.tags[slot] = tags[i];
+                    out.slots[slot] = slots[i];
+                }
+            }
+            return out;
+        }
+
+        private void add(String tag, int id) {
+            if (id >= byId.length) {
+                byId = Arrays.copyOf(byId, Math.max(id + 1, byId.length * 2));
+            }
+
+            int slot = slotOf(tag);
+            tags[slot] = tag;
+            slots[slot] = id;
+            byId[id] = tag;
+            count++;
+            next = Math.max(next, id + 1);
+        }
+
+        private int slotOf(String tag) {
+            int h = tag.hashCode();
+            h ^= (h >>> 16);
+            int slot = (h * 0x9E3779B9) & mask;
+            while(tags[slot] != null && !tags[slot].equals(tag)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
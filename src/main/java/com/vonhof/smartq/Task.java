@@ -7,7 +7,7 @@ import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import java.util.*;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
-public class Task<T> {
+public class Task<T> implements Cloneable {
     private UUID id;
     private State state = State.PENDING;
     private long created = 0;
@@ -42,6 +42,18 @@ public class Task<T> {
         this.group = task.group;
     }
 
+    /**
+     * Shallow copy of the task of the same class as the task - so subclasses keep their class and fields
+     * @return
+     */
+    public Task<T> copy() {
+        try {
+            return (Task<T>) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
     public static Task copyNoDate(Task task) {
         Task out = new Task();
         out.id = UUID.randomUUID();
@@ -0,0 +1,126 @@
+package com.vonhof.smartq;
+
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact scheduling record of a queued or running task - all the indexes of the memory store need to order, bucket
+ * and filter the task without touching the task itself.
+ *
+ * Tags, type and group are kept as ids from a TagDictionary and the id as its two halves. A header is created each
+ * time the task is queued or run and is never changed while it is in an index - except for its rate limit bucket,
+ * which is only read and written under the store lock.
+ */
+public final class TaskHeader implements Comparable<TaskHeader> {
+
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private final long idHigh;
+    private final long idLow;
+    private final int priority;
+    private final long createdSecond;
+    private final long order;
+    private final int[] tagIds;
+    private final int typeId;
+    private final int groupId;
+    private final Task task;
+    private int bucketId = -1;
+
+    /**
+     * @param task
+     * @param tagIds ids of the tags of the task
+     * @param typeId id of the type of the task or -1
+     * @param groupId id of the group of the task or -1
+     */
+    public TaskHeader(Task task, int[] tagIds, int typeId, int groupId) {
+        this.idHigh = task.getId().getMostSignificantBits();
+        this.idLow = task.getId().getLeastSignificantBits();
+        this.priority = task.getPriority();
+        this.createdSecond = task.getCreated() / 1000L;
+        this.order = sequence.incrementAndGet();
+        this.tagIds = tagIds;
+        this.typeId = typeId;
+        this.groupId = groupId;
+        this.task = task;
+    }
+
+    public UUID getId() {
+        return new UUID(idHigh, idLow);
+    }
+
+    public boolean isFor(UUID id) {
+        return id.getMostSignificantBits() == idHigh && id.getLeastSignificantBits() == idLow;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int[] getTagIds() {
+        return tagIds;
+    }
+
+    public boolean hasTag(int tagId) {
+        for(int id : tagIds) {
+            if (id == tagId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getTypeId() {
+        return typeId;
+    }
+
+    public int getGroupId() {
+        return groupId;
+    }
+
+    public Task getTask() {
+        return task;
+    }
+
+    /**
+     * Tag id of the rate limit bucket the task is in or -1
+     * @return
+     */
+    int getBucketId() {
+        return bucketId;
+    }
+
+    void setBucketId(int bucketId) {
+        this.bucketId = bucketId;
+    }
+
+    /**
+     * Orders by priority (highest first), then by the second the task was created in and finally by the order the
+     * headers were created in.
+     */
+    @Override
+    public int compareTo(TaskHeader other) {
+        if (priority != other.priority) {
+            return priority > other.priority ? -1 : 1;
+        }
+
+        if (createdSecond != other.createdSecond) {
+            return createdSecond < other.createdSecond ? -1 : 1;
+        }
+
+        if (order != other.order) {
+            return order < other.order ? -1 : 1;
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskHeader{" +
+                "id=" + getId() +
+                ", priority=" + priority +
+                ", order=" + order +
+                '}';
+    }
+}
@@ -0,0 +1,158 @@
+package com.vonhof.smartq;
+
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sorted collection of tasks backed by a skip list of task headers.
+ *
+ * Tasks are ordered by priority (highest first), then by the second they were created in and finally by the order
+ * their headers were created in. Adding, removing and finding the first task are all O(log n). The index only holds
+ * the headers given to it - the owner keeps track of which header a task has, so the index needs no map of its own.
+ */
+public class TaskIndex extends AbstractCollection<Task> {
+
+    private final ConcurrentSkipListSet<TaskHeader> headers = new ConcurrentSkipListSet<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Adds the header to the index
+     * @param header
+     * @return true if the header was not already in the index
+     */
+    public boolean add(TaskHeader header) {
+        if (headers.add(header)) {
+            size.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the header from the index
+     * @param header
+     * @return true if the header was in the index
+     */
+    public boolean remove(TaskHeader header) {
+        if (header != null && headers.remove(header)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public Task first() {
+        Iterator<TaskHeader> it = headers.iterator();
+        return it.hasNext() ? it.next().getTask() : null;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public void clear() {
+        headers.clear();
+        size.set(0);
+    }
+
+    /**
+     * Iterates the headers in order
+     * @return
+     */
+    public Iterator<TaskHeader> headers() {
+        return headers.iterator();
+    }
+
+    @Override
+    public Iterator<Task> iterator() {
+        return new TaskIterator(headers.iterator());
+    }
+
+    /**
+     * Iterates several indexes as if they were one, in the same order a single index holding all the tasks would
+     * use. Only the head of each index is looked at until it is consumed.
+     */
+    public static Iterator<TaskHeader> merge(Collection<TaskIndex> indexes) {
+        final PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, indexes.size()));
+        for(TaskIndex index : indexes) {
+            Head head = new Head(index.headers.iterator());
+            if (head.advance()) {
+                heads.add(head);
+            }
+        }
+
+        return new Iterator<TaskHeader>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public TaskHeader next() {
+                Head head = heads.poll();
+                TaskHeader out = head.current;
+                if (head.advance()) {
+                    heads.add(head);
+                }
+                return out;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Iterates the tasks of the headers
+     */
+    public static class TaskIterator implements Iterator<Task> {
+        private final Iterator<TaskHeader> headers;
+
+        public TaskIterator(Iterator<TaskHeader> headers) {
+            this.headers = headers;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return headers.hasNext();
+        }
+
+        @Override
+        public Task next() {
+            return headers.next().getTask();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class Head implements Comparable<Head> {
+        private final Iterator<TaskHeader> it;
+        private TaskHeader current;
+
+        private Head(Iterator<TaskHeader> it) {
+            this.it = it;
+        }
+
+        private boolean advance() {
+            current = it.hasNext() ? it.next() : null;
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            return current.compareTo(other.current);
+        }
+    }
+}
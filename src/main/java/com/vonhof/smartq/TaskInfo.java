@@ -2,21 +2,23 @@ package com.vonhof.smartq;
 
 
 import java.util.Arrays;
+import java.util.Set;
 import java.util.UUID;
 
 public class TaskInfo {
     private final UUID id;
-    private final String[] tags;
-    private final String type;
+    private final int[] tagIds;
+    private final int typeId;
     private final String referenceId;
     private final boolean running;
     private long started;
     private long ended;
+    private long order;
 
-    public TaskInfo(Task t) {
+    public TaskInfo(Task t, TagDictionary tags) {
         this.id = t.getId();
-        this.tags = (String[]) t.getTagSet().toArray(new String[t.getTags().size()]);
-        this.type = t.getType();
+        this.tagIds = tags.intern((Set<String>) t.getTagSet());
+        this.typeId = t.getType() != null ? tags.intern(t.getType()) : -1;
         this.running = t.isRunning();
         this.started = t.getStarted();
         this.ended = t.getEnded();
@@ -27,12 +29,12 @@ public class TaskInfo {
         return id;
     }
 
-    public String[] getTags() {
-        return tags;
+    public int[] getTagIds() {
+        return tagIds;
     }
 
-    public String getType() {
-        return type;
+    public int getTypeId() {
+        return typeId;
     }
 
     public boolean isRunning() {
@@ -59,6 +61,18 @@ public class TaskInfo {
         return referenceId;
     }
 
+    /**
+     * The position of the task in the simulated queue. Used to release held tasks in queue order.
+     * @return
+     */
+    public long getOrder() {
+        return order;
+    }
+
+    public void setOrder(long order) {
+        this.order = order;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -80,7 +94,7 @@ public class TaskInfo {
     public String toString() {
         return "TaskInfo{" +
                 "id=" + id +
-                ", tags=" + Arrays.toString(tags) +
+                ", tagIds=" + Arrays.toString(tagIds) +
                 '}';
     }
 }
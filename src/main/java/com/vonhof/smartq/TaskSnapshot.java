@@ -0,0 +1,328 @@
+package com.vonhof.smartq;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Binary snapshot of the running and queued tasks of a store - along with the position of the last change in the
+ * store it was taken from, so only later changes need to be read when it is loaded. Tasks with changes that were not
+ * written to the store yet are listed too, so they can be read from the store again.
+ *
+ * Tasks are written field by field. Only the data of a task goes through the document serializer - along with its
+ * class, as the memory store keeps it in its payload store. Instances of Task subclasses fall back to the document
+ * serializer for the whole task, as only it knows the fields of the subclass. Tags, types and groups are written once
+ * in a dictionary at the start of the snapshot and by id in the tasks.
+ */
+public class TaskSnapshot {
+    private static final int MAGIC = 0x53515331;
+    private static final int VERSION = 4;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String source;
+    private final long position;
+    private final List<Task> running;
+    private final List<Task> queued;
+    private final List<UUID> unwritten;
+
+    public TaskSnapshot(String source, long position, List<Task> running, List<Task> queued) {
+        this(source, position, running, queued, new ArrayList<UUID>());
+    }
+
+    /**
+     * @param source
+     * @param position
+     * @param running
+     * @param queued
+     * @param unwritten ids of tasks with changes not yet written to the store
+     */
+    public TaskSnapshot(String source, long position, List<Task> running, List<Task> queued, List<UUID> unwritten) {
+        this.source = source;
+        this.position = position;
+        this.running = running;
+        this.queued = queued;
+        this.unwritten = unwritten;
+    }
+
+    /**
+     * Name of the store the snapshot was taken from
+     * @return
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Position of the last change included in the snapshot
+     * @return
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public List<Task> getRunning() {
+        return running;
+    }
+
+    public List<Task> getQueued() {
+        return queued;
+    }
+
+    /**
+     * Ids of the tasks that had changes not yet written to the store when the snapshot was taken - the snapshot may
+     * not match the store for these, whether or not the changes were written later.
+     * @return
+     */
+    public List<UUID> getUnwritten() {
+        return unwritten;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file next to the file, syncs it to disk and moves it in place - so a crash
+     * while writing leaves the previous snapshot.
+     * @param file
+     * @param serializer
+     * @throws IOException
+     */
+    public void write(File file, DocumentSerializer serializer) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(source);
+            out.writeLong(position);
+
+            TagDictionary dictionary = new TagDictionary();
+            intern(dictionary, running);
+            intern(dictionary, queued);
+            writeDictionary(out, dictionary);
+
+            writeTasks(out, running, serializer, dictionary);
+            writeTasks(out, queued, serializer, dictionary);
+
+            out.writeInt(unwritten.size());
+            for (UUID id : unwritten) {
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+            }
+            out.flush();
+            fileOut.getChannel().force(true);
+        } finally {
+            out.close();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static TaskSnapshot read(File file, Class<Task> taskClass, DocumentSerializer serializer) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(String.format("Not a task snapshot: %s", file));
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported task snapshot version %s in %s", version, file));
+            }
+
+            String source = in.readUTF();
+            long position = in.readLong();
+            TagDictionary dictionary = readDictionary(in);
+            List<Task> running = readTasks(in, taskClass, serializer, dictionary);
+            List<Task> queued = readTasks(in, taskClass, serializer, dictionary);
+
+            int unwrittenCount = in.readInt();
+            List<UUID> unwritten = new ArrayList<>(unwrittenCount);
+            for (int i = 0; i < unwrittenCount; i++) {
+                unwritten.add(new UUID(in.readLong(), in.readLong()));
+            }
+            return new TaskSnapshot(source, position, running, queued, unwritten);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds the tags, types and groups of the tasks written field by field to the dictionary
+     */
+    private static void intern(TagDictionary dictionary, List<Task> tasks) {
+        for (Task task : tasks) {
+            if (isDocument(task)) {
+                continue;
+            }
+
+            if (task.getType() != null) {
+                dictionary.intern(task.getType());
+            }
+            if (task.getGroup() != null) {
+                dictionary.intern(task.getGroup());
+            }
+            for (String tag : (Set<String>) task.getTagSet()) {
+                dictionary.intern(tag);
+            }
+        }
+    }
+
+    private static void writeDictionary(DataOutputStream out, TagDictionary dictionary) throws IOException {
+        String[] tags = dictionary.toArray();
+        out.writeInt(tags.length);
+        for (String tag : tags) {
+            out.writeUTF(tag);
+        }
+    }
+
+    private static TagDictionary readDictionary(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        TagDictionary dictionary = new TagDictionary(size);
+        for (int id = 0; id < size; id++) {
+            try {
+                dictionary.put(in.readUTF(), id);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Snapshot dictionary has a tag more than once", e);
+            }
+        }
+        return dictionary;
+    }
+
+    private static void writeTasks(DataOutputStream out, List<Task> tasks, DocumentSerializer serializer,
+                                   TagDictionary dictionary) throws IOException {
+        out.writeInt(tasks.size());
+        for (Task task : tasks) {
+            if (isDocument(task)) {
+                out.writeBoolean(true);
+                writeBytes(out, serializer.serialize(task).getBytes(UTF8));
+                continue;
+            }
+
+            out.writeBoolean(false);
+            out.writeLong(task.getId().getMostSignificantBits());
+            out.writeLong(task.getId().getLeastSignificantBits());
+            out.writeByte(task.getState().ordinal());
+            out.writeLong(task.getCreated());
+            out.writeLong(task.getStarted());
+            out.writeLong(task.getEnded());
+            out.writeInt(task.getPriority());
+            out.writeInt(task.getAttempts());
+            writeString(out, task.getReferenceId());
+            out.writeInt(task.getType() != null ? dictionary.indexOf(task.getType()) : -1);
+            out.writeInt(task.getGroup() != null ? dictionary.indexOf(task.getGroup()) : -1);
+
+            Map<String, Integer> tags = task.getTags();
+            out.writeInt(tags.size());
+            for (Map.Entry<String, Integer> tag : tags.entrySet()) {
+                out.writeInt(dictionary.indexOf(tag.getKey()));
+                out.writeInt(tag.getValue());
+            }
+
+            Object data = task.getData();
+            out.writeBoolean(data != null);
+            if (data != null) {
+                out.writeUTF(data.getClass().getName());
+                writeBytes(out, serializer.serialize(data).getBytes(UTF8));
+            }
+        }
+    }
+
+    private static List<Task> readTasks(DataInputStream in, Class<Task> taskClass, DocumentSerializer serializer,
+                                        TagDictionary dictionary) throws IOException {
+        int count = in.readInt();
+        List<Task> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (in.readBoolean()) {
+                out.add(serializer.deserialize(new String(readBytes(in), UTF8), taskClass));
+                continue;
+            }
+
+            Task task;
+            try {
+                task = taskClass.newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IOException(String.format("Could not create task of %s", taskClass), e);
+            }
+
+            task.setId(new UUID(in.readLong(), in.readLong()));
+            task.setState(Task.State.values()[in.readByte()]);
+            task.setCreated(in.readLong());
+            task.setStarted(in.readLong());
+            task.setEnded(in.readLong());
+            task.setPriority(in.readInt());
+            task.setAttempts(in.readInt());
+            task.setReferenceId(readString(in));
+            String type = dictionary.tagOf(in.readInt());
+            task.setGroup(dictionary.tagOf(in.readInt()));
+
+            int tagCount = in.readInt();
+            Map<String, Integer> tags = new HashMap<>(tagCount * 2);
+            for (int j = 0; j < tagCount; j++) {
+                tags.put(dictionary.tagOf(in.readInt()), in.readInt());
+            }
+            //Tags first - setting the type adds it as a tag
+            task.setTags(tags);
+            if (type != null) {
+                task.setType(type);
+            }
+
+            if (in.readBoolean()) {
+                Class dataClass = readClass(in.readUTF(), taskClass);
+                task.setData(serializer.deserialize(new String(readBytes(in), UTF8), dataClass));
+            }
+
+            out.add(task);
+        }
+        return out;
+    }
+
+    /**
+     * Whether the task is written by the document serializer instead of field by field
+     */
+    private static boolean isDocument(Task task) {
+        return task.getClass() != Task.class;
+    }
+
+    private static Class readClass(String name, Class<Task> taskClass) throws IOException {
+        try {
+            return Class.forName(name, true, taskClass.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IOException(String.format("Unknown class of task data: %s", name), e);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] content) throws IOException {
+        out.writeInt(content.length);
+        out.write(content);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] content = new byte[in.readInt()];
+        in.readFully(content);
+        return content;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -2,6 +2,7 @@ package com.vonhof.smartq;
 
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -17,7 +18,18 @@ public interface TaskStore {
 
     public void queue(Task ... tasks);
 
-    public void run(Task task);
+    public void run(Task ... tasks);
+
+    /**
+     * Moves the tasks that are still queued to running - tasks that someone else acquired in the meantime are left
+     * out. Lets several dispatchers acquire from the same store without locking it.
+     *
+     * Only the claimed tasks are marked as running and get their start time - tasks claimed by someone else are
+     * left untouched.
+     * @param tasks
+     * @return the tasks that were moved to running
+     */
+    public List<Task> claim(Task ... tasks);
 
     public void failed(Task task);
 
@@ -31,6 +43,8 @@ public interface TaskStore {
 
     public Iterator<UUID> getQueuedIds(String type);
 
+    public Iterator<UUID> getQueuedIds(String type, Set<String> excludedTags);
+
     public Iterator<Task> getRunning();
 
     public Iterator<Task> getRunning(String type);
@@ -43,6 +57,12 @@ public interface TaskStore {
 
     public long runningCount(String type) throws InterruptedException;
 
+    /**
+     * Gets the number of running tasks of every tag that has any - in one read
+     * @return
+     */
+    public CountMap<String> getRunningCounts() throws InterruptedException;
+
     long queueSizeForGroup(String group);
 
     long runningCountForGroup(String type);
@@ -55,6 +75,10 @@ public interface TaskStore {
 
     public void signalChange();
 
+    public void signalChange(TaskWaiters.Change change, Set<String> tags);
+
+    public TaskWaiters getWaiters();
+
     ParallelIterator<Task> getPending();
 
     ParallelIterator<Task> getPending(String tag);
@@ -82,4 +106,11 @@ public interface TaskStore {
     void setRateLimit(String tag, int limit);
 
     CountMap<String> getAllRateLimit();
+
+    /**
+     * Rate limit of the tags that have none of their own - e.g. the concurrency of the queue. 0 or less for none.
+     * Only used to organize the queued tasks - it is not stored.
+     * @param limit
+     */
+    void setDefaultRateLimit(int limit);
 }
@@ -0,0 +1,166 @@
+package com.vonhof.smartq;
+
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of threads waiting for tasks so a change only wakes the waiters that can make progress from it.
+ *
+ * A waiter is registered before it starts looking for tasks. Any matching change that happens while it is looking
+ * is remembered, so the next await returns right away instead of missing the signal.
+ */
+public class TaskWaiters {
+
+    private final Set<Waiter> waiters = Collections.newSetFromMap(new ConcurrentHashMap<Waiter, Boolean>());
+    private final AtomicLong wakeups = new AtomicLong();
+    private volatile boolean wakeAll = false;
+
+    /**
+     * Registers a waiter for tasks with the given tag - or any task if tag is null.
+     * @param tag
+     * @return
+     */
+    public Waiter register(String tag) {
+        Waiter waiter = new Waiter(tag);
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    public void unregister(Waiter waiter) {
+        waiters.remove(waiter);
+    }
+
+    /**
+     * Wakes the waiters affected by a change to tasks with the given tags.
+     * @param change
+     * @param tags
+     */
+    public void signal(Change change, Collection<String> tags) {
+        if (wakeAll) {
+            signalAll();
+            return;
+        }
+
+        for(Waiter waiter : waiters) {
+            if (waiter.signal(change, tags)) {
+                wakeups.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Wakes every waiter. Used when it is not known what changed.
+     */
+    public void signalAll() {
+        for(Waiter waiter : waiters) {
+            if (waiter.signal(null, null)) {
+                wakeups.incrementAndGet();
+            }
+        }
+    }
+
+    public boolean isWakeAll() {
+        return wakeAll;
+    }
+
+    /**
+     * Wakes every waiter on any change - as it was done before waiters were matched to changes. Only meant for
+     * comparing the two, e.g. in benchmarks.
+     * @param wakeAll
+     */
+    public void setWakeAll(boolean wakeAll) {
+        this.wakeAll = wakeAll;
+    }
+
+    public int size() {
+        return waiters.size();
+    }
+
+    /**
+     * Gets the number of times a waiter has been woken up
+     * @return
+     */
+    public long getWakeups() {
+        return wakeups.get();
+    }
+
+    public static enum Change {
+        /**
+         * Tasks were added to the queue
+         */
+        TASK_ADDED,
+        /**
+         * Tasks stopped running, freeing up capacity for their tags
+         */
+        CAPACITY_FREED
+    }
+
+    public static final class Waiter {
+        private final String tag;
+        private Set<String> blockedBy = null;
+        private boolean signalled = false;
+
+        private Waiter(String tag) {
+            this.tag = tag;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * Waits until a change is signalled that could let this waiter make progress.
+         * @param blockedBy the rate limited tags that held back tasks in the last look-up
+         * @throws InterruptedException
+         */
+        public synchronized void await(Set<String> blockedBy) throws InterruptedException {
+            try {
+                this.blockedBy = blockedBy;
+                while(!signalled) {
+                    wait();
+                }
+            } finally {
+                signalled = false;
+                this.blockedBy = null;
+            }
+        }
+
+        private synchronized boolean signal(Change change, Collection<String> tags) {
+            if (signalled || !matches(change, tags)) {
+                return false;
+            }
+
+            signalled = true;
+            notifyAll();
+            return true;
+        }
+
+        private boolean matches(Change change, Collection<String> tags) {
+            if (change == null) {
+                return true;
+            }
+
+            switch (change) {
+                case TASK_ADDED:
+                    return tag == null || tags.contains(tag);
+                case CAPACITY_FREED:
+                    if (blockedBy == null) {
+                        //Still looking for tasks - we don't know what it might be blocked by yet
+                        return true;
+                    }
+
+                    for(String freedTag : tags) {
+                        if (blockedBy.contains(freedTag)) {
+                            return true;
+                        }
+                    }
+                    return false;
+            }
+            return true;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.vonhof.smartq;
 
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -14,16 +16,60 @@ public class WriteThroughTaskStore implements TaskStore {
     private final LinkedList<Runnable> tasks = new LinkedList<>();
     private final WorkerQueue workerQueue = new WorkerQueue();
     private volatile boolean closed = false;
+    private volatile int inFlight = 0;
+    private int maxBatchSize = 1000;
+
+    private final File snapshotFile;
+    private volatile long snapshotInterval = 5 * 60 * 1000;
+    private volatile long lastSnapshot = 0;
+    private volatile long lastSnapshotPosition = -1;
+    private int pendingReferenceCancels = 0;
+    private boolean snapshotWriting = false;
 
     public WriteThroughTaskStore(PostgresTaskStore diskStore) {
+        this(diskStore, null);
+    }
+
+    /**
+     * @param diskStore
+     * @param snapshotFile snapshot of the memory store written every snapshotInterval and on close. On start only
+     *                     the changes since the snapshot are read from the disk store - change tracking is added to
+     *                     the table for that if it is not there yet. Null to always read all tasks.
+     */
+    public WriteThroughTaskStore(PostgresTaskStore diskStore, File snapshotFile) {
+        this(diskStore, snapshotFile, null);
+    }
+
+    /**
+     * @param diskStore
+     * @param snapshotFile see above
+     * @param payloadStore keeps the data of queued tasks off the heap - see MemoryTaskStore.setPayloadStore. Also
+     *                     used for the tasks loaded when the store is created. The data is serialized with the
+     *                     document serializer of the disk store - set it first. Null to keep the data on the heap.
+     */
+    public WriteThroughTaskStore(PostgresTaskStore diskStore, File snapshotFile, PayloadStore payloadStore) {
         this.memStore = new MemoryTaskStore();
         this.diskStore = diskStore;
-        workerQueue.start();
+        //Same ids for tags, types and groups in memory as in the disk store
+        memStore.setDictionary(diskStore.getDictionary());
+        //Data kept off the heap is written as the disk store writes it
+        memStore.setDocumentSerializer(diskStore.getDocumentSerializer());
+        memStore.setPayloadStore(payloadStore);
+        this.snapshotFile = snapshotFile;
+        if (snapshotFile != null && !diskStore.isTrackingChanges()) {
+            diskStore.createChanges();
+            //Changes made before tracking was added can not be read - so an older snapshot can not be brought up to date
+            if (snapshotFile.exists() && !snapshotFile.delete()) {
+                log.warn(String.format("Failed to delete snapshot %s from before changes were tracked", snapshotFile));
+            }
+        }
         try {
             reload();
         } catch (InterruptedException e) {
-            return;
+            Thread.currentThread().interrupt();
         }
+        //Only once loaded - it may write a snapshot right away, replacing the one being loaded
+        workerQueue.start();
     }
 
 
@@ -53,94 +99,356 @@ public class WriteThroughTaskStore implements TaskStore {
                 }
 
 
-                Iterator<Task> queued = diskStore.getQueued();
-                Iterator<Task> running = diskStore.getRunning();
-                LinkedList<Task> tasks = new LinkedList<>();
+                if (!loadSnapshot()) {
+                    Iterator<Task> queued = diskStore.getQueued();
+                    Iterator<Task> running = diskStore.getRunning();
+                    LinkedList<Task> tasks = new LinkedList<>();
 
-                while( running.hasNext() ) {
-                    memStore.queue(running.next());
-                }
+                    while( running.hasNext() ) {
+                        memStore.queue(running.next());
+                    }
 
-                while (queued.hasNext()) {
-                    Task task = queued.next();
-                    tasks.add(task);
-                }
+                    while (queued.hasNext()) {
+                        Task task = queued.next();
+                        tasks.add(task);
+                    }
 
-                memStore.queue(tasks.toArray(new Task[tasks.size()]));
+                    memStore.queue(tasks.toArray(new Task[tasks.size()]));
+
+                    log.info(String.format("Loaded %s tasks from disk store into memory", tasks.size()));
+                }
 
                 for (String tag : memStore.getTags()) {
                     memStore.setTaskTypeEstimate(tag, diskStore.getTaskTypeEstimate(tag));
                 }
 
-                log.info(String.format("Loaded %s tasks from disk store into memory", tasks.size()));
-
                 return null;
             }
         });
 
     }
 
+    /**
+     * Loads the tasks from the snapshot and applies the changes made to the disk store after it.
+     * @return false if there is no usable snapshot
+     */
+    private boolean loadSnapshot() {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return false;
+        }
+
+        TaskSnapshot snapshot;
+        try {
+            snapshot = TaskSnapshot.read(snapshotFile, diskStore.getTaskClass(), diskStore.getDocumentSerializer());
+        } catch (IOException e) {
+            log.warn(String.format("Failed to read snapshot %s - loading all tasks", snapshotFile), e);
+            return false;
+        }
+
+        if (!diskStore.getTableName().equals(snapshot.getSource())) {
+            log.warn(String.format("Snapshot %s is of %s - loading all tasks", snapshotFile, snapshot.getSource()));
+            return false;
+        }
+
+        Map<UUID, Task> tasks = new LinkedHashMap<>();
+        for (Task task : snapshot.getRunning()) {
+            tasks.put(task.getId(), task);
+        }
+        for (Task task : snapshot.getQueued()) {
+            tasks.put(task.getId(), task);
+        }
+
+        //Deletes first - a task still in the table was inserted again after it was deleted
+        List<UUID> deleted = diskStore.getDeletedSince(snapshot.getPosition());
+        for (UUID id : deleted) {
+            tasks.remove(id);
+        }
+
+        List<Task> changed = diskStore.getChangedSince(snapshot.getPosition());
+
+        //Changes that were waiting to be written when the snapshot was taken - read as they are now
+        for (UUID id : snapshot.getUnwritten()) {
+            Task task = diskStore.get(id);
+            if (task != null) {
+                changed.add(task);
+            } else {
+                tasks.remove(id);
+            }
+        }
+
+        for (Task task : changed) {
+            if (task.getState() == Task.State.ERROR) {
+                tasks.remove(task.getId());
+            } else {
+                tasks.put(task.getId(), task);
+            }
+        }
+
+        List<Task> running = new ArrayList<>();
+        List<Task> queued = new ArrayList<>();
+        for (Task task : tasks.values()) {
+            if (task.getState() == Task.State.RUNNING) {
+                running.add(task);
+            } else {
+                queued.add(task);
+            }
+        }
+
+        Task[] runningTasks = running.toArray(new Task[running.size()]);
+        memStore.queue(runningTasks);
+        memStore.run(runningTasks);
+        memStore.queue(queued.toArray(new Task[queued.size()]));
+
+        lastSnapshotPosition = snapshot.getPosition();
+
+        log.info(String.format("Loaded %s tasks from snapshot %s and %s changes from disk store",
+                tasks.size(), snapshotFile, deleted.size() + changed.size()));
+        return true;
+    }
+
+    public long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * Milliseconds between snapshots of the memory store - if there is a snapshot file
+     * @param snapshotInterval
+     */
+    public void setSnapshotInterval(long snapshotInterval) {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Writes a snapshot of the memory store - once the batch being written to the disk store, if any, and a snapshot
+     * being written in the background are done.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void writeSnapshot() throws IOException, InterruptedException {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        Snapshot snapshot;
+        synchronized (tasks) {
+            while ((snapshot = takeSnapshot()) == null) {
+                tasks.wait(1000);
+            }
+        }
+        writeSnapshot(snapshot);
+    }
+
+    /**
+     * Takes references to the tasks to snapshot - must hold the tasks lock. Only possible while no batch is being
+     * written to the disk store: the memory store then matches the disk store up to its current change position -
+     * except for the tasks in batches still waiting, which are listed in the snapshot so they are read from the disk
+     * store again on load. Tasks are only serialized when the snapshot is written.
+     * @return null if a batch or snapshot is being written or a cancel by reference is waiting
+     */
+    private Snapshot takeSnapshot() {
+        //Tasks cancelled by reference are not known by id
+        if (snapshotWriting || inFlight > 0 || pendingReferenceCancels > 0) {
+            return null;
+        }
+
+        Snapshot snapshot = new Snapshot(diskStore.getChangePosition());
+        for (Runnable task : tasks) {
+            if (task instanceof TaskBatch) {
+                snapshot.unwritten.addAll(((TaskBatch) task).writes.keySet());
+            }
+        }
+
+        if (snapshot.isChanged()) {
+            Iterator<Task> it = memStore.getRunning();
+            while (it.hasNext()) {
+                snapshot.running.add(it.next());
+            }
+            it = memStore.getQueued();
+            while (it.hasNext()) {
+                snapshot.queued.add(it.next());
+            }
+        }
+
+        snapshotWriting = true;
+        return snapshot;
+    }
+
+    /**
+     * Writes the snapshot taken and prunes the deletes it covers - once the file is in place
+     */
+    private void writeSnapshot(Snapshot snapshot) throws IOException {
+        try {
+            if (!snapshot.isChanged()) {
+                lastSnapshot = System.currentTimeMillis();
+                return;
+            }
+
+            List<Task> queued = snapshot.queued;
+            for (int i = 0; i < queued.size(); i++) {
+                queued.set(i, memStore.withData(queued.get(i)));
+            }
+
+            new TaskSnapshot(diskStore.getTableName(), snapshot.position, snapshot.running, queued, snapshot.unwritten)
+                    .write(snapshotFile, diskStore.getDocumentSerializer());
+            diskStore.pruneDeleted(snapshot.position);
+
+            lastSnapshot = System.currentTimeMillis();
+            lastSnapshotPosition = snapshot.position;
+            log.info(String.format("Wrote snapshot of %s tasks to %s", snapshot.running.size() + queued.size(),
+                    snapshotFile));
+        } finally {
+            synchronized (tasks) {
+                snapshotWriting = false;
+                tasks.notifyAll();
+            }
+        }
+    }
+
+    private boolean isSnapshotDue() {
+        return snapshotFile != null && System.currentTimeMillis() - lastSnapshot >= snapshotInterval;
+    }
+
+    /**
+     * Starts writing a snapshot in the background if one is due - so batches keep reaching the disk store while it
+     * is written. Called by the worker between batches.
+     */
+    private void snapshotIfDue() {
+        if (!isSnapshotDue()) {
+            return;
+        }
+
+        final Snapshot snapshot;
+        synchronized (tasks) {
+            if (closed) {
+                return;
+            }
+            snapshot = takeSnapshot();
+        }
+
+        if (snapshot == null) {
+            return;
+        }
+
+        if (!snapshot.isChanged()) {
+            try {
+                writeSnapshot(snapshot);
+            } catch (IOException e) {
+                //Not thrown - an unchanged snapshot is not written
+            }
+            return;
+        }
+
+        Thread snapshotter = new Thread("write-through-snapshot") {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(snapshot);
+                } catch (Exception e) {
+                    //Tried again once the next batch is written
+                    lastSnapshot = System.currentTimeMillis();
+                    log.error(String.format("Failed to write snapshot %s", snapshotFile), e);
+                }
+            }
+        };
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * References to the tasks in a snapshot - taken while changes are held back
+     */
+    private final class Snapshot {
+        private final long position;
+        private final List<Task> running = new ArrayList<>();
+        private final List<Task> queued = new ArrayList<>();
+        private final List<UUID> unwritten = new ArrayList<>();
+
+        private Snapshot(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Whether anything changed since the last snapshot written
+         */
+        private boolean isChanged() {
+            return position != lastSnapshotPosition || !unwritten.isEmpty();
+        }
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Max number of tasks written to the disk store in one transaction
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
     @Override
     public Task get(UUID id) {
         return memStore.get(id);
     }
 
+    /*
+     * Changes are made to the memory store while holding the async queue - so a snapshot never sees a change in
+     * memory that is not queued or written yet.
+     */
+
     @Override
     public void remove(final Task task) {
-        doLater(new Runnable() {
-            @Override
-            public void run() {
-                diskStore.remove(task);
-            }
-        });
+        synchronized (this.tasks) {
+            writeLater(Target.REMOVE, task.getId(), task);
 
-        memStore.remove(task);
+            memStore.remove(task);
+        }
     }
 
     @Override
     public void remove(final UUID id) {
-        doLater(new Runnable() {
-            @Override
-            public void run() {
-                diskStore.remove(id);
-            }
-        });
+        synchronized (this.tasks) {
+            writeLater(Target.REMOVE, id, null);
 
-        memStore.remove(id);
+            memStore.remove(id);
+        }
     }
 
     @Override
     public void queue(final Task... tasks) {
-        memStore.queue(tasks);
-        doLater(new Runnable() {
-            @Override
-            public void run() {
-                diskStore.queue(tasks);
-            }
-        });
+        synchronized (this.tasks) {
+            memStore.queue(tasks);
+            writeLater(Target.QUEUE, tasks);
+        }
     }
 
     @Override
-    public void run(final Task task) {
-        doLater(new Runnable() {
-            @Override
-            public void run() {
-                diskStore.run(task);
-            }
-        });
-        memStore.run(task);
+    public void run(final Task ... tasks) {
+        synchronized (this.tasks) {
+            writeLater(Target.RUN, tasks);
+            memStore.run(tasks);
+        }
 
     }
 
     @Override
-    public void failed(final Task task) {
-        doLater(new Runnable() {
-            @Override
-            public void run() {
-                diskStore.failed(task);
+    public List<Task> claim(final Task ... tasks) {
+        synchronized (this.tasks) {
+            final List<Task> claimed = memStore.claim(tasks);
+            if (!claimed.isEmpty()) {
+                writeLater(Target.RUN, claimed.toArray(new Task[claimed.size()]));
             }
-        });
-        memStore.failed(task);
+            return claimed;
+        }
+    }
+
+    @Override
+    public void failed(final Task task) {
+        synchronized (this.tasks) {
+            writeLater(Target.FAILED, task);
+            memStore.failed(task);
+        }
 
 
     }
@@ -170,6 +478,11 @@ public class WriteThroughTaskStore implements TaskStore {
         return memStore.getQueuedIds(type);
     }
 
+    @Override
+    public Iterator<UUID> getQueuedIds(String type, Set<String> excludedTags) {
+        return memStore.getQueuedIds(type, excludedTags);
+    }
+
     @Override
     public Iterator<Task> getRunning() {
         return memStore.getRunning();
@@ -200,6 +513,11 @@ public class WriteThroughTaskStore implements TaskStore {
         return memStore.runningCount(group);
     }
 
+    @Override
+    public CountMap<String> getRunningCounts() {
+        return memStore.getRunningCounts();
+    }
+
     @Override
     public long queueSizeForGroup(String group) {
         return memStore.queueSizeForGroup(group);
@@ -230,6 +548,16 @@ public class WriteThroughTaskStore implements TaskStore {
         diskStore.signalChange();
     }
 
+    @Override
+    public void signalChange(TaskWaiters.Change change, Set<String> tags) {
+        diskStore.signalChange(change, tags);
+    }
+
+    @Override
+    public TaskWaiters getWaiters() {
+        return diskStore.getWaiters();
+    }
+
     @Override
     public ParallelIterator<Task> getPending() {
         return memStore.getPending();
@@ -273,7 +601,19 @@ public class WriteThroughTaskStore implements TaskStore {
     public void close() throws Exception {
         if (workerQueue.isAlive()) {
             waitForAsyncTasks();
-            closed = true;
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                log.warn(String.format("Failed to write snapshot %s", snapshotFile), e);
+            }
+            synchronized (tasks) {
+                //No snapshot is started after the last one - and one started meanwhile is done before the disk
+                //store is closed
+                closed = true;
+                while (snapshotWriting) {
+                    tasks.wait();
+                }
+            }
             workerQueue.interrupt();
             workerQueue.join();
         }
@@ -299,13 +639,23 @@ public class WriteThroughTaskStore implements TaskStore {
 
     @Override
     public void cancelByReference(final String referenceId) {
-        doLater(new Runnable() {
-            @Override
-            public void run() {
-                diskStore.cancelByReference(referenceId);
-            }
-        });
-        memStore.cancelByReference(referenceId);
+        synchronized (tasks) {
+            doLater(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        diskStore.cancelByReference(referenceId);
+                    } finally {
+                        synchronized (tasks) {
+                            pendingReferenceCancels--;
+                        }
+                    }
+                }
+            });
+            //Counted after it is queued - the worker can not take it before the lock is released
+            pendingReferenceCancels++;
+            memStore.cancelByReference(referenceId);
+        }
 
     }
 
@@ -348,6 +698,11 @@ public class WriteThroughTaskStore implements TaskStore {
         return memStore.getAllRateLimit();
     }
 
+    @Override
+    public void setDefaultRateLimit(int limit) {
+        memStore.setDefaultRateLimit(limit);
+    }
+
     private void doLater(final Runnable runnable) {
         if (closed) {
             synchronized (tasks) {
@@ -357,7 +712,7 @@ public class WriteThroughTaskStore implements TaskStore {
         }
 
         synchronized (tasks) {
-            tasks.addFirst(new Runnable() {
+            tasks.addLast(new Runnable() {
                 @Override
                 public void run() {
                     synchronized (diskStore) {
@@ -371,14 +726,193 @@ public class WriteThroughTaskStore implements TaskStore {
 
     }
 
+    private void writeLater(Target target, Task... tasks) {
+        for (Task task : tasks) {
+            writeLater(target, task.getId(), task);
+        }
+    }
+
+    /**
+     * Adds the write to the batch at the end of the async queue - or starts a new batch if the last async task is
+     * something else. Other async tasks stay in order with the batches around them.
+     */
+    private void writeLater(Target target, UUID id, Task task) {
+        if (closed) {
+            synchronized (tasks) {
+                tasks.notifyAll();
+            }
+            throw new RuntimeException("Cannot add new tasks to a closed store");
+        }
+
+        synchronized (tasks) {
+            Runnable last = tasks.peekLast();
+            TaskBatch batch;
+            if (last instanceof TaskBatch && ((TaskBatch) last).size() < maxBatchSize) {
+                batch = (TaskBatch) last;
+            } else {
+                batch = new TaskBatch();
+                tasks.addLast(batch);
+            }
+
+            batch.add(target, id, task);
+
+            tasks.notifyAll();
+        }
+    }
+
     public void waitForAsyncTasks() throws InterruptedException {
-        while (!tasks.isEmpty()) {
+        while (!tasks.isEmpty() || inFlight > 0) {
             synchronized (tasks) {
                 tasks.wait(60000);
             }
         }
     }
 
+    private enum Target {
+        QUEUE,
+        RUN,
+        FAILED,
+        REMOVE
+    }
+
+    /**
+     * What ends up on disk for one task after all the writes to it in a batch
+     */
+    private static final class TaskWrite {
+        private final UUID id;
+        private Task task;
+        private Target target;
+        private boolean insert = false;
+        private boolean deleteFirst = false;
+
+        private TaskWrite(UUID id) {
+            this.id = id;
+        }
+
+        private void apply(PostgresTaskStore diskStore) {
+            if (deleteFirst || target == Target.REMOVE) {
+                diskStore.remove(id);
+            }
+            if (insert) {
+                diskStore.queue(task);
+            }
+            if (target == Target.RUN) {
+                diskStore.run(task);
+            } else if (target == Target.FAILED) {
+                diskStore.failed(task);
+            }
+        }
+    }
+
+    /**
+     * Task writes merged into their net effect per task - e.g. a task queued, run and removed before the batch was
+     * written never reaches the disk store. The batch is written in one transaction.
+     */
+    private final class TaskBatch implements Runnable {
+        private final Map<UUID, TaskWrite> writes = new LinkedHashMap<>();
+
+        private int size() {
+            return writes.size();
+        }
+
+        private void add(Target target, UUID id, Task task) {
+            TaskWrite write = writes.get(id);
+            if (write == null) {
+                write = new TaskWrite(id);
+                writes.put(id, write);
+            }
+
+            if (task != null) {
+                write.task = task;
+            }
+
+            switch (target) {
+                case QUEUE:
+                    //Queued again after it was written - replace the row
+                    if (!write.insert && write.target != null) {
+                        write.deleteFirst = true;
+                    }
+                    write.insert = true;
+                    write.target = Target.QUEUE;
+                    break;
+                case RUN:
+                case FAILED:
+                    if (write.target != Target.REMOVE) {
+                        write.target = target;
+                    }
+                    break;
+                case REMOVE:
+                    if (write.insert && !write.deleteFirst) {
+                        //Never written - nothing to remove
+                        writes.remove(id);
+                        break;
+                    }
+                    write.insert = false;
+                    write.target = Target.REMOVE;
+                    break;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (writes.isEmpty()) {
+                return;
+            }
+
+            final List<UUID> deletes = new ArrayList<>();
+            final List<Task> inserts = new ArrayList<>();
+            final List<Task> runs = new ArrayList<>();
+            final List<Task> failed = new ArrayList<>();
+
+            for (TaskWrite write : writes.values()) {
+                if (write.deleteFirst || write.target == Target.REMOVE) {
+                    deletes.add(write.id);
+                }
+                if (write.insert) {
+                    inserts.add(write.task);
+                }
+                if (write.target == Target.RUN) {
+                    runs.add(write.task);
+                } else if (write.target == Target.FAILED) {
+                    failed.add(write.task);
+                }
+            }
+
+            synchronized (diskStore) {
+                boolean written = diskStore.withinTransaction(new Callable() {
+                    @Override
+                    public Object call() throws Exception {
+                        diskStore.removeAll(deletes);
+                        if (!inserts.isEmpty()) {
+                            diskStore.queue(inserts.toArray(new Task[inserts.size()]));
+                        }
+                        if (!runs.isEmpty()) {
+                            diskStore.run(runs.toArray(new Task[runs.size()]));
+                        }
+                        for (Task task : failed) {
+                            diskStore.failed(task);
+                        }
+                        return null;
+                    }
+                });
+
+                if (written) {
+                    return;
+                }
+
+                //Write what can be written rather than losing the whole batch
+                log.warn(String.format("Failed to write batch of %s tasks - writing them one by one", writes.size()));
+                for (TaskWrite write : writes.values()) {
+                    try {
+                        write.apply(diskStore);
+                    } catch (Exception e) {
+                        log.error(String.format("Failed to write task %s", write.id), e);
+                    }
+                }
+            }
+        }
+    }
+
     private final class WorkerQueue extends Thread {
         private WorkerQueue() {
             super("write-through-queue");
@@ -389,27 +923,36 @@ public class WriteThroughTaskStore implements TaskStore {
             while (!tasks.isEmpty() || (!interrupted() && !closed)) {
 
                 while (!tasks.isEmpty()) {
-                    Runnable task = null;
+                    List<Runnable> pending;
                     synchronized (tasks) {
-                        task = tasks.pollLast();
+                        //Take everything - new writes start a new batch while these are written
+                        pending = new ArrayList<>(tasks);
+                        tasks.clear();
+                        inFlight = pending.size();
                         if (log.isDebugEnabled()) {
-                            log.debug(String.format("Getting async task - %s left", tasks.size()));
-                        }
-                        if (task != null) {
-                            tasks.notifyAll();
+                            log.debug(String.format("Getting %s async tasks", pending.size()));
                         }
                     }
 
-                    if (task == null) {
-                        continue;
+                    for (Runnable task : pending) {
+                        try {
+                            task.run();
+                        } catch (Exception e) {
+                            log.error("Async task failed", e);
+                        }
                     }
-                    try {
-                        task.run();
-                    } catch (Exception e) {
-                        log.error("Async task failed", e);
+
+                    synchronized (tasks) {
+                        inFlight = 0;
+                        tasks.notifyAll();
                     }
+
+                    //Between batches - so snapshots are taken under constant load too
+                    snapshotIfDue();
                 }
 
+                snapshotIfDue();
+
                 try {
                     synchronized (tasks) {
                         tasks.wait(60000);
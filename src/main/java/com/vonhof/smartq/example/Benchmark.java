@@ -13,11 +13,23 @@ public class Benchmark {
     public static final MemoryTaskStore STORE = new MemoryTaskStore();
     public static BenchmarkListener benchmarkListener;
 
+    //-Dsmartq.benchmark.tags=N to spread the tasks and subscribers over N tags
+    private static final int TAGS = Integer.getInteger("smartq.benchmark.tags", 0);
+
+    //-Dsmartq.benchmark.phases=true to start the subscribers once all tasks are submitted - timing inserts and
+    //draining the queue on their own
+    private static final boolean PHASES = Boolean.getBoolean("smartq.benchmark.phases");
+
+    //-Dsmartq.benchmark.tasks=N to submit N tasks from each publisher
+    private static final int TASKS = Integer.getInteger("smartq.benchmark.tasks", 10000);
+
     private static TaskStore makePGStore() throws SQLException, IOException {
         PostgresTaskStore store = new PostgresTaskStore(Task.class);
         store.setTableName("benchmark_queue");
+        //-Dsmartq.benchmark.contentFormat=BASE64 to compare with the format used before RAW
+        store.setContentFormat(PostgresTaskStore.ContentFormat.valueOf(
+                System.getProperty("smartq.benchmark.contentFormat", "RAW")));
         store.createTable();
-        store.reset();
 
         return store;
     }
@@ -27,13 +39,24 @@ public class Benchmark {
     }
 
     private static TaskStore makeStore() throws SQLException, IOException {
-        return makePGStore();
+        //-Dsmartq.benchmark.store=memory to run without a database
+        TaskStore store = "memory".equals(System.getProperty("smartq.benchmark.store")) ? makeMemStore() : makePGStore();
+        //-Dsmartq.benchmark.wakeAll=true to compare with waking every waiter on any change
+        store.getWaiters().setWakeAll(Boolean.getBoolean("smartq.benchmark.wakeAll"));
+        return store;
+    }
+
+    private static String tag(int num) {
+        return TAGS > 0 ? "tag-" + (num % TAGS) : null;
     }
 
     public static void main (String[] args) throws Exception {
 
         final SmartQ<DefaultTaskResult> queue = new SmartQ<DefaultTaskResult>(makeStore());
-
+        //Only once - publishers that reset the table would delete what the others submitted
+        if (queue.getStore() instanceof PostgresTaskStore) {
+            ((PostgresTaskStore) queue.getStore()).reset();
+        }
 
         benchmarkListener = new BenchmarkListener(queue);
         queue.addListener(benchmarkListener);
@@ -43,18 +66,46 @@ public class Benchmark {
         for(int i = 0; i < 10; i++) {
             StressSubscriber subscriber = new StressSubscriber(i);
             subscribers.add(subscriber);
-            subscriber.start();
+            if (!PHASES) {
+                subscriber.start();
+            }
         }
 
-        System.out.println("Submitting tasks");
+        List<StressPublisher> publishers = new ArrayList<StressPublisher>();
+        for(int i = 0; i < 10; i++) {
+            publishers.add(new StressPublisher(i));
+        }
 
+        System.out.println("Submitting tasks");
+        long start = System.currentTimeMillis();
 
-        for(int i = 0; i < 10; i++) {
-            StressPublisher publisher = new StressPublisher(i);
+        for(StressPublisher publisher : publishers) {
             publisher.start();
         }
 
-        System.out.println("Done submitting");
+        for(StressPublisher publisher : publishers) {
+            publisher.join();
+        }
+
+        long draining = System.currentTimeMillis();
+        System.out.println(String.format("Done submitting in %s ms", draining - start));
+
+        if (PHASES) {
+            //Reads the content of every queued task
+            int count = 0;
+            Iterator<Task> queued = queue.getStore().getQueued();
+            while(queued.hasNext()) {
+                queued.next();
+                count++;
+            }
+            long scanned = System.currentTimeMillis();
+            System.out.println(String.format("Scanned %s queued tasks in %s ms", count, scanned - draining));
+            draining = scanned;
+
+            for(StressSubscriber subscriber: subscribers) {
+                subscriber.start();
+            }
+        }
 
 
         while(true) {
@@ -65,7 +116,27 @@ public class Benchmark {
             }
         }
 
-        System.out.println("Queue is done");
+        long done = System.currentTimeMillis();
+        System.out.println(String.format("Queue is done in %s ms - drained in %s ms", done - start, done - draining));
+
+        long lookups = 0;
+        long emptyLookups = 0;
+        long wakeups = 0;
+        //The memory store is shared by all subscribers - only count its wake-ups once
+        Set<TaskWaiters> counted = Collections.newSetFromMap(new IdentityHashMap<TaskWaiters, Boolean>());
+        for(StressSubscriber subscriber: subscribers) {
+            lookups += subscriber.queue.getLookupCount();
+            emptyLookups += subscriber.queue.getEmptyLookupCount();
+            TaskWaiters waiters = subscriber.queue.getStore().getWaiters();
+            if (counted.add(waiters)) {
+                wakeups += waiters.getWakeups();
+            }
+        }
+
+        System.out.println(String.format("Look-ups: %s | Wasted look-ups: %s (%s %%) | Wake-ups: %s",
+                lookups, emptyLookups,
+                lookups > 0 ? (emptyLookups * 100 / lookups) : 0,
+                wakeups));
 
         for(StressSubscriber subscriber: subscribers) {
             subscriber.interrupt();
@@ -151,9 +222,11 @@ public class Benchmark {
     private static class StressPublisher extends Thread {
         private static final Logger log = Logger.getLogger(StressPublisher.class);
         private final SmartQ<DefaultTaskResult> queue;
+        private final String tag;
 
         private StressPublisher(int num) throws IOException, SQLException {
             super("Stress Publisher "+num);
+            tag = tag(num);
 
             queue = new SmartQ<DefaultTaskResult>(makeStore());
             queue.addListener(benchmarkListener);
@@ -162,9 +235,13 @@ public class Benchmark {
         @Override
         public void run() {
             List<Task> tasks = new LinkedList<Task>();
-            for(int i = 0; i < 10000; i++) {
-                tasks.add(new Task("test")
-                        .withPriority((int) Math.round(Math.random() * 10)));
+            for(int i = 0; i < TASKS; i++) {
+                Task task = new Task("test")
+                        .withPriority((int) Math.round(Math.random() * 10));
+                if (tag != null) {
+                    task.withTag(tag);
+                }
+                tasks.add(task);
             }
 
             log.info("Submitting " + tasks.size() + " tasks");
@@ -188,9 +265,11 @@ public class Benchmark {
     private static class StressSubscriber extends Thread {
         private static final Logger log = Logger.getLogger(StressSubscriber.class);
         private final SmartQ<DefaultTaskResult> queue;
+        private final String tag;
 
         private StressSubscriber(int num) throws IOException, SQLException {
             super("Stress subscriber "+num);
+            tag = tag(num);
 
             queue = new SmartQ<DefaultTaskResult>(makeStore());
             queue.addListener(benchmarkListener);
@@ -200,7 +279,7 @@ public class Benchmark {
         public void run() {
             while(true) {
                 try {
-                    Task t = queue.acquire();
+                    Task t = queue.acquire(tag);
 
                     /*
                     log.info("Performing work");
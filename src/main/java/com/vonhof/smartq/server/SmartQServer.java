@@ -205,6 +205,13 @@ public class SmartQServer {
             return clientTask.get(session.getRemoteAddress()).size();
         }
 
+        public int getFreeSlotsForSession(IoSession session) {
+            if (isBusy(session) || !isReady(session)) {
+                return 0;
+            }
+            return Math.max(0, getTaskLimit(session) - getTaskCountForSession(session));
+        }
+
         public void unregisterTask(IoSession session, UUID id) {
             clientTask.get(session.getRemoteAddress()).remove(id);
             taskIds.remove(id);
@@ -482,7 +489,7 @@ public class SmartQServer {
         }
     }
 
-    private class TaskEmitter extends Thread {
+    private class TaskEmitter extends Thread implements SmartQ.SlotSource {
         private TaskEmitter() {
             super("smartq-task-emitter");
         }
@@ -506,6 +513,18 @@ public class SmartQServer {
             return false;
         }
 
+        @Override
+        public CountMap<String> getFreeSlots() {
+            CountMap<String> slots = new CountMap<>();
+            for (IoSession managedSession : acceptor.getManagedSessions().values()) {
+                int free = requestHandler.getFreeSlotsForSession(managedSession);
+                if (free > 0) {
+                    slots.increment(managedSession.getAttribute("GROUP").toString(), free);
+                }
+            }
+            return slots;
+        }
+
         private IoSession getNextSession(String group) throws InterruptedException {
             LinkedList<IoSession> managedSessions = new LinkedList<>(acceptor.getManagedSessions().values());
 
@@ -556,6 +575,8 @@ public class SmartQServer {
             synchronized (this) {
                 notifyAll();
             }
+            //Free slots changed - make a blocked acquire read them again
+            queue.slotsChanged();
         }
 
         private void waitForAnySession() throws InterruptedException {
@@ -586,13 +607,15 @@ public class SmartQServer {
                     }
 
                     try {
-                        Task task = queue.acquire();
-                        IoSession session = getNextSession(task.getGroup());
-                        if (session == null) {
-                            queue.cancel(task, true);
-                            continue;
+                        List<Task> tasks = queue.acquireForGroups(this);
+                        for (Task task : tasks) {
+                            IoSession session = getNextSession(task.getGroup());
+                            if (session == null) {
+                                queue.release(task);
+                                continue;
+                            }
+                            requestHandler.sendTask(session, task);
                         }
-                        requestHandler.sendTask(session, task);
                     } catch (AcquireInterruptedException ex) {
                         continue;
                     }
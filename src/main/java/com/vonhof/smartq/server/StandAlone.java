@@ -33,12 +33,27 @@ public class StandAlone {
 
         TaskStore taskStore = null;
         if ("pg".equalsIgnoreCase(storeType)) {
-            taskStore = new PostgresTaskStore(Task.class,
+            PostgresTaskStore pgStore = new PostgresTaskStore(Task.class,
                     props.getProperty("pg.url","jdbc:postgresql://localhost/smartq"),
                     props.getProperty("pg.username","postgres"),
                     props.getProperty("pg.password",""));
+            pgStore.setCopyThreshold(Integer.valueOf(props.getProperty("pg.copyThreshold","1000")));
+            taskStore = pgStore;
+        } else if ("journal".equalsIgnoreCase(storeType)) {
+            JournalTaskStore journalStore = new JournalTaskStore(Task.class,
+                    new File(props.getProperty("journal.dir", "journal")));
+            journalStore.setWaitForSync(Boolean.valueOf(props.getProperty("journal.waitForSync", "true")));
+            if (Boolean.valueOf(props.getProperty("payloads.offHeap", "false"))) {
+                journalStore.setPayloadStore(new PayloadStore());
+            }
+            journalStore.open();
+            taskStore = journalStore;
         } else if ("memory".equalsIgnoreCase(storeType) || storeType.isEmpty()) {
-            taskStore = new MemoryTaskStore();
+            MemoryTaskStore memStore = new MemoryTaskStore();
+            if (Boolean.valueOf(props.getProperty("payloads.offHeap", "false"))) {
+                memStore.setPayloadStore(new PayloadStore());
+            }
+            taskStore = memStore;
         } else {
             throw new IllegalArgumentException("Unknown task store type: " + storeType);
         }
@@ -0,0 +1,41 @@
+CREATE TABLE %tableName%_failed
+(
+  id uuid NOT NULL,
+  content bytea NOT NULL,
+  state integer,
+  priority integer,
+  created bigint,
+  "order" integer,
+  referenceid character varying(45),
+  "type" character varying(65),
+  "group" character varying(65),
+  failed bigint NOT NULL,
+  CONSTRAINT %tableName%_failed_pkey PRIMARY KEY (id)
+)
+WITH (
+  OIDS=FALSE
+);
+
+CREATE INDEX %tableName%_failed_priority_idx
+  ON %tableName%_failed
+  USING btree
+  (priority DESC, created ASC, "order" ASC);
+
+CREATE INDEX %tableName%_failed_failed_idx
+  ON %tableName%_failed
+  USING btree
+  (failed);
+
+CREATE INDEX %tableName%_failed_referenceid_idx
+  ON %tableName%_failed
+  USING btree
+  (referenceid);
+
+
+INSERT INTO %tableName%_failed (id, content, state, priority, created, "order", referenceid, "type", "group", failed)
+  SELECT id, content, state, priority, created, "order", referenceid, "type", "group",
+    (extract(epoch from now()) * 1000)::bigint
+  FROM %tableName%
+  WHERE state = 3; -- failed
+
+DELETE FROM %tableName% WHERE state = 3;
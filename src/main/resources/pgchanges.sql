@@ -0,0 +1,49 @@
+CREATE SEQUENCE %tableName%_change_seq;
+
+
+ALTER TABLE %tableName% ADD COLUMN changed bigint NOT NULL DEFAULT 0;
+
+CREATE INDEX %tableName%_changed_idx
+  ON %tableName%
+  USING btree
+  (changed);
+
+
+CREATE TABLE %tableName%_deleted
+(
+  id uuid NOT NULL,
+  changed bigint NOT NULL DEFAULT nextval('%tableName%_change_seq')
+)
+WITH (
+  OIDS=FALSE
+);
+
+CREATE INDEX %tableName%_deleted_changed_idx
+  ON %tableName%_deleted
+  USING btree
+  (changed);
+
+
+CREATE FUNCTION %tableName%_track_change()
+  RETURNS trigger AS $$
+BEGIN
+  IF TG_OP = 'DELETE' THEN
+    INSERT INTO %tableName%_deleted (id) VALUES (OLD.id);
+    RETURN OLD;
+  END IF;
+
+  NEW.changed := nextval('%tableName%_change_seq');
+  RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+
+CREATE TRIGGER %tableName%_track_task_change
+  BEFORE INSERT OR UPDATE
+  ON %tableName%
+  FOR EACH ROW EXECUTE PROCEDURE %tableName%_track_change();
+
+CREATE TRIGGER %tableName%_track_task_delete
+  AFTER DELETE
+  ON %tableName%
+  FOR EACH ROW EXECUTE PROCEDURE %tableName%_track_change();
@@ -0,0 +1,140 @@
+CREATE TABLE %tableName%_counts
+(
+  kind character(1) NOT NULL,
+  "key" integer NOT NULL,
+  state integer NOT NULL,
+  slot integer NOT NULL DEFAULT 0,
+  count bigint NOT NULL DEFAULT 0,
+  CONSTRAINT %tableName%_counts_pkey PRIMARY KEY (kind, "key", state, slot)
+)
+WITH (
+    OIDS=FALSE
+);
+
+
+-- Each count is spread over 16 slots - a connection only updates the slot of its backend, so concurrent
+-- transactions do not queue up on the same row. Counts are read as the sum of the slots.
+CREATE FUNCTION %tableName%_count(_kind character, _key integer, _state integer, _delta bigint)
+  RETURNS void AS $$
+DECLARE
+  _slot integer := pg_backend_pid() % 16;
+BEGIN
+  IF _key IS NULL OR _state IS NULL THEN
+    RETURN;
+  END IF;
+
+  LOOP
+    UPDATE %tableName%_counts SET count = count + _delta
+      WHERE kind = _kind AND "key" = _key AND state = _state AND slot = _slot;
+    IF found THEN
+      RETURN;
+    END IF;
+
+    BEGIN
+      INSERT INTO %tableName%_counts (kind, "key", state, slot, count) VALUES (_kind, _key, _state, _slot, _delta);
+      RETURN;
+    EXCEPTION WHEN unique_violation THEN
+      -- Inserted by someone else in the meantime - update it instead
+    END;
+  END LOOP;
+END;
+$$ LANGUAGE plpgsql;
+
+
+-- Groups are counted by their id in the dictionary - the store adds them to it before inserting the task
+CREATE FUNCTION %tableName%_group_id(_group character varying)
+  RETURNS integer AS $$
+  SELECT id FROM %tableName%_dict WHERE name = _group
+$$ LANGUAGE sql STABLE;
+
+
+CREATE FUNCTION %tableName%_count_task()
+  RETURNS trigger AS $$
+DECLARE
+  _group integer;
+BEGIN
+  IF TG_OP = 'INSERT' THEN
+    PERFORM %tableName%_count('*', 0, NEW.state, 1);
+    PERFORM %tableName%_count('g', %tableName%_group_id(NEW."group"), NEW.state, 1);
+    RETURN NEW;
+  END IF;
+
+  IF TG_OP = 'UPDATE' THEN
+    IF OLD.state IS NOT DISTINCT FROM NEW.state AND OLD."group" IS NOT DISTINCT FROM NEW."group" THEN
+      RETURN NEW;
+    END IF;
+
+    PERFORM %tableName%_count('*', 0, OLD.state, -1);
+    PERFORM %tableName%_count('*', 0, NEW.state, 1);
+
+    _group := %tableName%_group_id(OLD."group");
+    PERFORM %tableName%_count('g', _group, OLD.state, -1);
+    IF OLD."group" IS DISTINCT FROM NEW."group" THEN
+      _group := %tableName%_group_id(NEW."group");
+    END IF;
+    PERFORM %tableName%_count('g', _group, NEW.state, 1);
+
+    IF OLD.state IS DISTINCT FROM NEW.state THEN
+      PERFORM %tableName%_count('t', tag.tag_id, OLD.state, -1), %tableName%_count('t', tag.tag_id, NEW.state, 1)
+        FROM %tableName%_tags tag WHERE tag.id = NEW.id;
+    END IF;
+    RETURN NEW;
+  END IF;
+
+  -- Runs before the delete so the tags of the task are still there
+  PERFORM %tableName%_count('*', 0, OLD.state, -1);
+  PERFORM %tableName%_count('g', %tableName%_group_id(OLD."group"), OLD.state, -1);
+  PERFORM %tableName%_count('t', tag.tag_id, OLD.state, -1)
+    FROM %tableName%_tags tag WHERE tag.id = OLD.id;
+  RETURN OLD;
+END;
+$$ LANGUAGE plpgsql;
+
+
+CREATE FUNCTION %tableName%_count_tag()
+  RETURNS trigger AS $$
+BEGIN
+  IF TG_OP = 'INSERT' THEN
+    PERFORM %tableName%_count('t', NEW.tag_id, task.state, 1)
+      FROM %tableName% task WHERE task.id = NEW.id;
+    RETURN NEW;
+  END IF;
+
+  -- Tags deleted along with their task are gone from the counts already
+  PERFORM %tableName%_count('t', OLD.tag_id, task.state, -1)
+    FROM %tableName% task WHERE task.id = OLD.id;
+  RETURN OLD;
+END;
+$$ LANGUAGE plpgsql;
+
+
+CREATE TRIGGER %tableName%_count_task_change
+  AFTER INSERT OR UPDATE OF state, "group"
+  ON %tableName%
+  FOR EACH ROW EXECUTE PROCEDURE %tableName%_count_task();
+
+CREATE TRIGGER %tableName%_count_task_delete
+  BEFORE DELETE
+  ON %tableName%
+  FOR EACH ROW EXECUTE PROCEDURE %tableName%_count_task();
+
+CREATE TRIGGER %tableName%_count_tag_change
+  AFTER INSERT OR DELETE
+  ON %tableName%_tags
+  FOR EACH ROW EXECUTE PROCEDURE %tableName%_count_tag();
+
+
+INSERT INTO %tableName%_counts (kind, "key", state, count)
+  SELECT '*', 0, state, count(*) FROM %tableName%
+  WHERE state IS NOT NULL
+  GROUP BY state;
+
+INSERT INTO %tableName%_counts (kind, "key", state, count)
+  SELECT 'g', dict.id, task.state, count(*) FROM %tableName% task, %tableName%_dict dict
+  WHERE dict.name = task."group" AND task.state IS NOT NULL
+  GROUP BY dict.id, task.state;
+
+INSERT INTO %tableName%_counts (kind, "key", state, count)
+  SELECT 't', tag.tag_id, task.state, count(*) FROM %tableName% task, %tableName%_tags tag
+  WHERE tag.id = task.id AND task.state IS NOT NULL
+  GROUP BY tag.tag_id, task.state;
@@ -0,0 +1,10 @@
+CREATE TABLE %tableName%_dict
+(
+  id SERIAL,
+  name character varying(65) NOT NULL,
+  CONSTRAINT %tableName%_dict_pkey PRIMARY KEY (id),
+  CONSTRAINT %tableName%_dict_name_key UNIQUE (name)
+)
+WITH (
+    OIDS=FALSE
+);
@@ -37,8 +37,8 @@ CREATE INDEX %tableName%_group_priority_idx
 CREATE TABLE %tableName%_tags
 (
   id uuid NOT NULL,
-  tag character varying(65),
-  CONSTRAINT %tableName%_tags_pkey PRIMARY KEY (id, tag)
+  tag_id integer NOT NULL,
+  CONSTRAINT %tableName%_tags_pkey PRIMARY KEY (id, tag_id)
 )
 WITH (
     OIDS=FALSE
@@ -0,0 +1,20 @@
+-- Moves the tags of a table created by an older version to the dictionary - groups are added too, so they can be counted by id
+INSERT INTO %tableName%_dict (name)
+  SELECT tag FROM %tableName%_tags WHERE tag IS NOT NULL
+  UNION
+  SELECT "group" FROM %tableName% WHERE "group" IS NOT NULL;
+
+ALTER TABLE %tableName%_tags ADD COLUMN tag_id integer;
+
+UPDATE %tableName%_tags tag SET tag_id = dict.id
+  FROM %tableName%_dict dict
+  WHERE dict.name = tag.tag;
+
+ALTER TABLE %tableName%_tags DROP CONSTRAINT %tableName%_tags_pkey;
+
+ALTER TABLE %tableName%_tags DROP COLUMN tag;
+
+ALTER TABLE %tableName%_tags ALTER COLUMN tag_id SET NOT NULL;
+
+ALTER TABLE %tableName%_tags
+  ADD CONSTRAINT %tableName%_tags_pkey PRIMARY KEY (id, tag_id);
@@ -0,0 +1,189 @@
+package com.vonhof.smartq;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+
+    private final List<Connection> opened = new ArrayList<>();
+    private final List<Connection> onClose = new ArrayList<>();
+    private ConnectionPool pool;
+
+    @Before
+    public void setup() {
+        pool = makePool(2);
+    }
+
+    @Test
+    public void released_connections_are_reused() throws SQLException {
+        Connection connection = pool.acquire();
+        pool.release(connection);
+
+        assertSame(connection, pool.acquire());
+        assertEquals(1, opened.size());
+    }
+
+    @Test
+    public void acquire_blocks_while_all_connections_are_in_use() throws Exception {
+        final Connection first = pool.acquire();
+        Connection second = pool.acquire();
+
+        final AtomicReference<Connection> acquired = new AtomicReference<>();
+        Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired.set(pool.acquire());
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        waiting.start();
+
+        waiting.join(200);
+        assertTrue("Acquire waits for a connection to be released", waiting.isAlive());
+        assertNull(acquired.get());
+
+        pool.release(first);
+        waiting.join(1000);
+
+        assertFalse(waiting.isAlive());
+        assertSame("Released connection is handed to the waiting thread", first, acquired.get());
+        assertEquals("No more than max size connections are opened", 2, opened.size());
+        pool.release(second);
+    }
+
+    @Test
+    public void closed_idle_connections_are_thrown_away() throws SQLException {
+        Connection connection = pool.acquire();
+        pool.release(connection);
+
+        //E.g. closed by the server while idle
+        connection.close();
+
+        Connection next = pool.acquire();
+        assertNotSame(connection, next);
+        assertFalse(next.isClosed());
+        assertEquals(2, opened.size());
+        assertEquals(Arrays.asList(connection), onClose);
+    }
+
+    @Test
+    public void closed_connections_are_not_kept_when_released() throws SQLException {
+        Connection connection = pool.acquire();
+        connection.close();
+        pool.release(connection);
+
+        assertEquals(Arrays.asList(connection), onClose);
+        assertNotSame(connection, pool.acquire());
+    }
+
+    @Test
+    public void failing_to_open_a_connection_gives_back_the_permit() throws SQLException {
+        pool = new ConnectionPool("test", 1) {
+            @Override
+            protected Connection newConnection() throws SQLException {
+                throw new SQLException("Server is down");
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                pool.acquire();
+                fail("Connection can not be opened");
+            } catch (SQLException e) {
+                assertEquals("Server is down", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void close_closes_idle_connections_and_connections_in_use_when_released() throws SQLException {
+        Connection idle = pool.acquire();
+        Connection inUse = pool.acquire();
+        pool.release(idle);
+
+        pool.close();
+
+        assertTrue(idle.isClosed());
+        assertFalse("Connections in use are left open", inUse.isClosed());
+        assertEquals(Arrays.asList(idle), onClose);
+
+        pool.release(inUse);
+
+        assertTrue(inUse.isClosed());
+        assertEquals(Arrays.asList(idle, inUse), onClose);
+
+        try {
+            pool.acquire();
+            fail("Closed pool gives no connections");
+        } catch (SQLException e) {
+            //Expected
+        }
+    }
+
+    private ConnectionPool makePool(int maxSize) {
+        return new ConnectionPool("test", maxSize) {
+            @Override
+            protected Connection newConnection() {
+                Connection connection = stubConnection();
+                opened.add(connection);
+                return connection;
+            }
+
+            @Override
+            protected void onClose(Connection connection) {
+                onClose.add(connection);
+            }
+        };
+    }
+
+    /**
+     * Connection that only knows whether it is closed
+     */
+    private static Connection stubConnection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    private boolean closed = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "isClosed":
+                                return closed;
+                            case "close":
+                                closed = true;
+                                return null;
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "toString":
+                                return "StubConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,217 @@
+package com.vonhof.smartq;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JournalTaskStoreTest extends TaskStoreTest {
+
+    private File dir;
+    private JournalTaskStore store;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("smartq-journal").toFile();
+        store = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Override
+    protected TaskStore makeStore() {
+        return store;
+    }
+
+    private JournalTaskStore open() throws IOException {
+        JournalTaskStore out = new JournalTaskStore(Task.class, dir);
+        out.open();
+        return out;
+    }
+
+    private JournalTaskStore reopen() throws Exception {
+        store.close();
+        store = open();
+        return store;
+    }
+
+    @Test
+    public void tasks_are_restored_when_reopened() throws Exception {
+        Task queued = new Task("a").withPriority(3);
+        Task running = new Task("a");
+        Task failed = new Task("b");
+        Task removed = new Task("b");
+
+        store.queue(queued, running, failed, removed);
+        store.run(running, failed);
+        store.failed(failed);
+        store.remove(removed);
+        store.setRateLimit("a", 2);
+        store.setMaxRetries("b", 4);
+        store.setTaskTypeEstimate("a", 1000);
+
+        JournalTaskStore store = reopen();
+
+        assertEquals(Arrays.asList(queued), toList(store.getQueued()));
+        assertEquals(Arrays.asList(running), toList(store.getRunning()));
+        assertEquals(Task.State.ERROR, store.get(failed.getId()).getState());
+        assertNull("Removed task is not restored", store.get(removed.getId()));
+        assertEquals(1, store.queueSize("a"));
+        assertEquals(1, store.runningCount("a"));
+        assertEquals(2, store.getRateLimit("a"));
+        assertEquals(4, store.getMaxRetries(failed.getTagSet()));
+        assertEquals(1000, store.getTaskTypeEstimate("a"));
+    }
+
+    @Test
+    public void full_journal_is_replaced_by_checkpoint() throws Exception {
+        store.setSegmentSize(4096);
+
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Task task = new Task("test");
+            tasks.add(task);
+            store.queue(task);
+        }
+
+        for (int i = 0; i < 190; i++) {
+            store.remove(tasks.get(i));
+        }
+        store.waitForCheckpoint();
+
+        assertEquals("Old segments are deleted", 1, dir.listFiles().length);
+        assertEquals(tasks.subList(190, 200), toList(reopen().getQueued()));
+    }
+
+    @Test
+    public void checkpoints_larger_than_a_segment_are_not_rewritten_on_every_change() throws Exception {
+        store.setSegmentSize(1024);
+
+        for (int i = 0; i < 100; i++) {
+            store.queue(new Task("test"));
+        }
+        store.waitForCheckpoint();
+
+        String[] segments = dir.list();
+        assertEquals(1, segments.length);
+        assertTrue("Checkpoint is larger than a segment", dir.listFiles()[0].length() > 1024);
+
+        store.queue(new Task("test"));
+        store.remove(store.getQueued().next());
+        store.waitForCheckpoint();
+
+        assertArrayEquals("No checkpoint for small changes", segments, dir.list());
+        assertEquals(100, toList(reopen().getQueued()).size());
+    }
+
+    @Test
+    public void changes_made_while_a_checkpoint_is_written_are_kept() throws Exception {
+        store.setSegmentSize(64 * 1024);
+
+        List<Task> tasks = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Task task = new Task("test");
+            tasks.add(task);
+            store.queue(task);
+            if (i % 2 == 1) {
+                store.remove(tasks.get(i - 1));
+            }
+        }
+        store.waitForCheckpoint();
+
+        List<Task> expected = new ArrayList<>();
+        for (int i = 1; i < tasks.size(); i += 2) {
+            expected.add(tasks.get(i));
+        }
+        assertEquals(expected, toList(reopen().getQueued()));
+    }
+
+    @Test
+    public void tag_ids_are_kept_by_checkpoints() throws Exception {
+        Task first = new Task("a");
+        Task second = new Task("b").withGroup("g");
+        store.queue(first, second);
+        store.remove(first);
+        store.checkpoint();
+
+        TagDictionary before = store.getDictionary();
+        TagDictionary after = reopen().getDictionary();
+
+        assertEquals(before.indexOf("b"), after.indexOf("b"));
+        assertEquals(before.indexOf("g"), after.indexOf("g"));
+        assertEquals(1, store.queueSizeForGroup("g"));
+    }
+
+    @Test
+    public void changes_the_journal_does_not_take_are_not_made() throws Exception {
+        Task queued = new Task("a");
+        store.queue(queued);
+
+        //The journal no longer takes records
+        store.close();
+
+        try {
+            store.queue(new Task("a"));
+            fail("Queue should fail");
+        } catch (RuntimeException e) {
+            assertEquals(1, store.queueSize());
+        }
+
+        try {
+            store.claim(queued);
+            fail("Claim should fail");
+        } catch (RuntimeException e) {
+            assertEquals(0, store.runningCount());
+            assertEquals(Task.State.PENDING, store.get(queued.getId()).getState());
+        }
+
+        try {
+            store.remove(queued);
+            fail("Remove should fail");
+        } catch (RuntimeException e) {
+            assertNotNull(store.get(queued.getId()));
+        }
+    }
+
+    @Test
+    public void torn_records_are_cut_off() throws Exception {
+        Task task = new Task("test");
+        store.queue(task);
+        store.close();
+
+        File segment = dir.listFiles()[0];
+        FileOutputStream out = new FileOutputStream(segment, true);
+        out.write(new byte[]{0, 0, 1, 0, 42});
+        out.close();
+
+        store = open();
+        assertNotNull(store.get(task.getId()));
+
+        Task next = new Task("test");
+        store.queue(next);
+
+        assertEquals(Arrays.asList(task, next), toList(reopen().getQueued()));
+    }
+}
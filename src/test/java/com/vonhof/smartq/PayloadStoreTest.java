@@ -0,0 +1,141 @@
+package com.vonhof.smartq;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadStoreTest {
+
+    private File dir;
+    private PayloadStore payloads;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("smartq-payloads").toFile();
+        payloads = new PayloadStore(dir, 1024);
+    }
+
+    @After
+    public void tearDown() {
+        payloads.close();
+        dir.delete();
+    }
+
+    @Test
+    public void payloads_can_be_stored_and_freed() {
+        byte[] small = "small".getBytes();
+        byte[] large = new byte[4000];
+        Arrays.fill(large, (byte) 7);
+
+        long smallAddress = payloads.put(small);
+        long largeAddress = payloads.put(large);
+
+        assertArrayEquals(small, payloads.get(smallAddress, small.length));
+        assertArrayEquals("Payloads larger than a chunk get their own", large, payloads.get(largeAddress, large.length));
+        assertEquals(small.length + large.length, payloads.size());
+
+        payloads.free(smallAddress, small.length);
+        payloads.free(largeAddress, large.length);
+
+        assertEquals(0, payloads.size());
+        payloads.put(small);
+        payloads.put(small);
+        assertEquals("Freed chunks are reused", 2, dir.listFiles().length);
+    }
+
+    @Test
+    public void queued_task_data_is_kept_off_heap_until_run() throws InterruptedException {
+        MemoryTaskStore store = new MemoryTaskStore();
+        store.setPayloadStore(payloads);
+
+        Task task = new Task("test");
+        task.setData("payload");
+        Task other = new Task("test");
+        other.setData("other");
+        store.queue(task, other);
+
+        assertEquals("Caller keeps its data", "payload", task.getData());
+        assertNull("Queued task has no data on the heap", store.get(task.getId()).getData());
+        assertEquals("payload", store.withData(store.get(task.getId())).getData());
+
+        Task queued = store.get(task.getId());
+        store.run(queued);
+
+        assertEquals("Data is back when the task is run", "payload", queued.getData());
+        assertEquals("other".length() + 2, payloads.size());
+
+        store.remove(other);
+        assertEquals(0, payloads.size());
+    }
+
+    @Test
+    public void space_of_freed_payloads_is_reused_while_others_are_kept() {
+        byte[] kept = new byte[100];
+        byte[] other = new byte[200];
+
+        payloads.put(kept);
+        for (int i = 0; i < 100; i++) {
+            long address = payloads.put(other);
+            payloads.put(other);
+            payloads.free(address, other.length);
+        }
+
+        assertEquals(kept.length + 100 * other.length, payloads.size());
+        //Without reuse every freed payload would be left behind in its chunk - twice the live payloads
+        assertTrue("Only the space of live payloads is mapped",
+                payloads.mappedSize() <= payloads.size() + 2 * 1024);
+    }
+
+    @Test
+    public void payloads_are_not_stored_beyond_the_max_mapped_size() {
+        payloads.setMaxMappedSize(1024);
+
+        payloads.put(new byte[1000]);
+        assertEquals(-1, payloads.put(new byte[100]));
+        assertEquals(1024, payloads.mappedSize());
+    }
+
+    @Test
+    public void queued_tasks_keep_their_class() throws InterruptedException {
+        MemoryTaskStore store = new MemoryTaskStore();
+        store.setPayloadStore(payloads);
+
+        CustomTask task = new CustomTask();
+        task.setData("payload");
+        store.queue(task);
+
+        assertEquals(CustomTask.class, store.get(task.getId()).getClass());
+        assertEquals(CustomTask.class, store.getQueued().next().getClass());
+        assertEquals(CustomTask.class, store.withData(store.get(task.getId())).getClass());
+    }
+
+    @Test
+    public void data_is_kept_on_the_heap_when_the_payload_store_is_full() throws InterruptedException {
+        MemoryTaskStore store = new MemoryTaskStore();
+        store.setPayloadStore(payloads);
+        payloads.setMaxMappedSize(0);
+
+        Task task = new Task("test");
+        task.setData("payload");
+        store.queue(task);
+
+        assertEquals("payload", store.get(task.getId()).getData());
+    }
+
+    public static class CustomTask extends Task<String> {
+        public CustomTask() {
+            super("test");
+        }
+    }
+}
@@ -2,9 +2,26 @@ package com.vonhof.smartq;
 
 
 import org.junit.After;
+import org.junit.Test;
 
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 public class PostgresTaskStoreTest extends TaskStoreTest {
 
     @After
@@ -29,4 +46,382 @@ public class PostgresTaskStoreTest extends TaskStoreTest {
         throw new AssertionError("Could not create pg task store");
     }
 
+    @Test
+    public void content_can_be_read_in_both_formats_and_migrated() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+
+        store.setContentFormat(PostgresTaskStore.ContentFormat.BASE64);
+        Task encoded = new Task("encoded");
+        store.queue(encoded);
+
+        store.setContentFormat(PostgresTaskStore.ContentFormat.RAW);
+        Task raw = new Task("raw");
+        store.queue(raw);
+
+        assertEquals(encoded, store.get(encoded.getId()));
+        assertEquals(raw, store.get(raw.getId()));
+
+        assertEquals("Only Base64 content is migrated", 1, store.migrateContent(100));
+        assertEquals(0, store.migrateContent(100));
+
+        assertEquals(encoded, store.get(encoded.getId()));
+        assertEquals(raw, store.get(raw.getId()));
+    }
+
+    @Test
+    public void raw_content_is_read_whatever_the_serializer_writes() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+
+        //Starts with a character from the Base64 alphabet
+        store.setDocumentSerializer(new JacksonDocumentSerializer() {
+            @Override
+            public String serialize(Object obj) throws IOException {
+                return "v1" + super.serialize(obj);
+            }
+
+            @Override
+            public <T> T deserialize(String serialized, Class<T> clazz) throws IOException {
+                return super.deserialize(serialized.substring(2), clazz);
+            }
+        });
+
+        Task task = new Task("a");
+        store.queue(task);
+
+        assertEquals(task, store.get(task.getId()));
+        assertEquals("RAW content is not migrated", 0, store.migrateContent(100));
+    }
+
+    @Test
+    public void large_submits_are_copied() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+        store.setCopyThreshold(2);
+
+        Task a = new Task("a").withTag("b").withReferenceId("tab\there");
+        a.setData("back\\slash\nnew line");
+        Task b = new Task("a").withGroup("g");
+        Task c = new Task("c");
+
+        store.queue(a, b, c);
+
+        assertEquals(3, store.queueSize());
+        assertEquals(2, store.queueSize("a"));
+        assertEquals(1, store.queueSize("b"));
+        assertEquals(1, store.queueSizeForGroup("g"));
+
+        Task copied = store.get(a.getId());
+        assertEquals(a.getData(), copied.getData());
+        assertEquals(a.getReferenceId(), copied.getReferenceId());
+        assertEquals(a, store.getFirstTaskWithReference("tab\there"));
+    }
+
+    @Test(timeout = 10000)
+    public void changes_are_signalled_to_other_stores_by_tag() throws Exception {
+        PostgresTaskStore other = new PostgresTaskStore(Task.class);
+        other.setTableName(((PostgresTaskStore) store).getTableName());
+        other.connect();
+        try {
+            Thread.sleep(500); //Give the listener time to start listening
+
+            TaskWaiters.Waiter waiterA = other.getWaiters().register("a");
+            TaskWaiters.Waiter waiterB = other.getWaiters().register("b");
+
+            store.signalChange(TaskWaiters.Change.TASK_ADDED, Collections.singleton("a"));
+
+            waiterA.await(null);
+            Thread.sleep(200);
+
+            assertEquals("Only the waiter for the tag is woken", 1, other.getWaiters().getWakeups());
+
+            other.getWaiters().unregister(waiterA);
+            other.getWaiters().unregister(waiterB);
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void listener_reconnects_after_losing_its_connection() throws Exception {
+        String table = ((PostgresTaskStore) store).getTableName();
+        PostgresTaskStore other = new PostgresTaskStore(Task.class);
+        other.setTableName(table);
+        other.connect();
+        try {
+            Thread.sleep(500); //Give the listener time to start listening
+
+            sql("SELECT pg_terminate_backend(pid) FROM pg_stat_activity " +
+                    "WHERE query = 'LISTEN \"" + table + "_event\"'");
+            Thread.sleep(1000); //Give the listener time to listen again
+
+            TaskWaiters.Waiter waiter = other.getWaiters().register("a");
+            store.signalChange(TaskWaiters.Change.TASK_ADDED, Collections.singleton("a"));
+
+            waiter.await(null);
+            other.getWaiters().unregister(waiter);
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void tags_and_groups_have_the_same_ids_in_every_store() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+        PostgresTaskStore other = new PostgresTaskStore(Task.class);
+        other.setTableName(store.getTableName());
+        other.connect();
+        try {
+            int id = other.getDictionary().intern("a");
+
+            store.queue(new Task("b").withGroup("g"));
+            other.queue(new Task("a"));
+
+            assertEquals(id, store.getDictionary().intern("a"));
+            assertEquals(store.getDictionary().indexOf("g"), other.getDictionary().intern("g"));
+            assertEquals("Tags added by other stores are counted", 1, store.queueSize("a"));
+            assertEquals(1, other.queueSizeForGroup("g"));
+            assertEquals(0, store.queueSize("unknown"));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void failed_tasks_are_archived_and_can_be_purged() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+
+        Task task = new Task("a");
+        store.queue(task);
+        store.run(task);
+        store.failed(task);
+
+        assertEquals(0, store.runningCount());
+        assertEquals(0, store.runningCount("a"));
+        assertEquals(Task.State.ERROR, store.get(task.getId()).getState());
+        assertEquals(task, store.getFailed().next());
+
+        assertEquals("Recently failed tasks are kept", 0, store.purgeFailed(60000, 100));
+        assertEquals(1, store.purgeFailed(-1, 100));
+
+        assertNull(store.get(task.getId()));
+        assertFalse(store.getFailed().hasNext());
+    }
+
+    @Test
+    public void archived_tasks_are_cancelled_by_reference() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+
+        Task task = new Task("a").withReferenceId("ref");
+        store.queue(task);
+        store.run(task);
+        store.failed(task);
+
+        //As in tables archived by an older version
+        String table = store.getTableName();
+        sql("DROP INDEX " + table + "_failed_referenceid_idx");
+
+        PostgresTaskStore reopened = new PostgresTaskStore(Task.class);
+        reopened.setTableName(table);
+        reopened.connect();
+        try {
+            reopened.createTable();
+            reopened.cancelByReference("ref");
+
+            assertNull(reopened.get(task.getId()));
+            //Fails unless the index was added again
+            sql("DROP INDEX " + table + "_failed_referenceid_idx");
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void counts_follow_tasks_through_claim_fail_and_remove() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+
+        Task a = new Task("a").withTag("t").withGroup("g");
+        Task b = new Task("a").withTag("t").withGroup("g");
+        store.queue(a, b);
+
+        assertEquals(2, store.queueSize("t"));
+        assertEquals(0, store.runningCount("t"));
+        assertEquals(2, store.queueSizeForGroup("g"));
+
+        assertEquals(1, store.claim(a).size());
+        assertEquals(1, store.queueSize("t"));
+        assertEquals(1, store.runningCount("t"));
+        assertEquals(1, store.queueSizeForGroup("g"));
+        assertEquals(1, store.runningCountForGroup("g"));
+
+        store.failed(a);
+        assertEquals(0, store.runningCount("t"));
+        assertEquals(0, store.runningCountForGroup("g"));
+
+        store.remove(b);
+        assertEquals(0, store.queueSize("t"));
+        assertEquals(0, store.queueSizeForGroup("g"));
+        assertEquals(0, store.queueSize());
+    }
+
+    @Test
+    public void tables_without_counts_are_migrated() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+        store.queue(new Task("a").withGroup("g"), new Task("a"));
+
+        String table = store.getTableName();
+        sql("DROP TABLE \"" + table + "_counts\"",
+                "DROP FUNCTION \"" + table + "_count_task\"() CASCADE",
+                "DROP FUNCTION \"" + table + "_count_tag\"() CASCADE");
+
+        PostgresTaskStore migrated = migrate(table);
+        try {
+            assertEquals(2, migrated.queueSize("a"));
+            assertEquals(1, migrated.queueSizeForGroup("g"));
+
+            migrated.queue(new Task("a"));
+            assertEquals(3, migrated.queueSize());
+        } finally {
+            migrated.close();
+        }
+    }
+
+    @Test
+    public void tables_without_dictionary_are_migrated() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+        Task task = new Task("a").withTag("b").withGroup("g");
+        store.queue(task, new Task("a"));
+
+        //Back to the schema from before the dictionary - tags by name and no counts
+        String table = store.getTableName();
+        sql("DROP TABLE \"" + table + "_counts\"",
+                "DROP FUNCTION \"" + table + "_count_task\"() CASCADE",
+                "DROP FUNCTION \"" + table + "_count_tag\"() CASCADE",
+                "ALTER TABLE \"" + table + "_tags\" ADD COLUMN tag character varying(65)",
+                "UPDATE \"" + table + "_tags\" tag SET tag = dict.name FROM \"" + table + "_dict\" dict " +
+                        "WHERE dict.id = tag.tag_id",
+                "ALTER TABLE \"" + table + "_tags\" DROP COLUMN tag_id",
+                "ALTER TABLE \"" + table + "_tags\" ADD CONSTRAINT \"" + table + "_tags_pkey\" PRIMARY KEY (id, tag)",
+                "DROP FUNCTION \"" + table + "_group_id\"(character varying)",
+                "DROP TABLE \"" + table + "_dict\"");
+
+        PostgresTaskStore migrated = migrate(table);
+        try {
+            assertEquals(2, migrated.queueSize("a"));
+            assertEquals(1, migrated.queueSize("b"));
+            assertEquals(1, migrated.queueSizeForGroup("g"));
+            assertEquals(task, migrated.getQueued("b").next());
+
+            assertEquals(1, migrated.claim(task).size());
+            assertEquals(0, migrated.queueSize("b"));
+            assertEquals(1, migrated.runningCount("b"));
+        } finally {
+            migrated.close();
+        }
+    }
+
+    @Test
+    public void rows_added_while_iterating_do_not_shift_the_pages() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+
+        //More than one page
+        Task[] tasks = new Task[25000];
+        Set<UUID> expected = new HashSet<UUID>();
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new Task("a").withPriority(5);
+            expected.add(tasks[i].getId());
+        }
+        store.queue(tasks);
+
+        Set<UUID> seen = new HashSet<UUID>();
+        Set<UUID> behind = new HashSet<UUID>();
+        Iterator<Task> it = store.getQueued();
+        while (it.hasNext()) {
+            Task task = it.next();
+            assertTrue("Task was read twice: " + task.getId(), seen.add(task.getId()));
+
+            if (seen.size() == 5000) {
+                //Ahead of the position read to - must not shift the rows after it
+                for (int i = 0; i < 100; i++) {
+                    store.queue(new Task("a").withPriority(10));
+                }
+                for (int i = 0; i < 100; i++) {
+                    Task late = new Task("a").withPriority(1);
+                    behind.add(late.getId());
+                    store.queue(late);
+                }
+            }
+        }
+
+        expected.addAll(behind);
+        assertEquals(expected, seen);
+    }
+
+    @Test
+    public void chunks_cover_every_row_exactly_once() throws Exception {
+        PostgresTaskStore store = (PostgresTaskStore) this.store;
+
+        //Enough for 4 chunks
+        Task[] tasks = new Task[45001];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new Task("a").withPriority(i % 7);
+        }
+        store.queue(tasks);
+        assertEquals(10, store.claim(Arrays.copyOf(tasks, 10)).size());
+
+        ParallelIterator<Task> pending = store.getPending();
+        assertTrue(pending.canDoParallel());
+
+        ParallelIterator[] chunks = pending.getParallelIterators();
+        assertEquals(4, chunks.length);
+
+        Set<UUID> seen = new HashSet<UUID>();
+        long total = 0;
+        for (ParallelIterator chunk : chunks) {
+            long read = 0;
+            while (chunk.hasNext()) {
+                Task task = (Task) chunk.next();
+                assertTrue("Task was read by two chunks: " + task.getId(), seen.add(task.getId()));
+                read++;
+            }
+            assertEquals(chunk.size(), read);
+            total += read;
+        }
+
+        assertEquals(tasks.length, total);
+        assertEquals(tasks.length, seen.size());
+    }
+
+    /**
+     * Opens an outdated table the way an upgraded process must - the table is only changed when asked to
+     */
+    private PostgresTaskStore migrate(String table) throws Exception {
+        PostgresTaskStore out = new PostgresTaskStore(Task.class);
+        out.setTableName(table);
+        out.connect();
+        assertTrue(out.needsMigration());
+
+        try {
+            out.createTable();
+            fail("Outdated tables are not used without migrating");
+        } catch (IllegalStateException e) {
+            assertTrue("Table is left as is", out.needsMigration());
+        }
+
+        out.migrate();
+        assertFalse(out.needsMigration());
+        out.createTable();
+        return out;
+    }
+
+    private void sql(String ... statements) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:postgresql://localhost/smartq", "henrik", "");
+        try {
+            Statement stmt = connection.createStatement();
+            for (String statement : statements) {
+                stmt.execute(statement);
+            }
+            stmt.close();
+        } finally {
+            connection.close();
+        }
+    }
 }
@@ -8,6 +8,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -473,6 +474,109 @@ public class SmartQTest {
 
     }
 
+    @Test
+    public void rate_limited_tags_can_be_skipped_when_acquiring() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        queue.setAcquireMode(SmartQ.AcquireMode.SKIP_RATE_LIMITED);
+
+        queue.setRateLimit("slow", 1);
+        queue.setRateLimit("web", 1);
+
+        Task slow1 = new Task("slow").withPriority(5);
+        Task slow2 = new Task("slow").withPriority(5);
+        Task slowWeb = new Task("slow").withTag("web").withPriority(4);
+        Task web1 = new Task("web").withPriority(3);
+        Task web2 = new Task("web").withPriority(3);
+        Task fast = new Task("fast").withPriority(1);
+
+        queue.submit(slow1, slow2, slowWeb, web1, web2, fast);
+
+        assertEquals(slow1, queue.acquire());
+        assertEquals("Saturated tag is skipped", web1, queue.acquire());
+        assertEquals("Saturated tags are skipped", fast, queue.acquire());
+        assertEquals(3, queue.queueSize());
+
+        queue.acknowledge(slow1.getId());
+        assertEquals(slow2, queue.acquire());
+
+        queue.acknowledge(web1.getId());
+        assertEquals("Task is held back while any of its tags is saturated", web2, queue.acquire());
+        assertEquals(1, queue.queueSize());
+    }
+
+    @Test
+    public void rate_limited_tags_are_skipped_when_acquiring_by_tag() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        queue.setAcquireMode(SmartQ.AcquireMode.SKIP_RATE_LIMITED);
+
+        Task slow1 = new Task("slow").withTag("customer").withPriority(5);
+        Task slow2 = new Task("slow").withTag("customer").withPriority(5);
+        Task fast = new Task("fast").withTag("customer").withPriority(1);
+        Task other = new Task("slow").withPriority(1);
+
+        queue.submit(slow1, slow2, fast, other);
+        queue.setRateLimit("slow", 1);
+
+        assertEquals(slow1, queue.acquire("customer"));
+
+        Iterator<UUID> ids = queue.getStore().getQueuedIds("customer", Collections.singleton("slow"));
+        assertEquals("Bucket of the saturated tag is skipped within the tag", fast.getId(), ids.next());
+        assertFalse(ids.hasNext());
+
+        assertEquals(fast, queue.acquire("customer"));
+        queue.acknowledge(slow1.getId());
+        assertEquals(slow2, queue.acquire("customer"));
+    }
+
+    @Test
+    public void tags_saturated_by_the_concurrency_are_skipped_when_acquiring() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        queue.setAcquireMode(SmartQ.AcquireMode.SKIP_RATE_LIMITED);
+        queue.setConcurrency(1);
+        queue.setRateLimit("web", 2);
+
+        Task slow1 = new Task("slow").withPriority(5);
+        Task slow2 = new Task("slow").withPriority(5);
+        Task web1 = new Task("web").withPriority(3);
+        Task web2 = new Task("web").withPriority(3);
+
+        queue.submit(slow1, slow2, web1, web2);
+
+        assertEquals(slow1, queue.acquire());
+        assertEquals("Tag without a limit of its own is saturated by the concurrency", web1, queue.acquire());
+        assertEquals("Own rate limit wins over the concurrency", web2, queue.acquire());
+
+        Iterator<UUID> ids = queue.getStore().getQueuedIds(null, Collections.singleton("slow"));
+        assertFalse("Tasks held back by the concurrency are skipped", ids.hasNext());
+    }
+
+    @Test
+    public void can_acquire_batches_within_rate_limits() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+
+        queue.setRateLimit("slow", 2);
+
+        Task slow1 = new Task("slow").withPriority(5);
+        Task slow2 = new Task("slow").withPriority(5);
+        Task slow3 = new Task("slow").withPriority(5);
+        Task fast1 = new Task("fast").withPriority(1);
+        Task fast2 = new Task("fast").withPriority(1);
+
+        queue.submit(slow1, slow2, slow3, fast1, fast2);
+
+        List<Task> batch = queue.acquire(4);
+        assertEquals("Rate limit applies within the batch", Arrays.asList(slow1, slow2, fast1, fast2), batch);
+        assertEquals(1, queue.queueSize());
+        assertEquals(4, queue.runningCount());
+        assertEquals(2, queue.getStore().runningCount("slow"));
+
+        queue.acknowledge(slow1.getId());
+
+        batch = queue.acquire(4);
+        assertEquals(Arrays.asList(slow3), batch);
+        assertEquals(0, queue.queueSize());
+    }
+
     @Test
     @Ignore //Unignore these to test speed rates
     public void can_submit_tasks_at_high_rates() throws InterruptedException {
@@ -534,6 +638,41 @@ public class SmartQTest {
         assertTrue("Locker is done", locker.isDone());
     }
 
+    @Test
+    public void waiting_subscribers_are_only_woken_by_relevant_changes() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+
+        queue.setRateLimit("slow", 1);
+
+        Task slow1 = new Task("slow").withPriority(2);
+        Task slow2 = new Task("slow").withPriority(2);
+        Task fast = new Task("fast").withPriority(1);
+
+        queue.submit(slow1, slow2, fast);
+
+        assertEquals(slow1, queue.acquire());
+        assertEquals(fast, queue.acquire());
+
+        ThreadedSubscriber subscriber = new ThreadedSubscriber(queue, "slow-subscriber");
+        subscriber.start();
+
+        Thread.sleep(500);
+        assertFalse("Subscriber is held back by the rate limit", subscriber.hasAcquired());
+        long lookups = queue.getLookupCount();
+
+        queue.acknowledge(fast.getId());
+        Thread.sleep(500);
+
+        assertFalse("Subscriber is still held back", subscriber.hasAcquired());
+        assertEquals("Subscriber was not woken by an unrelated tag", lookups, queue.getLookupCount());
+
+        queue.acknowledge(slow1.getId());
+        subscriber.join();
+
+        assertEquals(slow2, subscriber.getTask());
+        assertEquals(lookups + 1, queue.getLookupCount());
+    }
+
     @Test
     public void can_estimate_simple_queues() throws InterruptedException {
         SmartQ<DefaultTaskResult> queue = makeQueue();
@@ -707,6 +846,193 @@ public class SmartQTest {
         assertHashEquals(Arrays.asList(a, c, b, d, e, f, g), estimator.getLastExecutionOrder());
     }
 
+    @Test
+    public void estimates_can_be_answered_from_a_cached_simulation() throws InterruptedException {
+
+        WatchProvider.currentTime(0); //Override time - to have better control
+
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        Task a  = new Task("test").withReferenceId("a");
+        Task b  = new Task("test").withReferenceId("b");
+
+        queue.submit(a, b);
+
+        queue.setSubscribers(1);
+        queue.setEstimateForTaskType("test", 1000L);
+        queue.setEstimateStaleness(5000L);
+
+        assertEquals(2000L, queue.getEstimatedTimeLeft());
+        assertEquals(1000L, queue.getEstimatedStartTime("b"));
+        assertEquals(2000L, queue.getEstimatedEndTime("b"));
+
+        WatchProvider.appendTime(500);
+
+        assertEquals("Cached ETA accounts for time passed", 1500L, queue.getEstimatedTimeLeft());
+        assertEquals(500L, queue.getEstimatedStartTime("b"));
+
+        queue.submit(new Task("test"));
+
+        assertEquals("Changes within max staleness are not simulated", 1500L, queue.getEstimatedTimeLeft());
+
+        WatchProvider.appendTime(5000);
+
+        assertEquals("Outdated simulations are redone", 3000L, queue.getEstimatedTimeLeft());
+
+        queue.setSubscribers(3);
+
+        assertEquals("Changing subscribers throws away the simulation", 1000L, queue.getEstimatedTimeLeft());
+    }
+
+    @Test
+    public void cached_estimates_pick_up_changes_made_by_other_processes() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        queue.submit(new Task("test"));
+
+        queue.setSubscribers(1);
+        queue.setEstimateForTaskType("test", 1000L);
+        queue.setEstimateStaleness(5000L);
+
+        assertEquals(1000L, queue.getEstimatedTimeLeft());
+
+        //Straight into the store - as if another process had submitted it
+        queue.getStore().queue(new Task("test"));
+
+        WatchProvider.appendTime(5001);
+
+        assertEquals("Simulations are redone once too old", 2000L, queue.getEstimatedTimeLeft());
+    }
+
+    @Test
+    public void can_estimate_tags_with_the_same_hash_code() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        Task a  = new Task("Aa");
+        Task b  = new Task("BB");
+        Task c  = new Task("BB");
+
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+
+        queue.submit(a, b, c);
+
+        queue.setSubscribers(3);
+        queue.setRateLimit("Aa", 1);
+        queue.setEstimateForTaskType("Aa", 1000L);
+        queue.setEstimateForTaskType("BB", 2000L);
+
+        QueueEstimator estimator = new QueueEstimator(queue);
+
+        assertEquals("BB is not limited by the rate limit of Aa", 2000L, estimator.queueEnds());
+    }
+
+    @Test
+    public void tasks_are_acquired_for_the_free_slots_of_their_group() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+
+        Task a = new Task("test").withGroup("a");
+        Task otherA = new Task("test").withGroup("a");
+        Task b = new Task("test").withGroup("b");
+        Task other = new Task("test");
+        queue.submit(a, otherA, b, other);
+
+        CountMap<String> freeSlots = new CountMap<>();
+        freeSlots.increment("a", 1);
+        freeSlots.increment(SmartQ.GROUP_DEFAULT, 1);
+
+        List<Task> tasks = queue.acquireForGroups(freeSlots);
+        assertEquals("Tasks of a full group take the slots of the default group", Arrays.asList(a, otherA), tasks);
+        assertEquals(2, queue.runningCount());
+
+        long created = otherA.getCreated();
+        queue.release(otherA);
+
+        assertEquals(1, queue.runningCount());
+        assertEquals(3, queue.queueSize());
+        assertEquals("Released tasks keep their creation time", created, otherA.getCreated());
+    }
+
+    @Test
+    public void group_acquire_reads_the_free_slots_again_when_they_change() throws InterruptedException {
+        final SmartQ<DefaultTaskResult> queue = makeQueue();
+        final Task b = new Task("test").withGroup("b");
+        queue.submit(b);
+
+        final AtomicInteger slotsForB = new AtomicInteger();
+
+        final List<Task> acquired = new ArrayList<>();
+        Thread dispatcher = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    acquired.addAll(queue.acquireForGroups(new SmartQ.SlotSource() {
+                        @Override
+                        public CountMap<String> getFreeSlots() {
+                            CountMap<String> freeSlots = new CountMap<>();
+                            freeSlots.increment("a", 1);
+                            freeSlots.increment("b", slotsForB.get());
+                            return freeSlots;
+                        }
+                    }));
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        dispatcher.start();
+
+        Thread.sleep(500);
+        assertTrue("No slot for group b yet", acquired.isEmpty());
+
+        slotsForB.set(1);
+        queue.slotsChanged();
+        dispatcher.join(5000);
+
+        assertEquals(Arrays.asList(b), acquired);
+    }
+
+    @Test
+    public void can_estimate_tasks_held_back_by_more_than_one_rate_limit() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        Task a  = new Task("x");
+        Task b  = new Task("y").withTag("x");
+        Task c  = new Task("y");
+        Task d  = new Task("x");
+
+        queue.submit(a);
+        queue.submit(b);
+        queue.submit(c);
+        queue.submit(d);
+
+        queue.setSubscribers(10);
+        queue.setRateLimit("x", 1);
+        queue.setRateLimit("y", 1);
+
+        queue.setEstimateForTaskType("x", 1000L);
+        queue.setEstimateForTaskType("y", 3000L);
+
+        QueueEstimator estimator = new QueueEstimator(queue);
+
+        //b waits for a, then for c - d can run as soon as a is done
+        assertEquals(6000L, estimator.queueEnds());
+        assertHashEquals(Arrays.asList(a, c, d, b), estimator.getLastExecutionOrder());
+    }
+
+
+    @Test
+    public void can_estimate_tasks_without_a_type() throws InterruptedException {
+        SmartQ<DefaultTaskResult> queue = makeQueue();
+        Task untyped = new Task();
+        Task typed = new Task("typed");
+
+        queue.submit(untyped);
+        queue.submit(typed);
+
+        queue.setSubscribers(1);
+        queue.setEstimateForTaskType("typed", 1000L);
+
+        QueueEstimator estimator = new QueueEstimator(queue);
+
+        assertEquals("Tasks without a type take the default estimate", 60000L, estimator.taskStarts(typed));
+        assertEquals(61000L, queue.getEstimatedTimeLeft());
+    }
 
     @Test
     public void can_estimate_when_a_task_begins_in_a_queue_with_rate_limits() throws InterruptedException {
@@ -0,0 +1,140 @@
+package com.vonhof.smartq;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StatementCacheTest {
+
+    private final List<String> prepared = new ArrayList<>();
+    private final List<String> calls = new ArrayList<>();
+    private StatementCache cache;
+
+    @Before
+    public void setup() {
+        cache = new StatementCache(stubConnection(), 2);
+    }
+
+    @Test
+    public void statements_are_reused_by_sql() throws SQLException {
+        PreparedStatement select = cache.prepare("SELECT 1");
+
+        assertSame(select, cache.prepare("SELECT 1"));
+        assertNotSame(select, cache.prepare("SELECT 2"));
+        assertEquals(Arrays.asList("SELECT 1", "SELECT 2"), prepared);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void reused_statements_are_cleared() throws SQLException {
+        cache.prepare("SELECT 1");
+        assertTrue("New statements are not cleared", calls.isEmpty());
+
+        cache.prepare("SELECT 1");
+        assertEquals(Arrays.asList("SELECT 1: clearParameters", "SELECT 1: clearBatch"), calls);
+    }
+
+    @Test
+    public void eldest_statement_is_closed_when_evicted() throws SQLException {
+        PreparedStatement first = cache.prepare("SELECT 1");
+        PreparedStatement second = cache.prepare("SELECT 2");
+
+        //Makes the second the least recently used
+        cache.prepare("SELECT 1");
+        cache.prepare("SELECT 3");
+
+        assertEquals(2, cache.size());
+        assertTrue(second.isClosed());
+        assertFalse(first.isClosed());
+        assertNotSame("Evicted statement is prepared again", second, cache.prepare("SELECT 2"));
+    }
+
+    @Test
+    public void closed_statements_are_prepared_again() throws SQLException {
+        PreparedStatement select = cache.prepare("SELECT 1");
+        select.close();
+
+        PreparedStatement next = cache.prepare("SELECT 1");
+        assertNotSame(select, next);
+        assertSame(next, cache.prepare("SELECT 1"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void close_closes_all_statements() throws SQLException {
+        PreparedStatement first = cache.prepare("SELECT 1");
+        PreparedStatement second = cache.prepare("SELECT 2");
+
+        cache.close();
+
+        assertTrue(first.isClosed());
+        assertTrue(second.isClosed());
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Connection that only prepares statements
+     */
+    private Connection stubConnection() {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("prepareStatement") && args.length == 1) {
+                            prepared.add((String) args[0]);
+                            return stubStatement((String) args[0]);
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Statement that records the calls made to it
+     */
+    private PreparedStatement stubStatement(final String sql) {
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class[]{PreparedStatement.class}, new InvocationHandler() {
+                    private boolean closed = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "isClosed":
+                                return closed;
+                            case "close":
+                                closed = true;
+                                return null;
+                            case "clearParameters":
+                            case "clearBatch":
+                                calls.add(sql + ": " + method.getName());
+                                return null;
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "toString":
+                                return "StubStatement[" + sql + "]";
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,34 @@
+package com.vonhof.smartq;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TagDictionaryTest {
+
+    @Test
+    public void ids_given_with_put_are_kept() {
+        TagDictionary dictionary = new TagDictionary();
+        dictionary.put("a", 3);
+        dictionary.put("a", 3);
+
+        assertEquals(3, dictionary.indexOf("a"));
+        assertEquals("a", dictionary.tagOf(3));
+        assertEquals(4, dictionary.intern("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tag_can_not_be_put_with_another_id() {
+        TagDictionary dictionary = new TagDictionary();
+        dictionary.intern("a");
+        dictionary.put("a", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void id_of_another_tag_can_not_be_put() {
+        TagDictionary dictionary = new TagDictionary();
+        dictionary.intern("a");
+        dictionary.put("b", 0);
+    }
+}
@@ -0,0 +1,90 @@
+package com.vonhof.smartq;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TaskSnapshotTest {
+
+    private File file;
+
+    @Before
+    public void setup() throws IOException {
+        file = File.createTempFile("smartq", ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void snapshots_can_be_written_and_read() throws IOException {
+        Task running = new Task("a").withTag("b").withGroup("g");
+        running.setState(Task.State.RUNNING);
+        Task queued = new Task("a").withPriority(3).withReferenceId("ref");
+        Task withData = new Task("c");
+        withData.setData("data");
+        UUID unwritten = UUID.randomUUID();
+
+        JacksonDocumentSerializer serializer = new JacksonDocumentSerializer();
+        new TaskSnapshot("queue", 42, Arrays.asList(running), Arrays.asList(queued, withData),
+                Collections.singletonList(unwritten)).write(file, serializer);
+
+        TaskSnapshot snapshot = TaskSnapshot.read(file, Task.class, serializer);
+
+        assertEquals("queue", snapshot.getSource());
+        assertEquals(42, snapshot.getPosition());
+        assertEquals(Arrays.asList(running), snapshot.getRunning());
+        assertEquals(Task.State.RUNNING, snapshot.getRunning().get(0).getState());
+        assertEquals("g", snapshot.getRunning().get(0).getGroup());
+        assertEquals(running.getTags(), snapshot.getRunning().get(0).getTags());
+        assertEquals(Arrays.asList(queued, withData), snapshot.getQueued());
+        assertEquals("ref", snapshot.getQueued().get(0).getReferenceId());
+        assertEquals(3, snapshot.getQueued().get(0).getPriority());
+        assertEquals("data", snapshot.getQueued().get(1).getData());
+        assertEquals("c", snapshot.getQueued().get(1).getType());
+        assertEquals(Collections.singletonList(unwritten), snapshot.getUnwritten());
+        assertFalse("Temporary file is moved in place", new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void fields_of_task_subclasses_are_kept() throws IOException {
+        OwnedTask queued = new OwnedTask();
+        queued.setType("a");
+        queued.setOwner("henrik");
+
+        JacksonDocumentSerializer serializer = new JacksonDocumentSerializer();
+        new TaskSnapshot("queue", 1, Collections.<Task>emptyList(), Arrays.<Task>asList(queued))
+                .write(file, serializer);
+
+        Class taskClass = OwnedTask.class;
+        TaskSnapshot snapshot = TaskSnapshot.read(file, taskClass, serializer);
+
+        OwnedTask read = (OwnedTask) snapshot.getQueued().get(0);
+        assertEquals(queued, read);
+        assertEquals("henrik", read.getOwner());
+    }
+
+    public static class OwnedTask extends Task {
+        private String owner;
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public void setOwner(String owner) {
+            this.owner = owner;
+        }
+    }
+}
@@ -6,8 +6,13 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -87,6 +92,34 @@ public class TaskStoreTest {
         assertTrue("Failed tasks can be iterated", store.getFailed().hasNext());
     }
 
+    @Test
+    public void only_queued_tasks_can_be_claimed() throws InterruptedException {
+        TaskStore store = makeStore();
+
+        Task a = new Task("test");
+        Task b = new Task("test");
+        store.queue(a, b);
+
+        store.run(a);
+        a.setStarted(42);
+
+        Task removed = new Task("test");
+        store.queue(removed);
+        store.remove(removed);
+
+        List<Task> claimed = store.claim(a, b, removed);
+
+        assertEquals("Only the queued task is claimed", 1, claimed.size());
+        assertEquals(b.getId(), claimed.get(0).getId());
+        assertEquals(State.RUNNING, claimed.get(0).getState());
+        assertEquals("Tasks claimed by others are left untouched", 42, a.getStarted());
+        assertFalse("Removed tasks are not marked as running", removed.isRunning());
+        assertEquals("Claimed task is moved to running list", 0, store.queueSize());
+        assertEquals("Claimed task is moved to running list", 2, store.runningCount());
+
+        assertTrue("Running tasks can not be claimed again", store.claim(b).isEmpty());
+    }
+
     @Test
     public void can_get_first_and_last_task_with_same_reference()  {
         TaskStore store = makeStore();
@@ -118,4 +151,81 @@ public class TaskStoreTest {
         assertEquals(firstB, store.getFirstTaskWithReference("b"));
         assertEquals(lastB, store.getLastTaskWithReference("b"));
     }
+
+    @Test
+    public void queued_tasks_are_ordered_by_priority_then_submit_order() throws InterruptedException {
+        TaskStore store = makeStore();
+
+        Task low1 = new Task("test").withPriority(1);
+        Task high1 = new Task("test").withPriority(5);
+        Task low2 = new Task("test").withPriority(1);
+        Task high2 = new Task("test").withPriority(5);
+        Task mid = new Task("test").withPriority(3);
+
+        store.queue(low1, high1);
+        store.queue(low2);
+        store.queue(high2, mid);
+
+        assertEquals(Arrays.asList(high1, high2, mid, low1, low2), toList(store.getQueued()));
+
+        store.run(high2);
+        store.remove(low1);
+
+        assertEquals(Arrays.asList(high1, mid, low2), toList(store.getQueued()));
+        assertEquals(Arrays.asList(high2), toList(store.getRunning()));
+        assertEquals(3, store.queueSize());
+        assertEquals(1, store.runningCount());
+    }
+
+    @Test
+    public void queued_tasks_can_be_fetched_by_tag() throws InterruptedException {
+        TaskStore store = makeStore();
+
+        Task a1 = new Task("a");
+        Task b1 = new Task("b").withPriority(5);
+        Task a2 = new Task("a").withTag("c").withPriority(3);
+        Task a3 = new Task("a");
+
+        store.queue(a1, b1, a2, a3);
+
+        assertEquals(Arrays.asList(a2, a1, a3), toList(store.getQueued("a")));
+        assertEquals(a2.getId(), store.getQueuedIds("a").next());
+        assertEquals(b1.getId(), store.getQueuedIds("b").next());
+
+        store.run(a2);
+
+        assertEquals(Arrays.asList(a1, a3), toList(store.getQueued("a")));
+        assertFalse("Tag index is updated when running", store.getQueuedIds("c").hasNext());
+        assertEquals(Arrays.asList(a2), toList(store.getRunning("c")));
+
+        store.remove(a1);
+
+        assertEquals(a3.getId(), store.getQueuedIds("a").next());
+        assertEquals(1, store.queueSize("a"));
+    }
+
+    @Test
+    public void running_counts_are_read_for_all_tags_at_once() throws InterruptedException {
+        TaskStore store = makeStore();
+
+        Task a1 = new Task("a").withTag("c");
+        Task a2 = new Task("a");
+        Task b1 = new Task("b");
+
+        store.queue(a1, a2, b1);
+        store.run(a1, a2);
+
+        CountMap<String> running = store.getRunningCounts();
+        assertEquals(2, running.get("a"));
+        assertEquals(1, running.get("c"));
+        assertFalse("Tags without running tasks are left out", running.contains("b"));
+    }
+
+    protected static List<Task> toList(Iterator<Task> it) {
+        List<Task> out = new LinkedList<Task>();
+        while(it.hasNext()) {
+            out.add(it.next());
+        }
+        return out;
+    }
 }
@@ -3,11 +3,24 @@ package com.vonhof.smartq;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
 public class WriteThroughTaskStoreTest extends TaskStoreTest {
 
     private PostgresTaskStore pgStore;
@@ -33,4 +46,156 @@ public class WriteThroughTaskStoreTest extends TaskStoreTest {
         return store;
     }
 
+    @Test
+    public void writes_are_merged_before_reaching_disk() throws Exception {
+        Task gone = new Task("test");
+        Task running = new Task("test");
+        Task requeued = new Task("test");
+
+        store.queue(requeued);
+        store.waitForAsyncTasks();
+
+        store.queue(gone, running);
+        store.run(gone, running);
+        store.remove(gone);
+        store.remove(requeued);
+        store.queue(requeued);
+        store.waitForAsyncTasks();
+
+        assertNull("Task removed before it was written never reaches disk", pgStore.get(gone.getId()));
+        assertEquals("Queued and run task is running on disk", Task.State.RUNNING, pgStore.get(running.getId()).getState());
+        assertNotNull("Removed and queued task is on disk", pgStore.get(requeued.getId()));
+        assertEquals(1, pgStore.queueSize());
+        assertEquals(1, pgStore.runningCount());
+    }
+
+    @Test
+    public void changes_are_only_tracked_with_a_snapshot_file() throws Exception {
+        assertFalse(pgStore.isTrackingChanges());
+
+        File snapshot = File.createTempFile("smartq", ".snapshot");
+        try {
+            WriteThroughTaskStore store = new WriteThroughTaskStore(pgStore, snapshot);
+            assertTrue(pgStore.isTrackingChanges());
+
+            Task removed = new Task("test");
+            store.queue(removed);
+            store.waitForAsyncTasks();
+            store.remove(removed);
+            store.waitForAsyncTasks();
+            assertEquals(Arrays.asList(removed.getId()), pgStore.getDeletedSince(0));
+
+            store.writeSnapshot();
+
+            assertEquals("Deletes are pruned once in a snapshot", Collections.<UUID>emptyList(),
+                    pgStore.getDeletedSince(0));
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void tasks_are_loaded_from_snapshot_and_later_changes() throws Exception {
+        File snapshot = File.createTempFile("smartq", ".snapshot");
+        try {
+            WriteThroughTaskStore store = new WriteThroughTaskStore(pgStore, snapshot);
+
+            Task removed = new Task("test");
+            Task running = new Task("test");
+            Task queued = new Task("test").withPriority(3);
+            store.queue(removed, running, queued);
+            store.run(running);
+            store.writeSnapshot();
+
+            Task added = new Task("test");
+            store.remove(removed);
+            store.queue(added);
+            store.waitForAsyncTasks();
+
+            WriteThroughTaskStore restarted = new WriteThroughTaskStore(pgStore, snapshot);
+
+            assertEquals(Arrays.asList(queued, added), toList(restarted.getQueued()));
+            assertEquals(Arrays.asList(running), toList(restarted.getRunning()));
+            assertNull(restarted.get(removed.getId()));
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void snapshots_due_are_written_in_the_background() throws Exception {
+        File snapshot = File.createTempFile("smartq", ".snapshot");
+        try {
+            WriteThroughTaskStore store = new WriteThroughTaskStore(pgStore, snapshot);
+            store.setSnapshotInterval(0);
+
+            Task task = new Task("test");
+            store.queue(task);
+            store.waitForAsyncTasks();
+
+            long timeout = System.currentTimeMillis() + 5000;
+            while (!snapshot.exists() && System.currentTimeMillis() < timeout) {
+                Thread.sleep(50);
+            }
+
+            TaskSnapshot written = TaskSnapshot.read(snapshot, Task.class, pgStore.getDocumentSerializer());
+            assertEquals(Arrays.asList(task), written.getQueued());
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void data_of_tasks_loaded_on_start_is_kept_off_heap() throws Exception {
+        File dir = Files.createTempDirectory("smartq-payloads").toFile();
+        PayloadStore payloads = new PayloadStore(dir, 1024);
+        try {
+            Task task = new Task("test");
+            task.setData("payload");
+            store.queue(task);
+            store.waitForAsyncTasks();
+
+            final List<Object> serialized = new ArrayList<>();
+            pgStore.setDocumentSerializer(new JacksonDocumentSerializer() {
+                @Override
+                public String serialize(Object obj) throws IOException {
+                    serialized.add(obj);
+                    return super.serialize(obj);
+                }
+            });
+
+            WriteThroughTaskStore restarted = new WriteThroughTaskStore(pgStore, null, payloads);
+
+            assertNull("Loaded task keeps no data on the heap", restarted.get(task.getId()).getData());
+            assertEquals("payload".length() + 2, payloads.size());
+            assertEquals("Data is serialized as the disk store does", Arrays.<Object>asList("payload"), serialized);
+        } finally {
+            payloads.close();
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void unwritten_tasks_in_a_snapshot_are_read_from_disk() throws Exception {
+        File snapshot = File.createTempFile("smartq", ".snapshot");
+        try {
+            pgStore.createChanges();
+            Task written = new Task("test");
+            store.queue(written);
+            store.waitForAsyncTasks();
+
+            //Taken while a task was queued but not written - and before the written task reached memory
+            Task lost = new Task("test");
+            new TaskSnapshot(pgStore.getTableName(), pgStore.getChangePosition(),
+                    Collections.<Task>emptyList(), Arrays.asList(lost),
+                    Arrays.asList(lost.getId(), written.getId())).write(snapshot, pgStore.getDocumentSerializer());
+
+            WriteThroughTaskStore restarted = new WriteThroughTaskStore(pgStore, snapshot);
+
+            assertEquals(Arrays.asList(written), toList(restarted.getQueued()));
+            assertNull("Never written", restarted.get(lost.getId()));
+        } finally {
+            snapshot.delete();
+        }
+    }
 }